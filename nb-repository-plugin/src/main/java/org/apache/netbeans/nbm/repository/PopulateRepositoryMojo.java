@@ -33,6 +33,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -56,6 +57,7 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.netbeans.nbm.utils.AbstractNetbeansMojo;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.ManifestCache;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Input;
@@ -247,6 +249,16 @@ public class PopulateRepositoryMojo
     @Parameter(property = "parentGAV", required = false)
     private String parentGAV;
 
+    /**
+     * Keep the examined manifest entries of the installation's jars in a cache
+     * inside the local repository, so that repeated runs against the same
+     * installation do not have to open the jars again.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "true", property = "netbeans.manifest.cache")
+    private boolean useManifestCache;
+
     /**
      * Maven session.
      */
@@ -342,15 +354,30 @@ public class PopulateRepositoryMojo
         StringTokenizer tok = new StringTokenizer(prop, ",");
         Map<ModuleWrapper, Artifact> moduleDefinitions = new HashMap<>();
         Map<String, Collection<ModuleWrapper>> clusters = new HashMap<>();
+        ManifestCache manifestCache = null;
+        if (useManifestCache) {
+            File localRepo = session.getRepositorySession().getLocalRepository().getBasedir();
+            if (localRepo != null && localRepo.isDirectory()) {
+                manifestCache = ManifestCache.open(new File(localRepo, ".cache/nbm-maven-plugin/manifests.bin"));
+            }
+        }
+        Map<File, File> moduleJars = new LinkedHashMap<>();
         while (tok.hasMoreTokens()) {
-            String token = tok.nextToken();
-            File module = new File(token);
+            File module = new File(tok.nextToken());
+            moduleJars.put(module, module);
+        }
+        Map<File, ExamineManifest> examined = ExamineManifest.examineAll(moduleJars, true, manifestCache, getLog());
+        for (File module : moduleJars.keySet()) {
             String clust = module.getAbsolutePath().substring(rootDir.getAbsolutePath().length() + 1);
             clust = clust.substring(0, clust.indexOf(File.separator));
-            ExamineManifest examinator = new ExamineManifest(getLog());
-            examinator.setPopulateDependencies(true);
-            examinator.setJarFile(module);
-            examinator.checkFile();
+            ExamineManifest examinator = examined.get(module);
+            if (examinator == null) {
+                examinator = new ExamineManifest(getLog());
+                examinator.setPopulateDependencies(true);
+                examinator.setCache(manifestCache);
+                examinator.setJarFile(module);
+                examinator.checkFile();
+            }
             if (examinator.isNetBeansModule() || examinator.isOsgiBundle()) {
                 //TODO get artifact id from the module's manifest?
                 String artifact = module.getName().substring(0, module.getName().indexOf(".jar"));
@@ -19,6 +19,7 @@ package org.apache.netbeans.nbm.utils;
  * under the License.
  */
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildListener;
 import org.apache.tools.ant.Project;
@@ -35,57 +36,68 @@ public abstract class AbstractNetbeansMojo extends AbstractMojo {
      * @return project
      */
     protected final Project antProject() {
+        return antProject(getLog());
+    }
+
+    /**
+     * Creates a project logging to the given logger.
+     *
+     * @param log logger
+     * @return project
+     * @since 15.0
+     */
+    protected final Project antProject(Log log) {
         Project antProject = new Project();
         antProject.init();
         antProject.addBuildListener(new BuildListener() {
             @Override
             public void buildStarted(BuildEvent be) {
-                getLog().debug("Ant build started");
+                log.debug("Ant build started");
             }
 
             @Override
             public void buildFinished(BuildEvent be) {
                 if (be.getException() != null) {
-                    getLog().error(be.getMessage(), be.getException());
+                    log.error(be.getMessage(), be.getException());
                 } else {
-                    getLog().debug("Ant build finished");
+                    log.debug("Ant build finished");
                 }
             }
 
             @Override
             public void targetStarted(BuildEvent be) {
-                getLog().info(be.getTarget().getName() + ":");
+                log.info(be.getTarget().getName() + ":");
             }
 
             @Override
             public void targetFinished(BuildEvent be) {
-                getLog().debug(be.getTarget().getName() + " finished");
+                log.debug(be.getTarget().getName() + " finished");
             }
 
             @Override
             public void taskStarted(BuildEvent be) {
-                getLog().debug(be.getTask().getTaskName() + " started");
+                log.debug(be.getTask().getTaskName() + " started");
             }
 
             @Override
             public void taskFinished(BuildEvent be) {
-                getLog().debug(be.getTask().getTaskName() + " finished");
+                log.debug(be.getTask().getTaskName() + " finished");
             }
 
             @Override
             public void messageLogged(BuildEvent be) {
                 switch (be.getPriority()) {
                     case Project.MSG_ERR:
-                        getLog().error(be.getMessage());
+                        log.error(be.getMessage());
                         break;
                     case Project.MSG_WARN:
-                        getLog().warn(be.getMessage());
+                        log.warn(be.getMessage());
                         break;
                     case Project.MSG_INFO:
-                        getLog().info(be.getMessage());
+                        log.info(be.getMessage());
                         break;
                     default:
-                        getLog().debug(be.getMessage());
+                        log.debug(be.getMessage());
                 }
             }
         });
@@ -93,7 +105,19 @@ public abstract class AbstractNetbeansMojo extends AbstractMojo {
     }
 
     protected final Project registerNbmAntTasks() {
-        Project antProject = antProject();
+        return registerNbmAntTasks(getLog());
+    }
+
+    /**
+     * Creates a project logging to the given logger with the NetBeans tasks
+     * registered.
+     *
+     * @param log logger
+     * @return project
+     * @since 15.0
+     */
+    protected final Project registerNbmAntTasks(Log log) {
+        Project antProject = antProject(log);
 
         Taskdef taskdef = (Taskdef) antProject.createTask("taskdef");
         taskdef.setClassname("org.netbeans.nbbuild.MakeListOfNBM");
@@ -22,19 +22,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
-import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
-import org.codehaus.plexus.util.StringUtils;
 
 /**
  * Tag examines the manifest of a jar file and retrieves NetBeans specific
@@ -48,61 +48,78 @@ public class ExamineManifest {
     private final Log logger;
     private File jarFile;
     private File manifestFile;
-    private boolean netBeansModule;
-    private boolean osgiBundle;
-
-    private boolean localized;
-    private String specVersion;
-    private String implVersion;
-    private String module;
-    private String locBundle;
-    private String classpath;
-    private boolean publicPackages;
     private boolean populateDependencies = false;
-    private List<String> dependencyTokens = Collections.<String>emptyList();
-    private Set<String> osgiImports = Collections.<String>emptySet();
-    private Set<String> osgiExports = Collections.<String>emptySet();
-
-    private boolean friendPackages = false;
-    private List<String> friends = Collections.<String>emptyList();
-    private List<String> packages = Collections.<String>emptyList();
-
-    private List<String> requires = Collections.<String>emptyList();
-
-    private List<String> provides = Collections.<String>emptyList();
-    //that's the default behaviour without the special manifest entry
-    private boolean bundleAutoload = true;
+    private ManifestSummary summary = ManifestSummary.EMPTY;
+
+    private ManifestCache cache;
+
+    private static final List<String> EXAMINED_ATTRIBUTES = Arrays.asList(
+            "OpenIDE-Module",
+            "OpenIDE-Module-Localizing-Bundle",
+            "OpenIDE-Module-Specification-Version",
+            "OpenIDE-Module-Implementation-Version",
+            Attributes.Name.CLASS_PATH.toString(),
+            "OpenIDE-Module-Public-Packages",
+            "OpenIDE-Module-Friends",
+            "OpenIDE-Module-Module-Dependencies",
+            "OpenIDE-Module-Requires",
+            "OpenIDE-Module-Provides",
+            "OpenIDE-Module-Needs",
+            "Bundle-SymbolicName",
+            "Bundle-Version",
+            "Export-Package",
+            "Nbm-Maven-Plugin-Autoload",
+            "Require-Bundle",
+            "Import-Package",
+            "Specification-Version",
+            "Implementation-Version",
+            "Package",
+            "Extension-Name");
+
+    private static final int PARALLELISM = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
 
     public ExamineManifest(Log logger) {
         this.logger = logger;
     }
 
-    public void checkFile() throws MojoExecutionException {
+    /**
+     * Examiner with the result of an earlier examination.
+     *
+     * @param logger logger
+     * @param summary summary of the examined manifest
+     * @since 15.0
+     */
+    public ExamineManifest(Log logger, ManifestSummary summary) {
+        this.logger = logger;
+        this.summary = summary;
+    }
 
-        resetExamination();
+    public void checkFile() throws MojoExecutionException {
 
-        Manifest mf = null;
+        summary = ManifestSummary.EMPTY;
+        Attributes attrs = null;
         if (jarFile != null) {
-            JarFile jar = null;
-            try {
-                jar = new JarFile(jarFile);
-                mf = jar.getManifest();
-            } catch (Exception exc) {
-                throw new MojoExecutionException("Could not open " + jarFile + ": " + exc.getMessage(), exc);
-            } finally {
-                if (jar != null) {
-                    try {
-                        jar.close();
-                    } catch (IOException io) {
-                        throw new MojoExecutionException(io.getMessage(), io);
-                    }
+            attrs = cache != null ? cache.get(jarFile) : null;
+            if (attrs == null) {
+                Manifest mf;
+                try {
+                    mf = JarEntryReader.readManifest(jarFile);
+                } catch (Exception exc) {
+                    throw new MojoExecutionException("Could not open " + jarFile + ": " + exc.getMessage(), exc);
+                }
+                attrs = mf != null ? mf.getMainAttributes() : null;
+                if (cache != null) {
+                    cache.put(jarFile, examinedAttributes(attrs));
                 }
+            } else if (attrs.isEmpty()) {
+                //cached jar without manifest
+                attrs = null;
             }
         } else if (manifestFile != null) {
             InputStream stream = null;
             try {
                 stream = new FileInputStream(manifestFile);
-                mf = new Manifest(stream);
+                attrs = new Manifest(stream).getMainAttributes();
             } catch (Exception exc) {
                 throw new MojoExecutionException(exc.getMessage(), exc);
             } finally {
@@ -115,9 +132,29 @@ public class ExamineManifest {
                 }
             }
         }
-        if (mf != null) {
-            processManifest(mf);
-        } else {
+        examined(attrs);
+    }
+
+    /**
+     * Examines main attributes already read from the jar file, e.g. from the
+     * bytes of the jar while it was being written, instead of opening the jar
+     * again. The attributes are stored in the cache like by
+     * {@link #checkFile()}.
+     *
+     * @param attrs main attributes of the jar file set by
+     * {@link #setJarFile}, null if the jar has no manifest
+     * @since 15.0
+     */
+    public void checkAttributes(Attributes attrs) {
+        if (jarFile != null && cache != null) {
+            cache.put(jarFile, examinedAttributes(attrs));
+        }
+        examined(attrs);
+    }
+
+    private void examined(Attributes attrs) {
+        summary = ManifestSummary.of(attrs, populateDependencies);
+        if (attrs == null) {
             //MNBMODULE-22
             File source = manifestFile;
             if (source == null) {
@@ -131,155 +168,80 @@ public class ExamineManifest {
         }
     }
 
-    private void resetExamination() {
-        setNetBeansModule(false);
-        this.localized = false;
-        this.specVersion = null;
-        this.implVersion = null;
-        this.module = null;
-        this.locBundle = null;
-        this.publicPackages = false;
-        classpath = "";
-    }
-
-    private void processManifest(Manifest mf) {
-        Attributes attrs = mf.getMainAttributes();
-        this.module = attrs.getValue("OpenIDE-Module");
-        setNetBeansModule(getModule() != null);
-        if (isNetBeansModule()) {
-            this.locBundle = attrs.getValue("OpenIDE-Module-Localizing-Bundle");
-            this.localized = locBundle != null;
-            this.specVersion = attrs.getValue("OpenIDE-Module-Specification-Version");
-            this.implVersion = attrs.getValue("OpenIDE-Module-Implementation-Version");
-            String cp = attrs.getValue(Attributes.Name.CLASS_PATH);
-            classpath = cp == null ? "" : cp;
-            String value = attrs.getValue("OpenIDE-Module-Public-Packages");
-            String frList = attrs.getValue("OpenIDE-Module-Friends");
-            if (value == null || value.trim().equals("-")) {
-                this.publicPackages = false;
-            } else {
-                if (frList != null) {
-                    this.publicPackages = false;
-                    String[] friendList = StringUtils.stripAll(StringUtils.split(frList, ","));
-                    friendPackages = true;
-                    friends = Arrays.asList(friendList);
-                } else {
-                    this.publicPackages = true;
-                }
-                String[] packageList = StringUtils.stripAll(StringUtils.split(value, ","));
-                packages = Arrays.asList(packageList);
+    /**
+     * Examines many files concurrently on a bounded pool, manifest reads are
+     * independent I/O. Files that cannot be examined are left out of the
+     * result, so that callers examining them again one by one report the
+     * failure at the same place as they did without the bulk examination.
+     *
+     * @param <K> key type, e.g. artifact
+     * @param files jar files or folders to examine
+     * @param populateDependencies see {@link #setPopulateDependencies}
+     * @param cache persistent cache or null
+     * @param log logger passed to the examiners
+     * @return examined files, in the iteration order of <code>files</code>
+     * @since 15.0
+     */
+    public static <K> Map<K, ExamineManifest> examineAll(Map<K, File> files, boolean populateDependencies,
+            ManifestCache cache, Log log) {
+        Map<K, ExamineManifest> toRet = new LinkedHashMap<>();
+        if (files.isEmpty()) {
+            return toRet;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARALLELISM, files.size()), r -> {
+            Thread t = new Thread(r, "nbm-examine-manifest");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Map<K, Future<ExamineManifest>> futures = new LinkedHashMap<>();
+            for (Map.Entry<K, File> entry : files.entrySet()) {
+                File file = entry.getValue();
+                futures.put(entry.getKey(), executor.submit(() -> {
+                    ExamineManifest em = new ExamineManifest(log);
+                    em.setPopulateDependencies(populateDependencies);
+                    em.setCache(cache);
+                    em.setArtifactFile(file);
+                    em.checkFile();
+                    return em;
+                }));
             }
-            if (populateDependencies) {
-                String deps = attrs.getValue("OpenIDE-Module-Module-Dependencies");
-                if (deps != null) {
-                    StringTokenizer tokens = new StringTokenizer(deps, ",");
-                    List<String> depList = new ArrayList<String>();
-                    while (tokens.hasMoreTokens()) {
-                        String tok = tokens.nextToken();
-                        //we are just interested in specification and loose dependencies.
-                        int spec = tok.indexOf('>');
-                        int impl = tok.indexOf('=');
-                        if (spec > 0) {
-                            tok = tok.substring(0, spec);
-                        } else if (impl > 0) {
-                            tok = tok.substring(0, impl);
-                        }
-                        int slash = tok.indexOf('/');
-                        if (slash > 0) {
-                            tok = tok.substring(0, slash);
-                        }
-                        depList.add(tok.trim().intern());
-                    }
-                    this.dependencyTokens = depList;
-                }
-                String req = attrs.getValue("OpenIDE-Module-Requires");
-                String prov = attrs.getValue("OpenIDE-Module-Provides");
-                String needs = attrs.getValue("OpenIDE-Module-Needs");
-                if (prov != null) {
-                    provides = Arrays.asList(StringUtils.stripAll(StringUtils.split(prov, ",")));
-                }
-                if (req != null || needs != null) {
-                    requires = new ArrayList<String>();
-                    if (req != null) {
-                        requires.addAll(Arrays.asList(StringUtils.stripAll(StringUtils.split(req, ","))));
-                    }
-                    if (needs != null) {
-                        requires.addAll(Arrays.asList(StringUtils.stripAll(StringUtils.split(needs, ","))));
-                    }
+            for (Map.Entry<K, Future<ExamineManifest>> entry : futures.entrySet()) {
+                try {
+                    toRet.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException ex) {
+                    // reported when examined again by the caller
                 }
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        return toRet;
+    }
 
-        } else {
-
-            //check osgi headers first, let nb stuff override it, making nb default
-            String bndName = attrs.getValue("Bundle-SymbolicName");
-            if (bndName != null) {
-                this.osgiBundle = true;
-                this.module
-                        = bndName./* MNBMODULE-125 */replaceFirst(" *;.+", "")./* MNBMODULE-96 */replace('-', '_');
-                this.specVersion = attrs.getValue("Bundle-Version");
-                String exp = attrs.getValue("Export-Package");
-                String autoload = attrs.getValue("Nbm-Maven-Plugin-Autoload");
-                if (autoload != null) {
-                    bundleAutoload = Boolean.parseBoolean(autoload);
-                }
-                this.publicPackages = exp != null;
-                if (populateDependencies) {
-                    //well, this doesn't appear to cover
-                    //the major way of declation dependencies in osgi - Import-Package
-                    String deps = attrs.getValue("Require-Bundle");
-                    if (deps != null) {
-                        List<String> depList = new ArrayList<String>();
-                        // https://stackoverflow.com/questions/1757065
-                        // java-splitting-a-comma-separated-string-but-ignoring-commas-in-quotes
-                        for (String piece : deps.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)")) {
-                            depList.add(piece.replaceFirst(";.+", "").trim().intern());
-                        }
-                        this.dependencyTokens = depList;
-                    }
-                    String imps = attrs.getValue("Import-Package");
-                    if (imps != null) {
-                        Set<String> depList = new HashSet<String>();
-                        // https://stackoverflow.com/questions/1757065
-                        // java-splitting-a-comma-separated-string-but-ignoring-commas-in-quotes
-                        for (String piece : imps.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)")) {
-                            depList.add(piece.replaceFirst(";.+", "").trim().intern());
-                        }
-                        this.osgiImports = depList;
-                    }
-                    String exps = attrs.getValue("Export-Package");
-                    if (exps != null) {
-                        Set<String> depList = new HashSet<String>();
-                        // https://stackoverflow.com/questions/1757065
-                        // java-splitting-a-comma-separated-string-but-ignoring-commas-in-quotes
-                        for (String piece : exps.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)")) {
-                            depList.add(piece.replaceFirst(";.+", "").trim().intern());
-                        }
-                        this.osgiExports = depList;
-                    }
-
-                }
-            } else {
-
-                // for non-netbeans, non-osgi jars.
-                this.specVersion = attrs.getValue("Specification-Version");
-                this.implVersion = attrs.getValue("Implementation-Version");
-                this.module = attrs.getValue("Package");
-                this.publicPackages = false;
-                classpath = "";
-                /*    if ( module != null )
-                {
-                // now we have the package to make it a module definition, add the version there..
-                module = module + "/1";
-                }
-                 */
-                if (getModule() == null) {
-                    // do we want to do that?
-                    this.module = attrs.getValue("Extension-Name");
-                }
+    /**
+     * Subset of the main attributes this class looks at, the only ones worth
+     * keeping in {@link ManifestCache}.
+     */
+    private static Map<String, String> examinedAttributes(Attributes attrs) {
+        if (attrs == null) {
+            return null;
+        }
+        Map<String, String> toRet = new LinkedHashMap<>();
+        for (String name : EXAMINED_ATTRIBUTES) {
+            String value = attrs.getValue(name);
+            if (value != null) {
+                toRet.put(name, value);
             }
         }
-
+        if (toRet.isEmpty()) {
+            //distinguish from a jar without manifest
+            String version = attrs.getValue(Attributes.Name.MANIFEST_VERSION);
+            toRet.put(Attributes.Name.MANIFEST_VERSION.toString(), version != null ? version : "");
+        }
+        return toRet;
     }
 
     /**
@@ -319,28 +281,49 @@ public class ExamineManifest {
         }
     }
 
+    /**
+     * Persistent cache to consult before opening the jar file. Has no effect
+     * when examining a manifest file.
+     *
+     * @param cache manifest cache, or null to always read the jar
+     * @since 15.0
+     */
+    public void setCache(ManifestCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Immutable result of the last {@link #checkFile()}.
+     *
+     * @return manifest summary
+     * @since 15.0
+     */
+    public ManifestSummary getSummary() {
+        return summary;
+    }
+
     public String getClasspath() {
-        return classpath;
+        return summary.getClasspath();
     }
 
     public boolean isNetBeansModule() {
-        return netBeansModule;
+        return summary.isNetBeansModule();
     }
 
     public void setNetBeansModule(boolean netBeansModule) {
-        this.netBeansModule = netBeansModule;
+        summary = summary.withNetBeansModule(netBeansModule);
     }
 
     public boolean isLocalized() {
-        return localized;
+        return summary.isLocalized();
     }
 
     public String getSpecVersion() {
-        return specVersion;
+        return summary.getSpecVersion();
     }
 
     public String getImplVersion() {
-        return implVersion;
+        return summary.getImplVersion();
     }
 
     /**
@@ -349,7 +332,7 @@ public class ExamineManifest {
      * @return module code name base
      */
     public String getModule() {
-        return module != null ? module.replaceFirst("/\\d+$", "") : module;
+        return summary.getModule();
     }
 
     /**
@@ -359,7 +342,7 @@ public class ExamineManifest {
      * @return module full name
      */
     public String getModuleWithRelease() {
-        return module;
+        return summary.getModuleWithRelease();
     }
 
     /**
@@ -369,7 +352,7 @@ public class ExamineManifest {
      * @return true if has public package
      */
     public boolean hasPublicPackages() {
-        return publicPackages;
+        return summary.hasPublicPackages();
     }
 
     public void setPopulateDependencies(boolean populateDependencies) {
@@ -377,7 +360,7 @@ public class ExamineManifest {
     }
 
     public List<String> getDependencyTokens() {
-        return dependencyTokens;
+        return summary.getDependencyTokens();
     }
 
     /**
@@ -386,11 +369,11 @@ public class ExamineManifest {
      * @return true if has friend package
      */
     public boolean hasFriendPackages() {
-        return friendPackages;
+        return summary.hasFriendPackages();
     }
 
     public List<String> getFriends() {
-        return friends;
+        return summary.getFriends();
     }
 
     /**
@@ -401,31 +384,39 @@ public class ExamineManifest {
      * @return list of package
      */
     public List<String> getPackages() {
-        return packages;
+        return summary.getPackages();
     }
 
     public boolean isOsgiBundle() {
-        return osgiBundle;
+        return summary.isOsgiBundle();
     }
 
     public Set<String> getOsgiImports() {
-        return osgiImports;
+        return summary.getOsgiImports();
     }
 
     public Set<String> getOsgiExports() {
-        return osgiExports;
+        return summary.getOsgiExports();
+    }
+
+    /**
+     * @return imported packages without optional ones
+     * @since 15.0
+     */
+    public Set<String> getOsgiRequiredImports() {
+        return summary.getOsgiRequiredImports();
     }
 
     public List<String> getNetBeansRequiresTokens() {
-        return requires;
+        return summary.getNetBeansRequiresTokens();
     }
 
     public List<String> getNetBeansProvidesTokens() {
-        return provides;
+        return summary.getNetBeansProvidesTokens();
     }
 
     public boolean isBundleAutoload() {
-        return bundleAutoload;
+        return summary.isBundleAutoload();
     }
 
 }
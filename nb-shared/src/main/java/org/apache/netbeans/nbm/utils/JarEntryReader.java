@@ -0,0 +1,594 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a single entry out of a zip/jar file without building the index of
+ * all entries the way {@link java.util.zip.ZipFile} does. The end of central
+ * directory record is located from the end of the file, the central directory
+ * is then streamed until the requested name is found and only that one entry
+ * gets inflated. Supports zip64 archives, STORED and DEFLATED entries and
+ * archives with a prefix (e.g. self extracting ones). Signed jars are read as
+ * is, without any verification, just like {@link JarFile#getManifest()} does.
+ * <p>
+ * {@link #readEntries} reads many entries in one go, inflating them straight
+ * from a memory mapping of the archive.
+ *
+ * @since 15.0
+ */
+public final class JarEntryReader {
+
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int LOC_HEADER = 30;
+    private static final int CEN_HEADER = 46;
+    private static final int END_HEADER = 22;
+    private static final int ZIP64_END_HEADER = 56;
+    private static final int ZIP64_LOCATOR = 20;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] MANIFEST_NAME = JarFile.MANIFEST_NAME.getBytes(StandardCharsets.UTF_8);
+
+    private JarEntryReader() {
+    }
+
+    /**
+     * Reads the manifest of a jar file.
+     *
+     * @param jar jar file
+     * @return manifest or null if the jar has none
+     * @throws IOException if the file cannot be read or is not a zip file
+     */
+    public static Manifest readManifest(File jar) throws IOException {
+        byte[] content = read(jar, MANIFEST_NAME, true);
+        return content != null ? new Manifest(new ByteArrayInputStream(content)) : null;
+    }
+
+    /**
+     * Reads the content of a single entry.
+     *
+     * @param zip zip or jar file
+     * @param name full entry name, e.g. <code>Info/info.xml</code>
+     * @return uncompressed content or null if there is no such entry
+     * @throws IOException if the file cannot be read or is not a zip file
+     */
+    public static byte[] readEntry(File zip, String name) throws IOException {
+        return read(zip, name.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    /**
+     * Reads the content of all entries accepted by the filter, in central
+     * directory order. Directory entries are skipped.
+     *
+     * @param zip zip or jar file
+     * @param filter accepts full entry names, e.g.
+     * <code>org/openide/util/Lookup.class</code>
+     * @param visitor receives the uncompressed content of accepted entries
+     * @throws IOException if the file cannot be read or is not a zip file, or
+     * when thrown by the visitor
+     */
+    public static void readEntries(File zip, Predicate<String> filter, EntryVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(zip.toPath(), StandardOpenOption.READ)) {
+            CentralDirectory cd = findCentralDirectory(channel, zip);
+            CentralReader reader = new CentralReader(channel, cd.position, cd.size);
+            List<String> names = new ArrayList<>();
+            List<EntryLocation> locations = new ArrayList<>();
+            byte[] nameBytes = new byte[256];
+            for (long i = 0; i < cd.entries; i++) {
+                ByteBuffer header = reader.next(CEN_HEADER);
+                if (header.getInt(0) != CEN_SIG) {
+                    throw new ZipException("Invalid central directory entry in " + zip);
+                }
+                int nameLength = Short.toUnsignedInt(header.getShort(28));
+                int extraLength = Short.toUnsignedInt(header.getShort(30));
+                int commentLength = Short.toUnsignedInt(header.getShort(32));
+                ByteBuffer variable = reader.next(nameLength + extraLength);
+                if (nameBytes.length < nameLength) {
+                    nameBytes = new byte[nameLength];
+                }
+                variable.get(0, nameBytes, 0, nameLength);
+                String name = new String(nameBytes, 0, nameLength, StandardCharsets.UTF_8);
+                if (!name.endsWith("/") && filter.test(name)) {
+                    names.add(name);
+                    locations.add(location(header, variable, nameLength, extraLength, cd.base));
+                }
+                reader.skip(commentLength);
+            }
+            if (locations.isEmpty()) {
+                return;
+            }
+            ByteBuffer mapped = null;
+            if (channel.size() <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            for (int i = 0; i < locations.size(); i++) {
+                EntryLocation location = locations.get(i);
+                visitor.visit(names.get(i), mapped != null ? readData(mapped, location, zip)
+                        : readData(channel, location, zip));
+            }
+        }
+    }
+
+    /**
+     * Copies a jar, e.g. one packed inside an NBM file, and reads its manifest
+     * from the bytes on the way, so the copy does not have to be opened again.
+     * Only a manifest at the start of the jar is found, where the jar tools
+     * put it. Content that is not a jar is copied all the same.
+     *
+     * @param in jar content, left open
+     * @param out receives the whole content, left open
+     * @return manifest or null if there is none at the start of the jar
+     * @throws IOException if reading or writing fails
+     */
+    public static Manifest copyJar(InputStream in, OutputStream out) throws IOException {
+        TeeInputStream tee = new TeeInputStream(in, out);
+        Manifest manifest = null;
+        try (JarInputStream jar = new JarInputStream(tee, false)) {
+            manifest = jar.getManifest();
+        } catch (IOException ex) {
+            if (tee.writeFailure != null) {
+                throw tee.writeFailure;
+            }
+            // not a readable jar, nothing to examine, reading the input fails again below if it is broken
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (tee.read(buffer, 0, buffer.length) >= 0) {
+            // copied by the tee
+        }
+        return manifest;
+    }
+
+    private static byte[] read(File file, byte[] name, boolean ignoreCase) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            CentralDirectory cd = findCentralDirectory(channel, file);
+            CentralReader reader = new CentralReader(channel, cd.position, cd.size);
+            for (long i = 0; i < cd.entries; i++) {
+                ByteBuffer header = reader.next(CEN_HEADER);
+                if (header.getInt(0) != CEN_SIG) {
+                    throw new ZipException("Invalid central directory entry in " + file);
+                }
+                int nameLength = Short.toUnsignedInt(header.getShort(28));
+                int extraLength = Short.toUnsignedInt(header.getShort(30));
+                int commentLength = Short.toUnsignedInt(header.getShort(32));
+                if (nameLength != name.length) {
+                    reader.skip(nameLength + extraLength + commentLength);
+                    continue;
+                }
+                ByteBuffer variable = reader.next(nameLength + extraLength);
+                int match = compare(variable, name, ignoreCase);
+                if (match == 0 || (match == 1 && cd.fallback == null)) {
+                    EntryLocation location = location(header, variable, nameLength, extraLength, cd.base);
+                    if (match == 0) {
+                        return readData(channel, location, file);
+                    }
+                    // case insensitive match, keep looking for an exact one
+                    cd.fallback = location;
+                }
+                reader.skip(commentLength);
+            }
+            return cd.fallback != null ? readData(channel, cd.fallback, file) : null;
+        }
+    }
+
+    private static EntryLocation location(ByteBuffer header, ByteBuffer variable, int nameLength, int extraLength,
+            long base) {
+        long compressed = Integer.toUnsignedLong(header.getInt(20));
+        long size = Integer.toUnsignedLong(header.getInt(24));
+        long offset = Integer.toUnsignedLong(header.getInt(42));
+        // zip64 extra field lists only the values that overflowed, in this order
+        int extra = nameLength;
+        int extraEnd = nameLength + extraLength;
+        while (extra + 4 <= extraEnd) {
+            int id = Short.toUnsignedInt(variable.getShort(extra));
+            int length = Short.toUnsignedInt(variable.getShort(extra + 2));
+            if (id == ZIP64_EXTRA) {
+                int pos = extra + 4;
+                if (size == ZIP64_MAGIC && pos + 8 <= extraEnd) {
+                    size = variable.getLong(pos);
+                    pos += 8;
+                }
+                if (compressed == ZIP64_MAGIC && pos + 8 <= extraEnd) {
+                    compressed = variable.getLong(pos);
+                    pos += 8;
+                }
+                if (offset == ZIP64_MAGIC && pos + 8 <= extraEnd) {
+                    offset = variable.getLong(pos);
+                }
+                break;
+            }
+            extra += 4 + length;
+        }
+        return new EntryLocation(Short.toUnsignedInt(header.getShort(10)), header.getInt(16), compressed, size,
+                base + offset);
+    }
+
+    /**
+     * @return 0 for exact match, 1 for ASCII case insensitive match, -1
+     * otherwise
+     */
+    private static int compare(ByteBuffer buffer, byte[] name, boolean ignoreCase) {
+        int result = 0;
+        for (int i = 0; i < name.length; i++) {
+            byte b = buffer.get(i);
+            if (b != name[i]) {
+                if (!ignoreCase || toUpper(b) != toUpper(name[i])) {
+                    return -1;
+                }
+                result = 1;
+            }
+        }
+        return result;
+    }
+
+    private static byte toUpper(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+
+    private static CentralDirectory findCentralDirectory(FileChannel channel, File file) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_HEADER) {
+            throw new ZipException("Not a zip file: " + file);
+        }
+        int tailSize = (int) Math.min(fileSize, END_HEADER + MAX_COMMENT);
+        long tailStart = fileSize - tailSize;
+        ByteBuffer tail = readFully(channel, tailStart, tailSize);
+        for (int pos = tailSize - END_HEADER; pos >= 0; pos--) {
+            if (tail.getInt(pos) != END_SIG) {
+                continue;
+            }
+            int commentLength = Short.toUnsignedInt(tail.getShort(pos + 20));
+            if (pos + END_HEADER + commentLength > tailSize) {
+                // signature bytes inside the comment of another record
+                continue;
+            }
+            long endPosition = tailStart + pos;
+            long entries = Short.toUnsignedInt(tail.getShort(pos + 10));
+            long size = Integer.toUnsignedLong(tail.getInt(pos + 12));
+            long offset = Integer.toUnsignedLong(tail.getInt(pos + 16));
+            long cdEnd = endPosition;
+            if ((entries == 0xFFFF || size == ZIP64_MAGIC || offset == ZIP64_MAGIC)
+                    && endPosition >= ZIP64_LOCATOR) {
+                ByteBuffer locator = readFully(channel, endPosition - ZIP64_LOCATOR, ZIP64_LOCATOR);
+                if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                    long zip64EndOffset = locator.getLong(8);
+                    // the recorded offset is off by the prefix length, so look just in front of the locator first
+                    long zip64End = endPosition - ZIP64_LOCATOR - ZIP64_END_HEADER;
+                    ByteBuffer end64 = zip64End >= 0 ? readFully(channel, zip64End, ZIP64_END_HEADER) : null;
+                    if (end64 == null || end64.getInt(0) != ZIP64_END_SIG) {
+                        zip64End = zip64EndOffset;
+                        end64 = readFully(channel, zip64End, ZIP64_END_HEADER);
+                    }
+                    if (end64.getInt(0) != ZIP64_END_SIG) {
+                        throw new ZipException("Invalid zip64 end record in " + file);
+                    }
+                    entries = end64.getLong(32);
+                    size = end64.getLong(40);
+                    offset = end64.getLong(48);
+                    cdEnd = zip64End;
+                }
+            }
+            long position = cdEnd - size;
+            if (position < 0) {
+                throw new ZipException("Invalid central directory in " + file);
+            }
+            // non zero for archives with a prefix
+            return new CentralDirectory(position, size, entries, position - offset);
+        }
+        throw new ZipException("Not a zip file: " + file);
+    }
+
+    private static byte[] readData(FileChannel channel, EntryLocation location, File file) throws IOException {
+        ByteBuffer local = readFully(channel, location.localHeader, LOC_HEADER);
+        if (local.getInt(0) != LOC_SIG) {
+            throw new ZipException("Invalid local header in " + file);
+        }
+        long dataStart = location.localHeader + LOC_HEADER
+                + Short.toUnsignedInt(local.getShort(26)) + Short.toUnsignedInt(local.getShort(28));
+        checkSize(location, file);
+        byte[] compressed = new byte[(int) location.compressedSize + 1];
+        ByteBuffer data = ByteBuffer.wrap(compressed, 0, (int) location.compressedSize);
+        readFully(channel, dataStart, data);
+        // trailing dummy byte required by nowrap inflaters
+        return decode(ByteBuffer.wrap(compressed), location, file);
+    }
+
+    private static byte[] readData(ByteBuffer mapped, EntryLocation location, File file) throws IOException {
+        if (location.localHeader < 0 || location.localHeader > mapped.limit() - LOC_HEADER) {
+            throw new ZipException("Invalid local header in " + file);
+        }
+        int local = (int) location.localHeader;
+        if (mapped.getInt(local) != LOC_SIG) {
+            throw new ZipException("Invalid local header in " + file);
+        }
+        long dataStart = local + LOC_HEADER
+                + Short.toUnsignedInt(mapped.getShort(local + 26)) + Short.toUnsignedInt(mapped.getShort(local + 28));
+        checkSize(location, file);
+        if (dataStart + location.compressedSize > mapped.limit()) {
+            throw new EOFException("Truncated entry in " + file);
+        }
+        // the byte following the data (central directory at the latest) serves as the dummy byte
+        int length = (int) Math.min(location.compressedSize + 1, mapped.limit() - dataStart);
+        return decode(mapped.slice((int) dataStart, length), location, file);
+    }
+
+    private static void checkSize(EntryLocation location, File file) throws ZipException {
+        if (location.compressedSize > Integer.MAX_VALUE - 1 || location.size > Integer.MAX_VALUE - 1) {
+            throw new ZipException("Entry too large in " + file);
+        }
+    }
+
+    /**
+     * @param input compressed data, followed by one more byte if available
+     */
+    private static byte[] decode(ByteBuffer input, EntryLocation location, File file) throws IOException {
+        byte[] content;
+        if (location.method == 0) {
+            content = new byte[(int) location.compressedSize];
+            input.get(0, content);
+        } else if (location.method == 8) {
+            content = new byte[(int) location.size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(input);
+                int length = 0;
+                while (length < content.length) {
+                    int count = inflater.inflate(content, length, content.length - length);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += count;
+                }
+                if (length != content.length) {
+                    throw new ZipException("Truncated entry in " + file);
+                }
+            } catch (DataFormatException ex) {
+                throw new ZipException("Invalid compressed entry in " + file + ": " + ex.getMessage());
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new ZipException("Unsupported compression method " + location.method + " in " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if ((int) crc.getValue() != location.crc) {
+            throw new ZipException("CRC mismatch in " + file);
+        }
+        return content;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(channel, position, buffer);
+        buffer.flip();
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, pos);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            pos += count;
+        }
+    }
+
+    /**
+     * Writes everything read to the output, closing does not close the
+     * input.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+
+        private final OutputStream out;
+        IOException writeFailure;
+
+        TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                try {
+                    out.write(b);
+                } catch (IOException ex) {
+                    writeFailure = ex;
+                    throw ex;
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                try {
+                    out.write(b, off, read);
+                } catch (IOException ex) {
+                    writeFailure = ex;
+                    throw ex;
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Sequential reader over the central directory, using one fixed buffer no
+     * matter how many entries there are.
+     */
+    private static final class CentralReader {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+        private final long end;
+
+        CentralReader(FileChannel channel, long position, long size) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + size;
+            this.buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(size, CEN_HEADER)))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.limit(0);
+        }
+
+        /**
+         * @return a view on the next <code>length</code> bytes, indexed from 0
+         */
+        ByteBuffer next(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                fill(length);
+            }
+            ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            slice.limit(length);
+            buffer.position(buffer.position() + length);
+            return slice;
+        }
+
+        void skip(int length) {
+            int inBuffer = Math.min(length, buffer.remaining());
+            buffer.position(buffer.position() + inBuffer);
+            if (inBuffer < length) {
+                position += length - inBuffer;
+            }
+        }
+
+        private void fill(int length) throws IOException {
+            if (length > buffer.capacity()) {
+                throw new ZipException("Central directory entry too large");
+            }
+            buffer.compact();
+            while (buffer.position() < length) {
+                int toRead = (int) Math.min(buffer.remaining(), end - position);
+                if (toRead <= 0) {
+                    throw new EOFException("Truncated central directory");
+                }
+                ByteBuffer target = buffer.duplicate();
+                target.limit(buffer.position() + toRead);
+                int count = channel.read(target, position);
+                if (count < 0) {
+                    throw new EOFException("Truncated central directory");
+                }
+                buffer.position(buffer.position() + count);
+                position += count;
+            }
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Receives entries read by {@link #readEntries}.
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+
+        /**
+         * @param name full entry name
+         * @param content uncompressed content
+         * @throws IOException to stop reading
+         */
+        void visit(String name, byte[] content) throws IOException;
+    }
+
+    private static final class CentralDirectory {
+
+        final long position;
+        final long size;
+        final long entries;
+        final long base;
+        EntryLocation fallback;
+
+        CentralDirectory(long position, long size, long entries, long base) {
+            this.position = position;
+            this.size = size;
+            this.entries = entries;
+            this.base = base;
+        }
+    }
+
+    private static final class EntryLocation {
+
+        final int method;
+        final int crc;
+        final long compressedSize;
+        final long size;
+        final long localHeader;
+
+        EntryLocation(int method, int crc, long compressedSize, long size, long localHeader) {
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeader = localHeader;
+        }
+    }
+}
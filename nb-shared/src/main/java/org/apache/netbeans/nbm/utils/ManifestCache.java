@@ -0,0 +1,320 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+
+/**
+ * Persistent cache of examined manifest attributes, shared by all builds on the
+ * machine. Entries are keyed by the canonical path of the examined file
+ * together with its size and last modification time, so a changed file is
+ * simply a cache miss. Only the main attributes that {@link ExamineManifest}
+ * looks at are stored, the parsing itself always happens in
+ * {@link ExamineManifest} so that cached and freshly read jars cannot disagree.
+ * <p>
+ * The backing file is an append-only log of records. Loading, appending and
+ * compacting the log happen under a lock on a file next to it, so concurrent
+ * builds can share one cache. On load, entries of files that are gone or
+ * changed are dropped, as are the oldest entries beyond a size cap, and the log
+ * is compacted once enough of it is superseded or dropped.
+ *
+ * @since 15.0
+ */
+public final class ManifestCache {
+
+    private static final int MAGIC = 0x4E424D43; // NBMC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int COMPACT_THRESHOLD = 256;
+    private static final int MAX_ENTRIES = 20000;
+
+    private static final Map<File, ManifestCache> CACHES = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final File lockFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private ManifestCache(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getParentFile(), file.getName() + ".lock");
+    }
+
+    /**
+     * Opens the cache backed by the given file. Caches are shared within the
+     * JVM, so the file is read only once per build.
+     *
+     * @param cacheFile the backing file, created on first write
+     * @return cache instance
+     */
+    public static ManifestCache open(File cacheFile) {
+        return CACHES.computeIfAbsent(cacheFile.getAbsoluteFile(), ManifestCache::read);
+    }
+
+    //not shared, for tests
+    static ManifestCache read(File cacheFile) {
+        ManifestCache cache = new ManifestCache(cacheFile);
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * Cached manifest attributes of the given file.
+     *
+     * @param examined examined jar file
+     * @return the stored attributes, empty if the file was known to have no
+     * manifest, or null if there is no valid entry for the file
+     */
+    public Attributes get(File examined) {
+        Entry entry = entries.get(key(examined));
+        if (entry != null && entry.matches(examined)) {
+            Attributes attrs = new Attributes(entry.attributes.size());
+            for (Map.Entry<String, String> e : entry.attributes.entrySet()) {
+                attrs.putValue(e.getKey(), e.getValue());
+            }
+            return attrs;
+        }
+        return null;
+    }
+
+    /**
+     * Stores manifest attributes of the given file, both in memory and in the
+     * backing file. Failing to write the backing file is not fatal, the entry
+     * just will not survive this build.
+     *
+     * @param examined examined jar file
+     * @param attributes attributes to store, null when the file has no
+     * manifest
+     */
+    public void put(File examined, Map<String, String> attributes) {
+        Entry entry = new Entry(examined.length(), examined.lastModified(),
+                attributes != null ? new LinkedHashMap<>(attributes) : new LinkedHashMap<>());
+        String key = key(examined);
+        entries.put(key, entry);
+        try {
+            append(key, entry);
+        } catch (IOException ex) {
+            // a cache only, next build will examine the file again
+        }
+    }
+
+    private static String key(File examined) {
+        try {
+            return examined.getCanonicalPath();
+        } catch (IOException ex) {
+            return examined.getAbsolutePath();
+        }
+    }
+
+    private synchronized void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try (FileChannel lockChannel = openLock();
+                FileLock lock = lockChannel.lock()) {
+            loadLocked();
+        } catch (IOException ex) {
+            // a cache only, files are examined again
+        }
+    }
+
+    private void loadLocked() throws IOException {
+        // in the order last written, the oldest first
+        Map<String, Entry> loaded = new LinkedHashMap<>();
+        int records = 0;
+        boolean corrupted = false;
+        long valid = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                corrupted = true;
+            } else {
+                while (true) {
+                    int length;
+                    byte[] record;
+                    try {
+                        length = in.readInt();
+                        if (length <= 0 || length > MAX_RECORD_SIZE) {
+                            corrupted = true;
+                            break;
+                        }
+                        record = new byte[length];
+                        in.readFully(record);
+                    } catch (EOFException eof) {
+                        // the end, or the short tail of a build killed while appending
+                        break;
+                    }
+                    readRecord(record, loaded);
+                    records++;
+                    valid += 4 + length;
+                }
+            }
+        } catch (IOException ex) {
+            corrupted = true;
+        }
+        int dropped = records - loaded.size();
+        for (Iterator<Map.Entry<String, Entry>> it = loaded.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> e = it.next();
+            if (!e.getValue().matches(new File(e.getKey()))) {
+                it.remove();
+                dropped++;
+            }
+        }
+        for (Iterator<String> it = loaded.keySet().iterator(); loaded.size() > MAX_ENTRIES;) {
+            it.next();
+            it.remove();
+            dropped++;
+        }
+        entries.putAll(loaded);
+        if (corrupted || dropped > COMPACT_THRESHOLD) {
+            compact(loaded);
+        } else if (valid < file.length()) {
+            // appends must not follow the short tail
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private static void readRecord(byte[] record, Map<String, Entry> loaded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String key = readString(in);
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        int count = in.readInt();
+        Map<String, String> attrs = new LinkedHashMap<>(count);
+        for (int i = 0; i < count; i++) {
+            attrs.put(readString(in).intern(), readString(in));
+        }
+        // moved to the end as the latest
+        loaded.remove(key);
+        loaded.put(key, new Entry(size, lastModified, attrs));
+    }
+
+    private static byte[] writeRecord(String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length placeholder
+        writeString(out, key);
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastModified);
+        out.writeInt(entry.attributes.size());
+        for (Map.Entry<String, String> e : entry.attributes.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(record.length - 4);
+        return record;
+    }
+
+    private synchronized void append(String key, Entry entry) throws IOException {
+        file.getParentFile().mkdirs();
+        byte[] record = writeRecord(key, entry);
+        try (FileChannel lockChannel = openLock();
+                FileLock lock = lockChannel.lock();
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (channel.size() == 0) {
+                channel.write(header());
+            }
+            channel.write(ByteBuffer.wrap(record));
+        }
+    }
+
+    private FileChannel openLock() throws IOException {
+        file.getParentFile().mkdirs();
+        return FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    // only with the lock held, or appends to the replaced file would be lost
+    private void compact(Map<String, Entry> loaded) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                channel.write(header());
+                for (Map.Entry<String, Entry> e : loaded.entrySet()) {
+                    channel.write(ByteBuffer.wrap(writeRecord(e.getKey(), e.getValue())));
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    // manifest values like Export-Package easily exceed the 64k limit of writeUTF
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Corrupted manifest cache record");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Entry {
+
+        final long size;
+        final long lastModified;
+        final Map<String, String> attributes;
+
+        Entry(long size, long lastModified, Map<String, String> attributes) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.attributes = attributes;
+        }
+
+        boolean matches(File examined) {
+            return size == examined.length() && lastModified == examined.lastModified();
+        }
+    }
+}
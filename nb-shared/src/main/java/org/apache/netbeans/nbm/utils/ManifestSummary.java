@@ -0,0 +1,458 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.function.Function;
+import java.util.jar.Attributes;
+import org.codehaus.plexus.util.StringUtils;
+
+/**
+ * Immutable result of examining a manifest, see {@link ExamineManifest}. All
+ * code name bases, tokens and package names are interned and kept in plain
+ * arrays, so the many summaries alive during a large platform build share
+ * their strings and instances can be cached and passed between threads
+ * freely.
+ * <p>
+ * Only the classification (module, bundle, versions) is done eagerly. Token
+ * lists like dependencies, public packages or OSGi imports and exports are
+ * parsed on first access, most summaries are only ever asked whether they are
+ * a module or a bundle.
+ *
+ * @since 15.0
+ */
+public final class ManifestSummary {
+
+    private static final String[] NONE = new String[0];
+
+    /**
+     * Summary of a file without manifest.
+     */
+    public static final ManifestSummary EMPTY = new ManifestSummary(false, false, false, false, true, null, null,
+            null, null, "", Lazy.noList(), Lazy.noList(), Lazy.noList(), Lazy.noList(), Lazy.noList(), Lazy.noSet(),
+            Lazy.noSet(), Lazy.noSet());
+
+    private final boolean netBeansModule;
+    private final boolean osgiBundle;
+    private final boolean publicPackages;
+    private final boolean friendPackages;
+    private final boolean bundleAutoload;
+    private final String module;
+    private final String codeNameBase;
+    private final String specVersion;
+    private final String implVersion;
+    private final String locBundle;
+    private final String classpath;
+    private final Lazy<List<String>> dependencyTokens;
+    private final Lazy<List<String>> friends;
+    private final Lazy<List<String>> packages;
+    private final Lazy<List<String>> requires;
+    private final Lazy<List<String>> provides;
+    private final Lazy<Set<String>> osgiImports;
+    private final Lazy<Set<String>> osgiExports;
+    private final Lazy<Set<String>> osgiRequiredImports;
+
+    private ManifestSummary(boolean netBeansModule, boolean osgiBundle, boolean publicPackages,
+            boolean friendPackages, boolean bundleAutoload, String module, String specVersion,
+            String implVersion, String locBundle, String classpath, Lazy<List<String>> dependencyTokens,
+            Lazy<List<String>> friends, Lazy<List<String>> packages, Lazy<List<String>> requires,
+            Lazy<List<String>> provides, Lazy<Set<String>> osgiImports, Lazy<Set<String>> osgiExports,
+            Lazy<Set<String>> osgiRequiredImports) {
+        this.netBeansModule = netBeansModule;
+        this.osgiBundle = osgiBundle;
+        this.publicPackages = publicPackages;
+        this.friendPackages = friendPackages;
+        this.bundleAutoload = bundleAutoload;
+        this.module = intern(module);
+        this.codeNameBase = module != null ? intern(module.replaceFirst("/\\d+$", "")) : null;
+        this.specVersion = intern(specVersion);
+        this.implVersion = intern(implVersion);
+        this.locBundle = locBundle;
+        this.classpath = classpath;
+        this.dependencyTokens = dependencyTokens;
+        this.friends = friends;
+        this.packages = packages;
+        this.requires = requires;
+        this.provides = provides;
+        this.osgiImports = osgiImports;
+        this.osgiExports = osgiExports;
+        this.osgiRequiredImports = osgiRequiredImports;
+    }
+
+    /**
+     * Summarizes the main attributes of a manifest.
+     *
+     * @param attrs main attributes, null if there is no manifest
+     * @param populateDependencies whether to keep dependency related headers
+     * @return summary
+     */
+    public static ManifestSummary of(Attributes attrs, boolean populateDependencies) {
+        if (attrs == null) {
+            return EMPTY;
+        }
+        String module = attrs.getValue("OpenIDE-Module");
+        if (module != null) {
+            String cp = attrs.getValue(Attributes.Name.CLASS_PATH);
+            String value = attrs.getValue("OpenIDE-Module-Public-Packages");
+            String frList = attrs.getValue("OpenIDE-Module-Friends");
+            boolean hasPackages = value != null && !value.trim().equals("-");
+            Lazy<List<String>> dependencyTokens = Lazy.noList();
+            Lazy<List<String>> requires = Lazy.noList();
+            Lazy<List<String>> provides = Lazy.noList();
+            if (populateDependencies) {
+                dependencyTokens = Lazy.ofList(attrs.getValue("OpenIDE-Module-Module-Dependencies"),
+                        ManifestSummary::moduleDependencies);
+                String req = attrs.getValue("OpenIDE-Module-Requires");
+                String needs = attrs.getValue("OpenIDE-Module-Needs");
+                requires = Lazy.ofList(req == null ? needs : needs == null ? req : req + "," + needs,
+                        ManifestSummary::tokens);
+                provides = Lazy.ofList(attrs.getValue("OpenIDE-Module-Provides"), ManifestSummary::tokens);
+            }
+            return new ManifestSummary(true, false, hasPackages && frList == null, hasPackages && frList != null,
+                    true, module, attrs.getValue("OpenIDE-Module-Specification-Version"),
+                    attrs.getValue("OpenIDE-Module-Implementation-Version"),
+                    attrs.getValue("OpenIDE-Module-Localizing-Bundle"), cp == null ? "" : cp, dependencyTokens,
+                    Lazy.ofList(hasPackages ? frList : null, ManifestSummary::tokens),
+                    Lazy.ofList(hasPackages ? value : null, ManifestSummary::tokens),
+                    requires, provides, Lazy.noSet(), Lazy.noSet(), Lazy.noSet());
+        }
+
+        //check osgi headers first, let nb stuff override it, making nb default
+        String bndName = attrs.getValue("Bundle-SymbolicName");
+        if (bndName != null) {
+            String exp = attrs.getValue("Export-Package");
+            String autoload = attrs.getValue("Nbm-Maven-Plugin-Autoload");
+            Lazy<List<String>> dependencyTokens = Lazy.noList();
+            Lazy<Set<String>> imports = Lazy.noSet();
+            Lazy<Set<String>> exports = Lazy.noSet();
+            Lazy<Set<String>> requiredImports = Lazy.noSet();
+            if (populateDependencies) {
+                //well, this doesn't appear to cover
+                //the major way of declation dependencies in osgi - Import-Package
+                dependencyTokens = Lazy.ofList(attrs.getValue("Require-Bundle"), h -> list(osgiNames(h)));
+                String imp = attrs.getValue("Import-Package");
+                imports = Lazy.ofSet(imp, h -> set(osgiNames(h)));
+                requiredImports = Lazy.ofSet(imp, h -> set(requiredImports(h)));
+                exports = Lazy.ofSet(exp, h -> set(osgiNames(h)));
+            }
+            return new ManifestSummary(false, true, exp != null, false,
+                    autoload == null || Boolean.parseBoolean(autoload),
+                    bndName./* MNBMODULE-125 */replaceFirst(" *;.+", "")./* MNBMODULE-96 */replace('-', '_'),
+                    attrs.getValue("Bundle-Version"), null, null, "",
+                    dependencyTokens, Lazy.noList(), Lazy.noList(), Lazy.noList(), Lazy.noList(), imports, exports,
+                    requiredImports);
+        }
+
+        // for non-netbeans, non-osgi jars.
+        String pack = attrs.getValue("Package");
+        if (pack == null) {
+            // do we want to do that?
+            pack = attrs.getValue("Extension-Name");
+        }
+        return new ManifestSummary(false, false, false, false, true, pack,
+                attrs.getValue("Specification-Version"), attrs.getValue("Implementation-Version"), null, "",
+                Lazy.noList(), Lazy.noList(), Lazy.noList(), Lazy.noList(), Lazy.noList(), Lazy.noSet(),
+                Lazy.noSet(), Lazy.noSet());
+    }
+
+    private static List<String> moduleDependencies(String deps) {
+        StringTokenizer tokens = new StringTokenizer(deps, ",");
+        List<String> depList = new ArrayList<>();
+        while (tokens.hasMoreTokens()) {
+            String tok = tokens.nextToken();
+            //we are just interested in specification and loose dependencies.
+            int spec = tok.indexOf('>');
+            int impl = tok.indexOf('=');
+            if (spec > 0) {
+                tok = tok.substring(0, spec);
+            } else if (impl > 0) {
+                tok = tok.substring(0, impl);
+            }
+            int slash = tok.indexOf('/');
+            if (slash > 0) {
+                tok = tok.substring(0, slash);
+            }
+            depList.add(tok.trim());
+        }
+        return list(depList.toArray(NONE));
+    }
+
+    private static List<String> tokens(String header) {
+        return list(StringUtils.stripAll(StringUtils.split(header, ",")));
+    }
+
+    private static String[] osgiNames(String header) {
+        return OsgiHeader.names(header).toArray(NONE);
+    }
+
+    private static String[] requiredImports(String header) {
+        List<String> names = new ArrayList<>();
+        for (OsgiHeader.Clause clause : OsgiHeader.parse(header)) {
+            if (!clause.isOptional()) {
+                names.addAll(clause.getPaths());
+            }
+        }
+        return names.toArray(NONE);
+    }
+
+    /**
+     * Copy differing in the module flag only.
+     */
+    ManifestSummary withNetBeansModule(boolean flag) {
+        if (flag == netBeansModule) {
+            return this;
+        }
+        return new ManifestSummary(flag, osgiBundle, publicPackages, friendPackages, bundleAutoload, module,
+                specVersion, implVersion, locBundle, classpath, dependencyTokens, friends, packages, requires,
+                provides, osgiImports, osgiExports, osgiRequiredImports);
+    }
+
+    private static String intern(String value) {
+        return value != null ? value.intern() : null;
+    }
+
+    private static List<String> list(String[] values) {
+        if (values.length == 0) {
+            return Collections.emptyList();
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].intern();
+        }
+        return Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    private static Set<String> set(String[] values) {
+        if (values.length == 0) {
+            return Collections.emptySet();
+        }
+        String[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (size == 0 || !sorted[size - 1].equals(sorted[i])) {
+                sorted[size++] = sorted[i].intern();
+            }
+        }
+        return new ArraySet(size == sorted.length ? sorted : Arrays.copyOf(sorted, size));
+    }
+
+    public boolean isNetBeansModule() {
+        return netBeansModule;
+    }
+
+    public boolean isOsgiBundle() {
+        return osgiBundle;
+    }
+
+    public boolean isLocalized() {
+        return locBundle != null;
+    }
+
+    public String getLocBundle() {
+        return locBundle;
+    }
+
+    public String getSpecVersion() {
+        return specVersion;
+    }
+
+    public String getImplVersion() {
+        return implVersion;
+    }
+
+    /**
+     * Code name base of the module only. Does not include any release version.
+     *
+     * @return module code name base
+     */
+    public String getModule() {
+        return codeNameBase;
+    }
+
+    /**
+     * Full name of module: code name base, then optionally slash and major
+     * release version.
+     *
+     * @return module full name
+     */
+    public String getModuleWithRelease() {
+        return module;
+    }
+
+    public String getClasspath() {
+        return classpath;
+    }
+
+    /**
+     * returns true if there are defined public packages and there is no friend
+     * declaration.
+     *
+     * @return true if has public package
+     */
+    public boolean hasPublicPackages() {
+        return publicPackages;
+    }
+
+    /**
+     * returns true if both public packages and friend list are declared.
+     *
+     * @return true if has friend package
+     */
+    public boolean hasFriendPackages() {
+        return friendPackages;
+    }
+
+    public List<String> getDependencyTokens() {
+        return dependencyTokens.get();
+    }
+
+    public List<String> getFriends() {
+        return friends.get();
+    }
+
+    /**
+     * list of package statements from OpenIDE-Module-Public-Packages.
+     *
+     * @return list of package
+     */
+    public List<String> getPackages() {
+        return packages.get();
+    }
+
+    public List<String> getNetBeansRequiresTokens() {
+        return requires.get();
+    }
+
+    public List<String> getNetBeansProvidesTokens() {
+        return provides.get();
+    }
+
+    public Set<String> getOsgiImports() {
+        return osgiImports.get();
+    }
+
+    public Set<String> getOsgiExports() {
+        return osgiExports.get();
+    }
+
+    /**
+     * Imported packages without the ones marked
+     * <code>resolution:=optional</code>.
+     *
+     * @return mandatory imports
+     */
+    public Set<String> getOsgiRequiredImports() {
+        return osgiRequiredImports.get();
+    }
+
+    public boolean isBundleAutoload() {
+        return bundleAutoload;
+    }
+
+    @Override
+    public String toString() {
+        return "ManifestSummary[" + module + "]";
+    }
+
+    /**
+     * Read only set over a sorted array without duplicates.
+     */
+    private static final class ArraySet extends AbstractSet<String> {
+
+        private final String[] values;
+
+        ArraySet(String[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof String && Arrays.binarySearch(values, o) >= 0;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return Collections.unmodifiableList(Arrays.asList(values)).iterator();
+        }
+
+        @Override
+        public int size() {
+            return values.length;
+        }
+    }
+
+    /**
+     * Value parsed from a manifest header on first access. The header is
+     * dropped once parsed, parsing twice from concurrent threads is harmless
+     * as the results are equal.
+     */
+    private static final class Lazy<T> {
+
+        private static final Lazy<List<String>> NO_LIST = new Lazy<>(null, null, Collections.emptyList());
+        private static final Lazy<Set<String>> NO_SET = new Lazy<>(null, null, Collections.emptySet());
+
+        private final Function<String, T> parser;
+        private volatile String header;
+        private volatile T value;
+
+        private Lazy(String header, Function<String, T> parser, T value) {
+            this.header = header;
+            this.parser = parser;
+            this.value = value;
+        }
+
+        static Lazy<List<String>> noList() {
+            return NO_LIST;
+        }
+
+        static Lazy<Set<String>> noSet() {
+            return NO_SET;
+        }
+
+        static Lazy<List<String>> ofList(String header, Function<String, List<String>> parser) {
+            return header != null ? new Lazy<>(header, parser, null) : NO_LIST;
+        }
+
+        static Lazy<Set<String>> ofSet(String header, Function<String, Set<String>> parser) {
+            return header != null ? new Lazy<>(header, parser, null) : NO_SET;
+        }
+
+        T get() {
+            T toRet = value;
+            if (toRet == null) {
+                String h = header;
+                if (h == null) {
+                    // parsed in the meantime, value is written before the header is cleared
+                    return value;
+                }
+                toRet = parser.apply(h);
+                value = toRet;
+                header = null;
+            }
+            return toRet;
+        }
+    }
+}
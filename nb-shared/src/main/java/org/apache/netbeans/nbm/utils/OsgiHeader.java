@@ -0,0 +1,221 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass parser of OSGi manifest headers like
+ * <code>Import-Package</code>, <code>Export-Package</code> or
+ * <code>Require-Bundle</code>:
+ * <pre>
+ * header    ::= clause ( ',' clause ) *
+ * clause    ::= path ( ';' path ) * ( ';' parameter ) *
+ * parameter ::= directive | attribute
+ * directive ::= name ':=' value
+ * attribute ::= name '=' value
+ * </pre>
+ * Values may be quoted, commas and semicolons inside quotes (e.g. version
+ * ranges or <code>uses:=</code> package lists) do not split anything. The
+ * header is scanned char by char, only the returned names and values are
+ * allocated.
+ *
+ * @since 15.0
+ */
+public final class OsgiHeader {
+
+    private OsgiHeader() {
+    }
+
+    /**
+     * Paths of all clauses, e.g. package names of <code>Import-Package</code>
+     * or bundle names of <code>Require-Bundle</code>. Parameters are skipped
+     * without being allocated.
+     *
+     * @param header header value
+     * @return paths in header order
+     */
+    public static List<String> names(String header) {
+        List<String> names = new ArrayList<>();
+        new Scanner(header).scan(names, null);
+        return names;
+    }
+
+    /**
+     * Parses the header into clauses including their attributes and
+     * directives.
+     *
+     * @param header header value
+     * @return clauses in header order
+     */
+    public static List<Clause> parse(String header) {
+        List<Clause> clauses = new ArrayList<>();
+        new Scanner(header).scan(null, clauses);
+        return clauses;
+    }
+
+    /**
+     * One clause of a header. A clause may have several paths sharing the
+     * parameters.
+     */
+    public static final class Clause {
+
+        private final List<String> paths;
+        private final Map<String, String> attributes;
+        private final Map<String, String> directives;
+
+        Clause(List<String> paths, Map<String, String> attributes, Map<String, String> directives) {
+            this.paths = Collections.unmodifiableList(paths);
+            this.attributes = attributes.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(attributes);
+            this.directives = directives.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(directives);
+        }
+
+        public List<String> getPaths() {
+            return paths;
+        }
+
+        public Map<String, String> getAttributes() {
+            return attributes;
+        }
+
+        public Map<String, String> getDirectives() {
+            return directives;
+        }
+
+        /**
+         * @return true for <code>resolution:=optional</code>
+         */
+        public boolean isOptional() {
+            return "optional".equals(directives.get("resolution"));
+        }
+
+        @Override
+        public String toString() {
+            return paths + ";" + attributes + ";" + directives;
+        }
+    }
+
+    private static final class Scanner {
+
+        private final String header;
+        private final int length;
+        private int pos;
+
+        Scanner(String header) {
+            this.header = header;
+            this.length = header.length();
+        }
+
+        void scan(List<String> names, List<Clause> clauses) {
+            while (pos < length) {
+                List<String> paths = clauses != null ? new ArrayList<>(2) : names;
+                Map<String, String> attributes = clauses != null ? new LinkedHashMap<>() : null;
+                Map<String, String> directives = clauses != null ? new LinkedHashMap<>() : null;
+                boolean hasPaths = false;
+                while (pos < length) {
+                    skipWhitespace();
+                    int start = pos;
+                    while (pos < length && !isSeparator(header.charAt(pos))) {
+                        pos++;
+                    }
+                    int end = trimEnd(start, pos);
+                    if (pos < length && (header.charAt(pos) == '=' || header.charAt(pos) == ':')) {
+                        boolean directive = header.charAt(pos) == ':';
+                        pos += directive && pos + 1 < length && header.charAt(pos + 1) == '=' ? 2 : 1;
+                        String value = value(attributes != null);
+                        if (attributes != null) {
+                            (directive ? directives : attributes).put(header.substring(start, end), value);
+                        }
+                    } else if (end > start) {
+                        paths.add(header.substring(start, end));
+                        hasPaths = true;
+                    }
+                    if (pos < length && header.charAt(pos++) == ',') {
+                        break;
+                    }
+                }
+                if (clauses != null && hasPaths) {
+                    clauses.add(new Clause(paths, attributes, directives));
+                }
+            }
+        }
+
+        /**
+         * Reads a possibly quoted value up to the next separator.
+         */
+        private String value(boolean keep) {
+            skipWhitespace();
+            String value = null;
+            if (pos < length && header.charAt(pos) == '"') {
+                int start = ++pos;
+                StringBuilder escaped = null;
+                while (pos < length && header.charAt(pos) != '"') {
+                    if (header.charAt(pos) == '\\' && pos + 1 < length) {
+                        if (keep) {
+                            if (escaped == null) {
+                                escaped = new StringBuilder();
+                            }
+                            escaped.append(header, start, pos);
+                            start = pos + 1;
+                        }
+                        pos++;
+                    }
+                    pos++;
+                }
+                if (keep) {
+                    value = escaped == null ? header.substring(start, pos)
+                            : escaped.append(header, start, pos).toString();
+                }
+                if (pos < length) {
+                    pos++; // closing quote
+                }
+            }
+            int start = pos;
+            while (pos < length && header.charAt(pos) != ';' && header.charAt(pos) != ',') {
+                pos++;
+            }
+            if (keep && value == null) {
+                value = header.substring(start, trimEnd(start, pos));
+            }
+            return value;
+        }
+
+        private static boolean isSeparator(char c) {
+            return c == ';' || c == ',' || c == '=' || c == ':';
+        }
+
+        private void skipWhitespace() {
+            while (pos < length && Character.isWhitespace(header.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private int trimEnd(int start, int end) {
+            int e = end;
+            while (e > start && Character.isWhitespace(header.charAt(e - 1))) {
+                e--;
+            }
+            return e;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Matches class or package names against a set of package patterns in time
+ * proportional to the length of the name, no matter how many patterns there
+ * are. Understands the tokens of <code>OpenIDE-Module-Public-Packages</code>:
+ * <ul>
+ * <li><code>pkg.*</code> matches classes directly in <code>pkg</code></li>
+ * <li><code>pkg.**</code> matches classes in <code>pkg</code> and all its
+ * subpackages</li>
+ * </ul>
+ * and plain prefixes, e.g. for OSGi exports of whole package trees or the
+ * packages provided by the JDK.
+ * <p>
+ * Not thread safe while being built, safe for concurrent matching afterwards.
+ *
+ * @since 15.0
+ */
+public final class PackageTrie {
+
+    // the name starts with the node's prefix
+    private static final int PREFIX = 1;
+    // at least one more character follows the prefix
+    private static final int SUBTREE = 2;
+    // at least one more character follows the prefix, none of them a dot
+    private static final int SEGMENT = 4;
+
+    private final Node root = new Node();
+
+    /**
+     * Trie of the classes visible through public package tokens.
+     *
+     * @param tokens e.g. <code>org.openide.util.*</code> or
+     * <code>org.netbeans.api.**</code>
+     * @return new trie
+     */
+    public static PackageTrie ofPublicPackages(Collection<String> tokens) {
+        PackageTrie trie = new PackageTrie();
+        for (String token : tokens) {
+            trie.addPublicPackage(token);
+        }
+        return trie;
+    }
+
+    /**
+     * Adds a public package token. A token ending with <code>.**</code>
+     * matches every class under the package, any other token has its last
+     * character (the <code>*</code> of <code>pkg.*</code>) removed and matches
+     * classes directly in the package.
+     *
+     * @param token public package token
+     * @return this trie
+     */
+    public PackageTrie addPublicPackage(String token) {
+        if (token.endsWith(".**")) {
+            insert(token.substring(0, token.length() - 2), SUBTREE);
+        } else if (!token.isEmpty()) {
+            insert(token.substring(0, token.length() - 1), SEGMENT);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a plain prefix, matching every name that starts with it.
+     *
+     * @param prefix e.g. <code>javax.</code>
+     * @return this trie
+     */
+    public PackageTrie addPrefix(String prefix) {
+        insert(prefix, PREFIX);
+        return this;
+    }
+
+    /**
+     * @param name class or package name, dot separated
+     * @return true if any pattern matches
+     */
+    public boolean matches(String name) {
+        int length = name.length();
+        int lastDot = name.lastIndexOf('.');
+        Node node = root;
+        for (int i = 0; ; i++) {
+            int flags = node.flags;
+            if ((flags & PREFIX) != 0) {
+                return true;
+            }
+            if (i == length) {
+                return false;
+            }
+            if ((flags & SUBTREE) != 0 || ((flags & SEGMENT) != 0 && i > lastDot)) {
+                return true;
+            }
+            node = node.child(name.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private void insert(String prefix, int flag) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.getOrAddChild(prefix.charAt(i));
+        }
+        node.flags |= flag;
+    }
+
+    private static final class Node {
+
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_NODES = new Node[0];
+
+        int flags;
+        // package names branch little, a short array beats any map
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_NODES;
+
+        Node child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrAddChild(char c) {
+            Node node = child(c);
+            if (node == null) {
+                node = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = node;
+            }
+            return node;
+        }
+    }
+}
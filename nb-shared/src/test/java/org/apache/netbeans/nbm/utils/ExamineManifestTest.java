@@ -19,15 +19,28 @@ package org.apache.netbeans.nbm.utils;
  * under the License.
  */
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 import org.apache.maven.plugin.logging.SystemStreamLog;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 
 class ExamineManifestTest {
 
+    @TempDir
+    File dir;
+
     @Test
     void testDependencyParsing() throws Exception {
         ExamineManifest em = new ExamineManifest(new SystemStreamLog());
@@ -80,4 +93,33 @@ class ExamineManifestTest {
         assertEquals("[org.eclipse.equinox.registry, org.eclipse.equinox.common]", em.getDependencyTokens().toString());
     }
 
+    @Test
+    void testExamineAll() throws Exception {
+        Map<String, File> files = new LinkedHashMap<>();
+        for (int i = 20; i > 0; i--) {
+            Manifest mf = new Manifest();
+            mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            mf.getMainAttributes().putValue("OpenIDE-Module", "org.example.m" + i + "/1");
+            mf.getMainAttributes().putValue("OpenIDE-Module-Module-Dependencies", "org.example.api > 1.0");
+            File jar = new File(dir, "m" + i + ".jar");
+            try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), mf)) {
+                out.flush();
+            }
+            files.put("m" + i, jar);
+        }
+        File broken = new File(dir, "broken.jar");
+        Files.write(broken.toPath(), new byte[]{1, 2, 3});
+        files.put("broken", broken);
+        files.put("missing", new File(dir, "missing.jar"));
+
+        Map<String, ExamineManifest> examined = ExamineManifest.examineAll(files, true, null, new SystemStreamLog());
+        assertFalse(examined.containsKey("broken"));
+        assertFalse(examined.containsKey("missing"));
+        assertEquals(new ArrayList<>(files.keySet()).subList(0, 20), new ArrayList<>(examined.keySet()));
+        ExamineManifest em = examined.get("m7");
+        assertTrue(em.isNetBeansModule());
+        assertEquals("org.example.m7", em.getModule());
+        assertEquals("[org.example.api]", em.getDependencyTokens().toString());
+    }
+
 }
@@ -0,0 +1,273 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import jdk.security.jarsigner.JarSigner;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JarEntryReaderTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testDeflatedManifest() throws Exception {
+        File jar = new File(dir, "deflated.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest())) {
+            out.putNextEntry(new JarEntry("Info/info.xml"));
+            out.write("<module targetcluster=\"extra\"/>".getBytes(StandardCharsets.UTF_8));
+            out.setComment("comment at the end of the archive");
+        }
+        assertSameManifest(jar);
+        assertEquals("<module targetcluster=\"extra\"/>",
+                new String(JarEntryReader.readEntry(jar, "Info/info.xml"), StandardCharsets.UTF_8));
+        assertNull(JarEntryReader.readEntry(jar, "Info/missing.xml"));
+    }
+
+    @Test
+    void testStoredManifest() throws Exception {
+        File jar = new File(dir, "stored.jar");
+        byte[] mf = manifestBytes();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(stored(JarFile.MANIFEST_NAME, mf));
+            out.write(mf);
+        }
+        assertSameManifest(jar);
+    }
+
+    @Test
+    void testNoManifest() throws Exception {
+        File jar = new File(dir, "plain.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("a/b.txt"));
+            out.write(1);
+        }
+        assertNull(JarEntryReader.readManifest(jar));
+    }
+
+    @Test
+    void testManifestNameIgnoresCase() throws Exception {
+        File jar = new File(dir, "lowercase.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("meta-inf/manifest.mf"));
+            out.write(manifestBytes());
+        }
+        assertSameManifest(jar);
+    }
+
+    @Test
+    void testPrefixedArchive() throws Exception {
+        File jar = new File(dir, "module.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest())) {
+            out.putNextEntry(new JarEntry("a.txt"));
+        }
+        File exe = new File(dir, "launcher.jar");
+        try (OutputStream out = new FileOutputStream(exe)) {
+            out.write("#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(StandardCharsets.UTF_8));
+            Files.copy(jar.toPath(), out);
+        }
+        assertSameManifest(exe);
+    }
+
+    @Test
+    void testReadEntries() throws Exception {
+        File jar = new File(dir, "classes.jar");
+        byte[] stored = "stored".getBytes(StandardCharsets.UTF_8);
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest())) {
+            out.putNextEntry(new JarEntry("org/example/"));
+            for (int i = 0; i < 100; i++) {
+                out.putNextEntry(new JarEntry("org/example/C" + i + ".class"));
+                for (int j = 0; j <= i; j++) {
+                    out.write(("content of " + i).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            out.putNextEntry(stored("org/example/Stored.class", stored));
+            out.write(stored);
+            out.putNextEntry(new JarEntry("org/example/readme.txt"));
+        }
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        JarEntryReader.readEntries(jar, name -> name.endsWith(".class"), read::put);
+        assertEquals(101, read.size());
+        assertEquals("org/example/C0.class", read.keySet().iterator().next());
+        try (ZipFile zf = new ZipFile(jar)) {
+            for (Map.Entry<String, byte[]> e : read.entrySet()) {
+                try (InputStream in = zf.getInputStream(zf.getEntry(e.getKey()))) {
+                    assertArrayEquals(in.readAllBytes(), e.getValue(), e.getKey());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testZip64() throws Exception {
+        File jar = new File(dir, "zip64.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest())) {
+            // more entries than fit into the plain end of central directory record
+            for (int i = 0; i < 0x10000 + 10; i++) {
+                out.putNextEntry(new JarEntry("e/" + i));
+            }
+            out.putNextEntry(new JarEntry("last.txt"));
+            out.write("last".getBytes(StandardCharsets.UTF_8));
+        }
+        try (ZipFile zf = new ZipFile(jar)) {
+            assertEquals(0x10000 + 12, zf.size());
+        }
+        assertSameManifest(jar);
+        assertArrayEquals("last".getBytes(StandardCharsets.UTF_8), JarEntryReader.readEntry(jar, "last.txt"));
+    }
+
+    @Test
+    void testSignedJar() throws Exception {
+        File keytool = new File(System.getProperty("java.home"), "bin/keytool");
+        assumeTrue(keytool.canExecute() || new File(keytool.getPath() + ".exe").canExecute());
+        File keystore = new File(dir, "keystore.p12");
+        Process p = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "test", "-keyalg", "RSA",
+                "-keysize", "2048", "-dname", "CN=test", "-validity", "2", "-storetype", "PKCS12",
+                "-keystore", keystore.getPath(), "-storepass", "changeit", "-keypass", "changeit")
+                .redirectErrorStream(true).redirectOutput(new File(dir, "keytool.log")).start();
+        assumeTrue(p.waitFor() == 0 && keystore.isFile());
+
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keystore)) {
+            ks.load(in, "changeit".toCharArray());
+        }
+        PrivateKey key = (PrivateKey) ks.getKey("test", "changeit".toCharArray());
+        Certificate[] chain = ks.getCertificateChain("test");
+        CertPath path = CertificateFactory.getInstance("X.509").generateCertPath(Arrays.asList(chain));
+
+        File unsigned = new File(dir, "unsigned.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(unsigned), manifest())) {
+            out.putNextEntry(new JarEntry("org/example/A.class"));
+            out.write(new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE});
+        }
+        File signed = new File(dir, "signed.jar");
+        try (ZipFile in = new ZipFile(unsigned); OutputStream out = new FileOutputStream(signed)) {
+            new JarSigner.Builder(key, path).signerName("TEST").build().sign(in, out);
+        }
+        Manifest mf = assertSameManifest(signed);
+        // per entry digests added by the signer are there too
+        assertNotNull(mf.getAttributes("org/example/A.class"));
+        assertNotNull(JarEntryReader.readEntry(signed, "META-INF/TEST.SF"));
+    }
+
+    @Test
+    void testCopyJar() throws Exception {
+        File jar = new File(dir, "module.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest())) {
+            out.putNextEntry(new JarEntry("org/example/A.class"));
+            out.write(new byte[100000]);
+        }
+        File copy = new File(dir, "copy.jar");
+        Manifest copied;
+        try (InputStream in = new FileInputStream(jar); OutputStream out = new FileOutputStream(copy)) {
+            copied = JarEntryReader.copyJar(in, out);
+        }
+        assertArrayEquals(Files.readAllBytes(jar.toPath()), Files.readAllBytes(copy.toPath()));
+        assertEquals(JarEntryReader.readManifest(jar), copied);
+
+        // a manifest after other entries is not looked for
+        File late = new File(dir, "late.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(late))) {
+            out.putNextEntry(new ZipEntry("a.txt"));
+            out.write(1);
+            out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+            out.write(manifestBytes());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(late)) {
+            assertNull(JarEntryReader.copyJar(in, out));
+        }
+        assertArrayEquals(Files.readAllBytes(late.toPath()), out.toByteArray());
+
+        byte[] text = "not a jar".getBytes(StandardCharsets.UTF_8);
+        out.reset();
+        assertNull(JarEntryReader.copyJar(new ByteArrayInputStream(text), out));
+        assertArrayEquals(text, out.toByteArray());
+    }
+
+    private static Manifest assertSameManifest(File jar) throws IOException {
+        Manifest expected;
+        try (JarFile jf = new JarFile(jar)) {
+            expected = jf.getManifest();
+        }
+        assertNotNull(expected);
+        Manifest actual = JarEntryReader.readManifest(jar);
+        assertEquals(expected, actual);
+        assertEquals("org.netbeans.modules.nbjunit/1", actual.getMainAttributes().getValue("OpenIDE-Module"));
+        return actual;
+    }
+
+    private static Manifest manifest() {
+        Manifest mf = new Manifest();
+        Attributes attrs = mf.getMainAttributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue("OpenIDE-Module", "org.netbeans.modules.nbjunit/1");
+        attrs.putValue("OpenIDE-Module-Specification-Version", "1.2");
+        return mf;
+    }
+
+    private static byte[] manifestBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest().write(out);
+        return out.toByteArray();
+    }
+
+    private static ZipEntry stored(String name, byte[] content) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setCrc(crc.getValue());
+        return entry;
+    }
+}
@@ -0,0 +1,171 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ManifestCacheTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testWarmCacheDoesNotOpenJar() throws Exception {
+        File jar = createJar(new File(dir, "module.jar"));
+        File cacheFile = new File(dir, "cache/manifests.bin");
+
+        ExamineManifest em = new ExamineManifest(new SystemStreamLog());
+        em.setCache(ManifestCache.read(cacheFile));
+        em.setJarFile(jar);
+        em.setPopulateDependencies(true);
+        em.checkFile();
+        assertTrue(em.isNetBeansModule());
+        assertTrue(cacheFile.isFile());
+
+        // same size and timestamp, but no longer a jar
+        long stamp = jar.lastModified();
+        byte[] garbage = new byte[(int) jar.length()];
+        Files.write(jar.toPath(), garbage);
+        jar.setLastModified(stamp);
+
+        em = new ExamineManifest(new SystemStreamLog());
+        em.setCache(ManifestCache.read(cacheFile));
+        em.setJarFile(jar);
+        em.setPopulateDependencies(true);
+        em.checkFile();
+        assertTrue(em.isNetBeansModule());
+        assertEquals("org.netbeans.modules.nbjunit", em.getModule());
+        assertEquals("1.2", em.getSpecVersion());
+        assertEquals("[org.netbeans.insane, org.netbeans.libs.junit4]", em.getDependencyTokens().toString());
+        assertEquals("[org.netbeans.modules.nbjunit.*]", em.getPackages().toString());
+    }
+
+    @Test
+    void testChangedFileIsMiss() throws Exception {
+        File jar = createJar(new File(dir, "module.jar"));
+        ManifestCache cache = ManifestCache.read(new File(dir, "manifests.bin"));
+        ExamineManifest em = new ExamineManifest(new SystemStreamLog());
+        em.setCache(cache);
+        em.setJarFile(jar);
+        em.checkFile();
+        assertNotNull(cache.get(jar));
+
+        jar.setLastModified(jar.lastModified() - 10000);
+        assertNull(cache.get(jar));
+    }
+
+    @Test
+    void testTruncatedLog() throws Exception {
+        File jar = createJar(new File(dir, "module.jar"));
+        File other = createJar(new File(dir, "other.jar"));
+        File cacheFile = new File(dir, "manifests.bin");
+        ManifestCache cache = ManifestCache.read(cacheFile);
+        ExamineManifest em = new ExamineManifest(new SystemStreamLog());
+        em.setCache(cache);
+        em.setJarFile(jar);
+        em.checkFile();
+        em.setJarFile(other);
+        em.checkFile();
+
+        // build killed in the middle of appending a record
+        try (OutputStream out = Files.newOutputStream(cacheFile.toPath(), StandardOpenOption.APPEND)) {
+            out.write(new byte[]{0, 0, 1, 0, 42, 42});
+        }
+        cache = ManifestCache.read(cacheFile);
+        Attributes attrs = cache.get(jar);
+        assertNotNull(attrs);
+        assertEquals("org.netbeans.modules.nbjunit/1", attrs.getValue("OpenIDE-Module"));
+        assertNotNull(cache.get(other));
+        // compacted back to a readable log
+        assertNotNull(ManifestCache.read(cacheFile).get(other));
+
+        // the short tail is cut off, so records appended later stay readable
+        File third = createJar(new File(dir, "third.jar"));
+        em.setCache(cache);
+        em.setJarFile(third);
+        em.checkFile();
+        cache = ManifestCache.read(cacheFile);
+        assertNotNull(cache.get(jar));
+        assertNotNull(cache.get(third));
+    }
+
+    @Test
+    void testStaleEntriesEvicted() throws Exception {
+        File cacheFile = new File(dir, "manifests.bin");
+        ManifestCache cache = ManifestCache.read(cacheFile);
+        File kept = createJar(new File(dir, "kept.jar"));
+        cache.put(kept, Collections.singletonMap("OpenIDE-Module", "kept"));
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            File file = new File(dir, "target" + i + ".jar");
+            Files.write(file.toPath(), new byte[]{1});
+            cache.put(file, Collections.singletonMap("OpenIDE-Module", "m" + i));
+            files.add(file);
+        }
+        long size = cacheFile.length();
+        assertNotNull(ManifestCache.read(cacheFile).get(files.get(0)));
+
+        // a clean build removes the files, their entries are dropped on load
+        for (File file : files) {
+            assertTrue(file.delete());
+        }
+        cache = ManifestCache.read(cacheFile);
+        assertEquals("kept", cache.get(kept).getValue("OpenIDE-Module"));
+        assertTrue(cacheFile.length() < size / 100, cacheFile.length() + " of " + size);
+
+        // a file changed in place is dropped too, without compacting for a single entry
+        assertTrue(kept.setLastModified(kept.lastModified() - 10000));
+        size = cacheFile.length();
+        assertNull(ManifestCache.read(cacheFile).get(kept));
+        assertEquals(size, cacheFile.length());
+    }
+
+    private static File createJar(File file) throws IOException {
+        Manifest mf = new Manifest();
+        Attributes attrs = mf.getMainAttributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue("OpenIDE-Module", "org.netbeans.modules.nbjunit/1");
+        attrs.putValue("OpenIDE-Module-Specification-Version", "1.2");
+        attrs.putValue("OpenIDE-Module-Public-Packages", "org.netbeans.modules.nbjunit.*");
+        attrs.putValue("OpenIDE-Module-Module-Dependencies", "org.netbeans.insane/1, org.netbeans.libs.junit4 > 1.0");
+        attrs.putValue("Created-By", "test");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file), mf)) {
+            out.flush();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,207 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class ManifestSummaryTest {
+
+    private static final int MODULES = 2000;
+    private static final int BUNDLES = 500;
+
+    @Test
+    void testModuleSummary() throws Exception {
+        ManifestSummary s = ManifestSummary.of(module(7), true);
+        assertTrue(s.isNetBeansModule());
+        assertFalse(s.isOsgiBundle());
+        assertEquals("org.example.m7", s.getModule());
+        assertEquals("org.example.m7/1", s.getModuleWithRelease());
+        assertEquals("1.7", s.getSpecVersion());
+        assertTrue(s.hasFriendPackages());
+        assertFalse(s.hasPublicPackages());
+        assertEquals("[org.example.m7.api.*, org.example.m7.spi.**]", s.getPackages().toString());
+        assertEquals(15, s.getDependencyTokens().size());
+        assertEquals("org.example.api7", s.getDependencyTokens().get(0));
+        assertEquals("[org.openide.modules.os.Unix, org.example.token2]", s.getNetBeansRequiresTokens().toString());
+        assertThrows(UnsupportedOperationException.class, () -> s.getPackages().add("x"));
+
+        ManifestSummary b = ManifestSummary.of(bundle(3), true);
+        assertTrue(b.isOsgiBundle());
+        assertEquals("org.example.bundle_3", b.getModule());
+        assertTrue(b.getOsgiImports().contains("org.example.pkg4"));
+        assertFalse(b.getOsgiImports().contains("org.example.pkg99"));
+        assertFalse(b.getOsgiImports().contains(null));
+        assertEquals(b.getOsgiImports(), new HashSet<>(b.getOsgiImports()));
+        assertThrows(UnsupportedOperationException.class, () -> b.getOsgiExports().clear());
+
+        assertSame(ManifestSummary.EMPTY, ManifestSummary.of(null, true));
+    }
+
+    @Test
+    void testWithoutDependencies() throws Exception {
+        for (Attributes attrs : List.of(module(1), bundle(1))) {
+            ManifestSummary s = ManifestSummary.of(attrs, true);
+            ManifestSummary nodeps = ManifestSummary.of(attrs, false);
+            assertEquals(s.getModule(), nodeps.getModule());
+            assertEquals(s.getPackages(), nodeps.getPackages());
+            assertTrue(nodeps.getDependencyTokens().isEmpty());
+            assertTrue(nodeps.getOsgiImports().isEmpty());
+        }
+    }
+
+    @Test
+    void testConcurrentMaterialization() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < 50; i++) {
+                ManifestSummary b = ManifestSummary.of(bundle(i), true);
+                ManifestSummary m = ManifestSummary.of(module(i), true);
+                List<Future<List<Object>>> results = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    results.add(executor.submit(() -> List.of(b.getOsgiImports(), b.getOsgiExports(),
+                            m.getDependencyTokens(), m.getFriends(), m.getPackages())));
+                }
+                List<Object> first = results.get(0).get();
+                for (Future<List<Object>> result : results) {
+                    assertEquals(first, result.get());
+                }
+                assertEquals(30, b.getOsgiImports().size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Synthetic 2000 module platform. Every manifest is parsed from its own
+     * bytes, just like when reading jars, so the per manifest objects kept
+     * before summaries existed held one string instance per token occurrence.
+     */
+    @Test
+    void testFootprint() throws Exception {
+        List<ManifestSummary> summaries = new ArrayList<>();
+        for (int i = 0; i < MODULES; i++) {
+            summaries.add(ManifestSummary.of(module(i), true));
+        }
+        for (int i = 0; i < BUNDLES; i++) {
+            summaries.add(ManifestSummary.of(bundle(i), true));
+        }
+
+        Set<String> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<String> values = new HashSet<>();
+        long occurrences = 0;
+        long occurrenceChars = 0;
+        for (ManifestSummary s : summaries) {
+            List<Collection<String>> all = List.of(s.getDependencyTokens(), s.getFriends(), s.getPackages(),
+                    s.getNetBeansRequiresTokens(), s.getNetBeansProvidesTokens(), s.getOsgiImports(),
+                    s.getOsgiExports(), Collections.singleton(s.getModule()));
+            for (Collection<String> tokens : all) {
+                for (String token : tokens) {
+                    instances.add(token);
+                    values.add(token);
+                    occurrences++;
+                    occurrenceChars += token.length();
+                }
+            }
+        }
+        // every distinct token is held exactly once
+        assertEquals(values.size(), instances.size());
+        long distinctChars = 0;
+        for (String v : values) {
+            distinctChars += v.length();
+        }
+        // 24 bytes String header + 16 bytes array header, latin1 content
+        long before = occurrences * 40 + occurrenceChars;
+        long after = instances.size() * 40L + distinctChars;
+        assertTrue(after * 5 < before, "token strings retained: " + after + " bytes, was " + before);
+    }
+
+    private static Attributes module(int i) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Manifest-Version: 1.0\n");
+        sb.append("OpenIDE-Module: org.example.m").append(i).append("/1\n");
+        sb.append("OpenIDE-Module-Specification-Version: 1.").append(i).append('\n');
+        sb.append("OpenIDE-Module-Public-Packages: org.example.m").append(i).append(".api.*, org.example.m")
+                .append(i).append(".spi.**\n");
+        sb.append("OpenIDE-Module-Friends: ");
+        for (int f = 0; f < 10; f++) {
+            sb.append(f > 0 ? ", " : "").append("org.example.friend").append((i + f) % 40);
+        }
+        sb.append('\n');
+        sb.append("OpenIDE-Module-Module-Dependencies: ");
+        for (int d = 0; d < 15; d++) {
+            int api = (i + d) % 50;
+            sb.append(d > 0 ? ", " : "").append("org.example.api").append(api).append("/1 > 1.").append(api);
+        }
+        sb.append('\n');
+        sb.append("OpenIDE-Module-Requires: org.openide.modules.os.Unix, org.example.token").append(i % 5).append('\n');
+        sb.append("OpenIDE-Module-Provides: org.example.service").append(i % 20).append('\n');
+        return parse(sb);
+    }
+
+    private static Attributes bundle(int i) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Manifest-Version: 1.0\n");
+        sb.append("Bundle-SymbolicName: org.example.bundle-").append(i).append(";singleton:=true\n");
+        sb.append("Bundle-Version: 2.").append(i).append('\n');
+        sb.append("Export-Package: org.example.bundle").append(i).append(";version=\"2.0\"\n");
+        sb.append("Import-Package: ");
+        for (int p = 0; p < 30; p++) {
+            sb.append(p > 0 ? "," : "").append("org.example.pkg").append((i + p) % 200)
+                    .append(";version=\"[1.0,2)\"");
+        }
+        sb.append('\n');
+        sb.append("Require-Bundle: org.example.bundle-").append((i + 1) % BUNDLES).append('\n');
+        return parse(sb);
+    }
+
+    private static Attributes parse(StringBuilder sb) throws IOException {
+        // wrap long lines the way manifests are written
+        StringBuilder wrapped = new StringBuilder();
+        for (String line : sb.toString().split("\n")) {
+            while (line.length() > 70) {
+                wrapped.append(line, 0, 70).append("\n ");
+                line = line.substring(70);
+            }
+            wrapped.append(line).append('\n');
+        }
+        return new Manifest(new ByteArrayInputStream(wrapped.toString().getBytes(StandardCharsets.UTF_8)))
+                .getMainAttributes();
+    }
+}
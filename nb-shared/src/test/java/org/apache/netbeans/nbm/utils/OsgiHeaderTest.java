@@ -0,0 +1,90 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class OsgiHeaderTest {
+
+    @Test
+    void testQuotedValues() {
+        String header = "org.a;version=\"[1.0,2)\";uses:=\"org.b,org.c\", org.b ; version = 1.2 ,"
+                + "org.c;org.d;resolution:=optional;x=\"a\\\"b;c\"";
+        assertEquals(List.of("org.a", "org.b", "org.c", "org.d"), OsgiHeader.names(header));
+
+        List<OsgiHeader.Clause> clauses = OsgiHeader.parse(header);
+        assertEquals(3, clauses.size());
+        assertEquals("[1.0,2)", clauses.get(0).getAttributes().get("version"));
+        assertEquals("org.b,org.c", clauses.get(0).getDirectives().get("uses"));
+        assertFalse(clauses.get(0).isOptional());
+        assertEquals("1.2", clauses.get(1).getAttributes().get("version"));
+        assertEquals(List.of("org.c", "org.d"), clauses.get(2).getPaths());
+        assertTrue(clauses.get(2).isOptional());
+        assertEquals("a\"b;c", clauses.get(2).getAttributes().get("x"));
+    }
+
+    @Test
+    void testDegenerateHeaders() {
+        assertEquals(List.of(), OsgiHeader.names(""));
+        assertEquals(List.of(), OsgiHeader.names(" , ,"));
+        assertEquals(List.of("a"), OsgiHeader.names("a,"));
+        assertEquals(List.of("a"), OsgiHeader.names("a;v=\"unterminated, b"));
+        assertEquals(List.of("org.eclipse.equinox.registry", "org.eclipse.equinox.common"),
+                OsgiHeader.names("org.eclipse.equinox.registry;bundle-version=\"[3.4.0,4.0.0)\","
+                        + "org.eclipse.equinox.common;bundle-version=\"[3.2.0,4.0.0)\""));
+    }
+
+    @Test
+    void testLargeExportPackage() {
+        // shaped like the exports of the maven embedder, every package using many others
+        StringBuilder sb = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String pkg = "org.example.p" + i;
+            expected.add(pkg);
+            sb.append(i > 0 ? "," : "").append(pkg).append(";version=\"3.9.").append(i).append("\";uses:=\"");
+            for (int u = 0; u < 20; u++) {
+                sb.append(u > 0 ? "," : "").append("org.example.p").append((i + u) % 3000);
+            }
+            sb.append('"');
+        }
+        String header = sb.toString();
+        assertEquals(expected, OsgiHeader.names(header));
+        List<OsgiHeader.Clause> clauses = OsgiHeader.parse(header);
+        assertEquals(3000, clauses.size());
+        assertEquals("3.9.2999", clauses.get(2999).getAttributes().get("version"));
+    }
+
+    @Test
+    void testOptionalImportsAreNotRequired() {
+        Attributes attrs = new Attributes();
+        attrs.putValue("Bundle-SymbolicName", "org.example.bundle");
+        attrs.putValue("Import-Package", "org.a;version=\"[1,2)\",org.b;resolution:=optional,org.c");
+        ManifestSummary s = ManifestSummary.of(attrs, true);
+        assertEquals(3, s.getOsgiImports().size());
+        assertEquals(2, s.getOsgiRequiredImports().size());
+        assertFalse(s.getOsgiRequiredImports().contains("org.b"));
+    }
+}
@@ -0,0 +1,58 @@
+package org.apache.netbeans.nbm.utils;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class PackageTrieTest {
+
+    @Test
+    void testPublicPackages() {
+        PackageTrie trie = PackageTrie.ofPublicPackages(List.of("org.milos.*", "org.tomas.**", "org.milos.sub.**"));
+        assertTrue(trie.matches("org.milos.Test"));
+        assertTrue(trie.matches("org.milos.Test$Inner"));
+        assertFalse(trie.matches("org.milos.pack.Test"));
+        assertTrue(trie.matches("org.milos.sub.deep.Test"));
+        assertFalse(trie.matches("org.milos."));
+        assertFalse(trie.matches("org.milos"));
+        assertFalse(trie.matches("org.milosclass"));
+        assertTrue(trie.matches("org.tomas.Test"));
+        assertTrue(trie.matches("org.tomas.pack.Test"));
+        assertFalse(trie.matches("org.tomas."));
+        assertFalse(trie.matches("org.tomasz.Test"));
+        assertFalse(trie.matches(""));
+    }
+
+    @Test
+    void testPrefixes() {
+        PackageTrie trie = new PackageTrie().addPrefix("java.").addPrefix("org.xml.sax").addPublicPackage("org.a.*");
+        assertTrue(trie.matches("java.util"));
+        assertTrue(trie.matches("java."));
+        assertFalse(trie.matches("java"));
+        assertTrue(trie.matches("org.xml.sax"));
+        assertTrue(trie.matches("org.xml.saxon"));
+        assertTrue(trie.matches("org.a.B"));
+        assertFalse(trie.matches("org.a.b.C"));
+        assertTrue(new PackageTrie().addPrefix("").matches(""));
+        assertFalse(new PackageTrie().matches("java.util"));
+    }
+}
@@ -25,9 +25,11 @@ import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,6 +53,7 @@ import org.apache.netbeans.nbm.model.NetBeansModule;
 import org.apache.netbeans.nbm.model.io.xpp3.NetBeansModuleXpp3Reader;
 import org.apache.netbeans.nbm.utils.AbstractNetbeansMojo;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.ManifestCache;
 import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
 import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.artifact.Artifact;
@@ -68,16 +71,28 @@ public abstract class AbstractNbmMojo extends AbstractNetbeansMojo {
     @Parameter(defaultValue = "${project}", required = true, readonly = true)
     protected MavenProject project;
 
+    /**
+     * Keep the examined manifest entries of dependency jars in a cache inside
+     * the local repository, so that subsequent builds do not have to open the
+     * jars again.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "true", property = "netbeans.manifest.cache")
+    protected boolean useManifestCache;
+
     protected final RepositorySystem repositorySystem;
     protected final MavenProjectHelper mavenProjectHelper;
     protected final ProjectDependenciesResolver projectDependenciesResolver;
     protected final Artifacts artifacts;
+    protected final ManifestExaminer manifestExaminer;
 
-    public AbstractNbmMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts) {
+    public AbstractNbmMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer) {
         this.repositorySystem = repositorySystem;
         this.mavenProjectHelper = mavenProjectHelper;
         this.projectDependenciesResolver = projectDependenciesResolver;
         this.artifacts = artifacts;
+        this.manifestExaminer = manifestExaminer;
     }
 
     static Dependency resolveNetBeansDependency(Artifacts artifacts, Artifact artifact, List<Dependency> deps, ExamineManifest manifest, Log log) {
@@ -136,9 +151,60 @@ public abstract class AbstractNbmMojo extends AbstractNetbeansMojo {
         return new NetBeansModule();
     }
 
+    /**
+     * The persistent manifest cache of the local repository.
+     *
+     * @return cache or null if disabled or the local repository is unknown
+     */
+    protected final ManifestCache getManifestCache() {
+        if (!useManifestCache || session == null || session.getRepositorySession() == null) {
+            return null;
+        }
+        File basedir = session.getRepositorySession().getLocalRepository().getBasedir();
+        if (basedir == null || !basedir.isDirectory()) {
+            return null;
+        }
+        return ManifestCache.open(new File(basedir, ".cache/nbm-maven-plugin/manifests.bin"));
+    }
+
+    static ExamineManifest examineArtifact(Artifact artifact, Map<Artifact, ExamineManifest> examinerCache,
+                                           ManifestExaminer examiner, ManifestCache manifestCache, Log log)
+            throws MojoExecutionException {
+        ExamineManifest depExaminator = examinerCache.get(artifact);
+        if (depExaminator == null) {
+            if (examiner != null) {
+                depExaminator = examiner.examine(artifact.getFile(), false, manifestCache, log);
+            } else {
+                depExaminator = new ExamineManifest(log);
+                depExaminator.setCache(manifestCache);
+                depExaminator.setArtifactFile(artifact.getFile());
+                depExaminator.checkFile();
+            }
+            examinerCache.put(artifact, depExaminator);
+        }
+        return depExaminator;
+    }
+
+    /**
+     * Examines all the artifacts not in the cache yet concurrently, so that
+     * later lookups while walking the dependency tree are cache hits.
+     */
+    static void prefetchManifests(Collection<Artifact> artifacts, Map<Artifact, ExamineManifest> examinerCache,
+                                  ManifestExaminer examiner, ManifestCache manifestCache, Log log) {
+        Map<Artifact, File> files = new LinkedHashMap<>();
+        for (Artifact artifact : artifacts) {
+            if (artifact.getFile() != null && !examinerCache.containsKey(artifact)) {
+                files.put(artifact, artifact.getFile());
+            }
+        }
+        examinerCache.putAll(examiner != null ? examiner.examineAll(files, false, manifestCache, log)
+                : ExamineManifest.examineAll(files, false, manifestCache, log));
+    }
+
     static List<Artifact> getLibraryArtifacts(Artifacts artifacts, DependencyNode treeRoot, NetBeansModule module,
                                               Collection<Artifact> runtimeArtifacts,
-                                              Map<Artifact, ExamineManifest> examinerCache, Log log,
+                                              Map<Artifact, ExamineManifest> examinerCache,
+                                              ManifestExaminer examiner, ManifestCache manifestCache, Log log,
                                               boolean useOsgiDependencies) throws MojoExecutionException {
         List<Artifact> include = new ArrayList<>();
         if (module != null) {
@@ -146,8 +212,9 @@ public abstract class AbstractNbmMojo extends AbstractNetbeansMojo {
             if (module.getLibraries() != null) {
                 librList.addAll(module.getLibraries());
             }
+            prefetchManifests(runtimeArtifacts, examinerCache, examiner, manifestCache, log);
             CollectLibrariesNodeVisitor visitor = new CollectLibrariesNodeVisitor(artifacts, librList,
-                    new ArrayList<>(runtimeArtifacts), examinerCache, log,
+                    new ArrayList<>(runtimeArtifacts), examinerCache, examiner, manifestCache, log,
                     treeRoot, useOsgiDependencies);
             treeRoot.accept(visitor);
             include.addAll(visitor.getArtifacts());
@@ -192,17 +259,13 @@ public abstract class AbstractNbmMojo extends AbstractNetbeansMojo {
                 .filter(a -> a.getArtifactHandler().isAddedToClasspath())
                 .filter(a -> compileScopes.contains(a.getScope()))
                 .collect(Collectors.toList()));
+        prefetchManifests(artifacts.stream().filter(a -> !libraryArtifacts.contains(a)).collect(Collectors.toList()),
+                examinerCache, manifestExaminer, getManifestCache(), log);
         for (Artifact artifact : artifacts) {
             if (libraryArtifacts.contains(artifact)) {
                 continue;
             }
-            ExamineManifest depExaminator = examinerCache.get(artifact);
-            if (depExaminator == null) {
-                depExaminator = new ExamineManifest(log);
-                depExaminator.setArtifactFile(artifact.getFile());
-                depExaminator.checkFile();
-                examinerCache.put(artifact, depExaminator);
-            }
+            ExamineManifest depExaminator = examineArtifact(artifact, examinerCache, manifestExaminer, getManifestCache(), log);
             Dependency dep = resolveNetBeansDependency(this.artifacts, artifact, deps, depExaminator, log);
             if (dep != null) {
                 ModuleWrapper wr = new ModuleWrapper();
@@ -267,54 +330,103 @@ public abstract class AbstractNbmMojo extends AbstractNetbeansMojo {
 
     protected final ArtifactResult turnJarToNbmFile(Artifact art, MavenProject project)
             throws MojoExecutionException {
-        if ("jar".equals(artifacts.getArtifactType(art).getId()) || "nbm".equals(artifacts.getArtifactType(art).getId())) {
-            //TODO, it would be nice to have a check to see if the
-            // "to-be-created" module nbm artifact is actually already in the
-            // list of dependencies (as "nbm-file") or not..
-            // that would be a timesaver
-            ExamineManifest mnf = new ExamineManifest(getLog());
-            File jar = art.getFile();
-            if (!jar.isFile()) {
-                //MNBMODULE-210 with recent CoS changes in netbeans (7.4) jar will be file as we link open projects in
-                // the build via WorkspaceReader.
-                // That's fine here, as all we need is to know if project is osgi or nbm module.
-                // the nbm file has to be in local repository though.
-                String path = artifacts.pathOf(art);
-                File jar2 = new File(session.getRepositorySession().getLocalRepository().getBasedir(), path.replace("/", File.separator));
-                File manifest = new File(jar, "META-INF/MANIFEST.MF");
-
-                if (!jar2.isFile() || !manifest.isFile()) {
-                    getLog().warn("MNBMODULE-131: need to at least run install phase on " + jar2);
-                    return new ArtifactResult(null, null);
-                }
-                mnf.setManifestFile(manifest);
-            } else {
-                mnf.setJarFile(jar);
-            }
-            mnf.checkFile();
-            if (mnf.isNetBeansModule()) {
+        return turnJarsToNbmFiles(Collections.singletonList(art), project).get(0);
+    }
+
+    /**
+     * Bulk variant of {@link #turnJarToNbmFile}. The nbm files of all the
+     * module jars are resolved in a single request, so the resolver checks
+     * and downloads them concurrently instead of one round trip per module.
+     *
+     * @param arts artifacts to convert
+     * @param project project with the remote repositories to resolve from
+     * @return results in the order of <code>arts</code>
+     * @throws MojoExecutionException for the first module whose nbm file
+     * cannot be resolved
+     */
+    protected final List<ArtifactResult> turnJarsToNbmFiles(List<Artifact> arts, MavenProject project)
+            throws MojoExecutionException {
+        List<ArtifactResult> results = new ArrayList<>(arts.size());
+        // nbm files to resolve, with the index of the result and the manifest of the module jar
+        List<ArtifactRequest> requests = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        List<ExamineManifest> manifests = new ArrayList<>();
+        for (Artifact art : arts) {
+            ExamineManifest mnf = examineJar(art);
+            if (mnf != null && mnf.isNetBeansModule()) {
                 ArtifactType type = artifacts.getArtifactType(NbmFileArtifactHandler.NAME);
                 HashMap<String, String> props = new HashMap<>(art.getProperties());
                 props.putAll(type.getProperties());
                 Artifact nbmArt = new DefaultArtifact(art.getGroupId(), art.getArtifactId(), art.getClassifier(), type.getExtension(), art.getVersion(), props, type);
-                try {
-                    ArtifactRequest request = new ArtifactRequest(nbmArt, project.getRemoteProjectRepositories(), "nbm");
-                    org.eclipse.aether.resolution.ArtifactResult result = repositorySystem.resolveArtifact(session.getRepositorySession(), request);
-                    nbmArt = result.getArtifact();
-                } catch (ArtifactResolutionException ex) {
-                    //shall we check before actually resolving from repos?
-                    nbmArt = checkReactor(art, nbmArt);
-                    if (nbmArt.getFile() == null) {
-                        throw new MojoExecutionException("Failed to retrieve the nbm file from repository", ex);
-                    }
+                requests.add(new ArtifactRequest(nbmArt, project.getRemoteProjectRepositories(), "nbm"));
+                indexes.add(results.size());
+                manifests.add(mnf);
+                results.add(null);
+            } else if (mnf != null && mnf.isOsgiBundle()) {
+                results.add(new ArtifactResult(null, mnf));
+            } else {
+                results.add(new ArtifactResult(null, null));
+            }
+        }
+        if (requests.isEmpty()) {
+            return results;
+        }
+        List<org.eclipse.aether.resolution.ArtifactResult> resolved;
+        try {
+            resolved = repositorySystem.resolveArtifacts(session.getRepositorySession(), requests);
+        } catch (ArtifactResolutionException ex) {
+            // has a result for every request, the failed ones are checked below
+            resolved = ex.getResults();
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            org.eclipse.aether.resolution.ArtifactResult result = resolved.get(i);
+            Artifact art = arts.get(indexes.get(i));
+            Artifact nbmArt = result.getArtifact();
+            if (!result.isResolved()) {
+                //shall we check before actually resolving from repos?
+                nbmArt = checkReactor(art, requests.get(i).getArtifact());
+                if (nbmArt.getFile() == null) {
+                    throw new MojoExecutionException("Failed to retrieve the nbm file from repository",
+                            new ArtifactResolutionException(Collections.singletonList(result)));
                 }
-                return new ArtifactResult(nbmArt, mnf);
             }
-            if (mnf.isOsgiBundle()) {
-                return new ArtifactResult(null, mnf);
+            results.set(indexes.get(i), new ArtifactResult(nbmArt, manifests.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * @return examined manifest of a jar or nbm artifact, null for other
+     * types and for reactor modules not installed yet
+     */
+    private ExamineManifest examineJar(Artifact art) throws MojoExecutionException {
+        if (!"jar".equals(artifacts.getArtifactType(art).getId()) && !"nbm".equals(artifacts.getArtifactType(art).getId())) {
+            return null;
+        }
+        //TODO, it would be nice to have a check to see if the
+        // "to-be-created" module nbm artifact is actually already in the
+        // list of dependencies (as "nbm-file") or not..
+        // that would be a timesaver
+        File jar = art.getFile();
+        if (!jar.isFile()) {
+            //MNBMODULE-210 with recent CoS changes in netbeans (7.4) jar will be file as we link open projects in
+            // the build via WorkspaceReader.
+            // That's fine here, as all we need is to know if project is osgi or nbm module.
+            // the nbm file has to be in local repository though.
+            String path = artifacts.pathOf(art);
+            File jar2 = new File(session.getRepositorySession().getLocalRepository().getBasedir(), path.replace("/", File.separator));
+            File manifest = new File(jar, "META-INF/MANIFEST.MF");
+
+            if (!jar2.isFile() || !manifest.isFile()) {
+                getLog().warn("MNBMODULE-131: need to at least run install phase on " + jar2);
+                return null;
             }
+            ExamineManifest mnf = new ExamineManifest(getLog());
+            mnf.setManifestFile(manifest);
+            mnf.checkFile();
+            return mnf;
         }
-        return new ArtifactResult(null, null);
+        return manifestExaminer.examine(jar, false, getManifestCache(), getLog());
     }
 
     protected static final class ArtifactResult {
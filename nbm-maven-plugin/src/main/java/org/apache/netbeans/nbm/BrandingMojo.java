@@ -99,8 +99,8 @@ public final class BrandingMojo extends AbstractNbmMojo {
     private String cluster;
 
     @Inject
-    public BrandingMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts) {
-        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts);
+    public BrandingMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer) {
+        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts, manifestExaminer);
     }
 
     @Override
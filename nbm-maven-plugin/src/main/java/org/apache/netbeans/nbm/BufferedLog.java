@@ -0,0 +1,192 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Log recording messages of work done on another thread, replayed to the
+ * mojo's log later so that the output reads as if the work was done in order.
+ * Enablement of the levels is taken from the target log.
+ */
+final class BufferedLog implements Log {
+
+    private static final int DEBUG = 0;
+    private static final int INFO = 1;
+    private static final int WARN = 2;
+    private static final int ERROR = 3;
+
+    private final Log target;
+    private final List<Message> messages = new ArrayList<>();
+
+    BufferedLog(Log target) {
+        this.target = target;
+    }
+
+    /**
+     * Writes the recorded messages to the target log and forgets them.
+     */
+    synchronized void replay() {
+        for (Message m : messages) {
+            switch (m.level) {
+                case DEBUG:
+                    if (m.content == null) {
+                        target.debug(m.error);
+                    } else if (m.error == null) {
+                        target.debug(m.content);
+                    } else {
+                        target.debug(m.content, m.error);
+                    }
+                    break;
+                case INFO:
+                    if (m.content == null) {
+                        target.info(m.error);
+                    } else if (m.error == null) {
+                        target.info(m.content);
+                    } else {
+                        target.info(m.content, m.error);
+                    }
+                    break;
+                case WARN:
+                    if (m.content == null) {
+                        target.warn(m.error);
+                    } else if (m.error == null) {
+                        target.warn(m.content);
+                    } else {
+                        target.warn(m.content, m.error);
+                    }
+                    break;
+                default:
+                    if (m.content == null) {
+                        target.error(m.error);
+                    } else if (m.error == null) {
+                        target.error(m.content);
+                    } else {
+                        target.error(m.content, m.error);
+                    }
+            }
+        }
+        messages.clear();
+    }
+
+    private synchronized void add(int level, CharSequence content, Throwable error) {
+        messages.add(new Message(level, content, error));
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return target.isDebugEnabled();
+    }
+
+    @Override
+    public void debug(CharSequence content) {
+        if (isDebugEnabled()) {
+            add(DEBUG, content, null);
+        }
+    }
+
+    @Override
+    public void debug(CharSequence content, Throwable error) {
+        if (isDebugEnabled()) {
+            add(DEBUG, content, error);
+        }
+    }
+
+    @Override
+    public void debug(Throwable error) {
+        if (isDebugEnabled()) {
+            add(DEBUG, null, error);
+        }
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return target.isInfoEnabled();
+    }
+
+    @Override
+    public void info(CharSequence content) {
+        add(INFO, content, null);
+    }
+
+    @Override
+    public void info(CharSequence content, Throwable error) {
+        add(INFO, content, error);
+    }
+
+    @Override
+    public void info(Throwable error) {
+        add(INFO, null, error);
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return target.isWarnEnabled();
+    }
+
+    @Override
+    public void warn(CharSequence content) {
+        add(WARN, content, null);
+    }
+
+    @Override
+    public void warn(CharSequence content, Throwable error) {
+        add(WARN, content, error);
+    }
+
+    @Override
+    public void warn(Throwable error) {
+        add(WARN, null, error);
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return target.isErrorEnabled();
+    }
+
+    @Override
+    public void error(CharSequence content) {
+        add(ERROR, content, null);
+    }
+
+    @Override
+    public void error(CharSequence content, Throwable error) {
+        add(ERROR, content, error);
+    }
+
+    @Override
+    public void error(Throwable error) {
+        add(ERROR, null, error);
+    }
+
+    private static final class Message {
+
+        final int level;
+        final CharSequence content;
+        final Throwable error;
+
+        Message(int level, CharSequence content, Throwable error) {
+            this.level = level;
+            this.content = content;
+            this.error = error;
+        }
+    }
+}
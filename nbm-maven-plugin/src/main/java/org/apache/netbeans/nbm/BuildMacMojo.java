@@ -106,8 +106,8 @@ public final class BuildMacMojo extends AbstractNbmMojo {
     private String macAppTitle;
 
     @Inject
-    public BuildMacMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts) {
-        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts);
+    public BuildMacMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer) {
+        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts, manifestExaminer);
     }
 
     @Override
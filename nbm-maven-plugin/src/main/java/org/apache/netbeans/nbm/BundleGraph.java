@@ -0,0 +1,255 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import org.apache.netbeans.nbm.CreateClusterAppMojo.BundleTuple;
+
+/**
+ * Dependencies among the OSGi bundles of an application, used to give the
+ * bundles that no module depends on the cluster of a related bundle. A
+ * bundle depends on another one if it imports a package the other one
+ * exports or if it requires the other one.
+ * <p>
+ * The clusters are the ones found by the original passes over the bundles
+ * left: every pass gives a bundle the cluster of the first known bundle
+ * depending on it, "down", and passes are repeated while any bundle is
+ * found. Then a single pass does the same with the bundles it depends on,
+ * "up", and the down passes run again, and so on. Here the passes are not
+ * run. In the down passes, the pass and position a bundle is found at follow
+ * from those of the earliest found bundle depending on it, so a worklist
+ * ordered by them visits every bundle and dependency once. An up pass only
+ * looks at bundles with a dependency found since they were last looked at.
+ */
+final class BundleGraph {
+
+    private final List<BundleTuple> bundles;
+    // indexes of the bundles each bundle depends on, and of the ones depending on it
+    private final int[][] dependencies;
+    private final int[][] dependants;
+
+    BundleGraph(List<BundleTuple> bundles) {
+        this.bundles = bundles;
+        int size = bundles.size();
+        Map<String, List<Integer>> exporters = new HashMap<>();
+        Map<String, List<Integer>> names = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            BundleTuple bundle = bundles.get(i);
+            for (String pack : bundle.manifest.getOsgiExports()) {
+                exporters.computeIfAbsent(pack, k -> new ArrayList<>(1)).add(i);
+            }
+            names.computeIfAbsent(bundle.manifest.getModule(), k -> new ArrayList<>(1)).add(i);
+        }
+        List<List<Integer>> deps = new ArrayList<>(size);
+        List<List<Integer>> rdeps = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            deps.add(new ArrayList<>());
+            rdeps.add(new ArrayList<>());
+        }
+        // last bundle linked to each bundle, against duplicate edges
+        int[] linked = new int[size];
+        Arrays.fill(linked, -1);
+        for (int i = 0; i < size; i++) {
+            BundleTuple bundle = bundles.get(i);
+            for (String pack : bundle.manifest.getOsgiImports()) {
+                for (int j : exporters.getOrDefault(pack, Collections.emptyList())) {
+                    link(i, j, linked, deps, rdeps);
+                }
+            }
+            //dependencyTokens are requireBundle - matches the module property
+            for (String name : bundle.manifest.getDependencyTokens()) {
+                for (int j : names.getOrDefault(name, Collections.emptyList())) {
+                    link(i, j, linked, deps, rdeps);
+                }
+            }
+        }
+        dependencies = toArrays(deps);
+        dependants = toArrays(rdeps);
+    }
+
+    private static void link(int from, int to, int[] linked, List<List<Integer>> deps, List<List<Integer>> rdeps) {
+        if (from != to && linked[to] != from) {
+            linked[to] = from;
+            deps.get(from).add(to);
+            rdeps.get(to).add(from);
+        }
+    }
+
+    private static int[][] toArrays(List<List<Integer>> lists) {
+        int[][] toRet = new int[lists.size()][];
+        for (int i = 0; i < toRet.length; i++) {
+            toRet[i] = lists.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+        return toRet;
+    }
+
+    /**
+     * Gives bundles the cluster of a related bundle with a known cluster.
+     * Bundles not related to any known one are left alone.
+     *
+     * @param known number of leading bundles with a known cluster, in the
+     * order they were found
+     */
+    void assign(int known) {
+        new Propagation(known).run();
+    }
+
+    private final class Propagation {
+
+        private final int known;
+        // order in which bundles became known, -1 while unknown
+        private final int[] order;
+        private int found;
+        // pass of the down passes a bundle would be found in, and by which bundle
+        private final int[] pass;
+        private final int[] parent;
+        // bundles to look at in the next up pass
+        private TreeSet<Integer> upCandidates = new TreeSet<>();
+        private TreeSet<Integer> upCurrent;
+        private int upPosition;
+
+        Propagation(int known) {
+            this.known = known;
+            int size = bundles.size();
+            order = new int[size];
+            Arrays.fill(order, -1);
+            pass = new int[size];
+            Arrays.fill(pass, Integer.MAX_VALUE);
+            parent = new int[size];
+            for (int i = 0; i < known; i++) {
+                order[i] = found++;
+            }
+            for (int i = 0; i < known; i++) {
+                for (int dependant : dependants[i]) {
+                    if (dependant >= known) {
+                        upCandidates.add(dependant);
+                    }
+                }
+            }
+        }
+
+        void run() {
+            List<Integer> seeds = new ArrayList<>();
+            for (int i = 0; i < known; i++) {
+                seeds.add(i);
+            }
+            while (found < bundles.size()) {
+                down(seeds);
+                if (found == bundles.size()) {
+                    break;
+                }
+                seeds = up();
+                if (seeds.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Down passes until nothing is found, the seeds being known before
+         * the first pass.
+         */
+        private void down(List<Integer> seeds) {
+            // pass and position of the bundles as found by the passes
+            PriorityQueue<Long> queue = new PriorityQueue<>();
+            for (int seed : seeds) {
+                relax(seed, 1, -1, queue);
+            }
+            while (!queue.isEmpty()) {
+                long next = queue.poll();
+                int position = (int) next;
+                int bundle = known + position;
+                int p = (int) (next >>> 32);
+                if (order[bundle] >= 0 || pass[bundle] != p) {
+                    continue;
+                }
+                found(bundle, parent[bundle]);
+                relax(bundle, p, position, queue);
+            }
+        }
+
+        private void relax(int from, int fromPass, int fromPosition, PriorityQueue<Long> queue) {
+            for (int to : dependencies[from]) {
+                if (order[to] >= 0) {
+                    continue;
+                }
+                int position = to - known;
+                // checked later in the same pass, or in the next one
+                int p = fromPosition < position ? fromPass : fromPass + 1;
+                if (p < pass[to]) {
+                    pass[to] = p;
+                    parent[to] = from;
+                    queue.add(((long) p << 32) | position);
+                }
+            }
+        }
+
+        /**
+         * A single up pass.
+         *
+         * @return bundles found, in the order found
+         */
+        private List<Integer> up() {
+            List<Integer> toRet = new ArrayList<>();
+            upCurrent = upCandidates;
+            upCandidates = new TreeSet<>();
+            while (!upCurrent.isEmpty()) {
+                int bundle = upCurrent.pollFirst();
+                upPosition = bundle;
+                if (order[bundle] >= 0) {
+                    continue;
+                }
+                int first = -1;
+                for (int dep : dependencies[bundle]) {
+                    if (order[dep] >= 0 && (first == -1 || order[dep] < order[first])) {
+                        first = dep;
+                    }
+                }
+                if (first != -1) {
+                    found(bundle, first);
+                    toRet.add(bundle);
+                }
+            }
+            upCurrent = null;
+            return toRet;
+        }
+
+        private void found(int bundle, int from) {
+            order[bundle] = found++;
+            bundles.get(bundle).cluster = bundles.get(from).cluster;
+            for (int dependant : dependants[bundle]) {
+                if (order[dependant] < 0) {
+                    // still ahead in the current up pass, or looked at by the next one
+                    if (upCurrent != null && dependant > upPosition) {
+                        upCurrent.add(dependant);
+                    } else {
+                        upCandidates.add(dependant);
+                    }
+                }
+            }
+        }
+    }
+}
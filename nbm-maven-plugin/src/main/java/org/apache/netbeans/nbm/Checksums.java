@@ -0,0 +1,154 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of files, streamed through a fixed buffer so that files of any
+ * size take the same memory. Results are remembered in this JVM by path,
+ * size and timestamp, so the same library jar or downloaded file is read
+ * once per build no matter how many goals ask.
+ */
+final class Checksums {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // direct, so that CRC32 and the digests work on it without copying
+    private static final ThreadLocal<ByteBuffer> BUFFERS
+            = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final Map<String, Stamped> CRCS = new ConcurrentHashMap<>();
+    private static final Map<String, Stamped> SHA256S = new ConcurrentHashMap<>();
+
+    private Checksums() {
+    }
+
+    /**
+     * @param file file to check
+     * @return CRC-32 of the content, as the NetBeans update tracking uses it
+     * @throws IOException when the file cannot be read
+     */
+    static long crc32(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Stamped known = CRCS.get(path);
+        if (known != null && known.matches(size, lastModified)) {
+            return (Long) known.value;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        long value = crc.getValue();
+        CRCS.put(path, new Stamped(size, lastModified, value));
+        return value;
+    }
+
+    /**
+     * @param file file to hash
+     * @return hex SHA-256 of the content
+     * @throws IOException when the file cannot be read
+     */
+    static String sha256(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Stamped known = SHA256S.get(path);
+        if (known != null && known.matches(size, lastModified)) {
+            return (String) known.value;
+        }
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = BUFFERS.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        String value = hex(digest.digest());
+        SHA256S.put(path, new Stamped(size, lastModified, value));
+        return value;
+    }
+
+    /**
+     * @param content bytes to hash
+     * @return hex SHA-256 of the bytes
+     */
+    static String sha256(byte[] content) {
+        return hex(sha256().digest(content));
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform has to support it
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param bytes bytes, such as a digest
+     * @return lower case hex of the bytes
+     */
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static final class Stamped {
+
+        final long size;
+        final long lastModified;
+        final Object value;
+
+        Stamped(long size, long lastModified, Object value) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.value = value;
+        }
+
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+    }
+}
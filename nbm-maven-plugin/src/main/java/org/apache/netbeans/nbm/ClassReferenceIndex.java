@@ -0,0 +1,392 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.netbeans.nbm.utils.JarEntryReader;
+
+/**
+ * Persistent index of the classes defined and referenced by jar files, used
+ * by the runtime verification of <code>nbm:manifest</code>. Repository
+ * artifacts never change, so each jar is analyzed once and the result is
+ * shared by all modules and all later builds.
+ * <p>
+ * Entries are keyed by the SHA-256 of the jar content, so the same jar copied
+ * elsewhere (e.g. into a reactor module's target folder) reuses the entry. An
+ * entry is a small file of its own, written to a temporary file and moved in
+ * place so concurrent builds never see a partial entry, and read through a
+ * memory mapping. Layout of an entry:
+ * <pre>
+ * int magic, int version,
+ * int packageCount, packageCount * record,
+ * int count, count * record
+ * </pre>
+ * with the packages first, so that {@link #getPackages} reads them without
+ * the classes. A record is
+ * <pre>
+ * byte flags, unsigned short length, length bytes of UTF-8 name
+ * </pre>
+ * where flags has {@link #DEFINED} and/or {@link #REFERENCED} set.
+ */
+final class ClassReferenceIndex {
+
+    private static final int MAGIC = 0x4E42434C; // NBCL
+    private static final int VERSION = 3;
+    private static final int DEFINED = 1;
+    private static final int REFERENCED = 2;
+
+    private static final Map<File, ClassReferenceIndex> INDEXES = new ConcurrentHashMap<>();
+
+    private final File directory;
+
+    private ClassReferenceIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the index stored in the given directory, created on first write.
+     *
+     * @param directory index directory
+     * @return index instance
+     */
+    static ClassReferenceIndex open(File directory) {
+        return INDEXES.computeIfAbsent(directory.getAbsoluteFile(), ClassReferenceIndex::new);
+    }
+
+    /**
+     * Classes of a jar file, taken from the index if possible. Directories and
+     * other files are analyzed every time.
+     *
+     * @param file jar file or class folder
+     * @return defined and referenced classes
+     * @throws IOException when the file cannot be analyzed
+     */
+    JarClasses get(File file) throws IOException {
+        if (!file.isFile() || !file.getName().endsWith(".jar")) {
+            return scan(file);
+        }
+        return get(file, entryOf(file));
+    }
+
+    /**
+     * Packages of a jar file, taken from the index without reading the
+     * classes if possible. A jar not in the index yet is analyzed and added,
+     * but only its packages are kept.
+     *
+     * @param file jar file or class folder
+     * @return defined and referenced packages
+     * @throws IOException when the file cannot be analyzed
+     */
+    JarPackages getPackages(File file) throws IOException {
+        if (!file.isFile() || !file.getName().endsWith(".jar")) {
+            return scan(file).getPackages();
+        }
+        File entry = entryOf(file);
+        JarPackages packages = readPackages(entry);
+        if (packages == null) {
+            packages = get(file, entry).getPackages();
+        }
+        return packages;
+    }
+
+    private File entryOf(File file) throws IOException {
+        String hash = Checksums.sha256(file);
+        return new File(directory, hash.substring(0, 2) + File.separator + hash + ".idx");
+    }
+
+    private static JarClasses get(File file, File entry) throws IOException {
+        JarClasses classes = read(entry);
+        if (classes == null) {
+            classes = scan(file);
+            try {
+                write(entry, classes);
+            } catch (IOException ex) {
+                // an index only, the jar is analyzed again next time
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Analyzes the file without consulting any index. The file is read once,
+     * jars through a memory mapping, and every class file is both recorded as
+     * defined and parsed for its references by {@link ClassReferenceReader}.
+     * Which files are looked at matches <code>ClassFileVisitorUtils</code> of
+     * maven-dependency-analyzer.
+     *
+     * @param file jar file or class folder
+     * @return defined and referenced classes
+     * @throws IOException when the file cannot be analyzed
+     */
+    static JarClasses scan(File file) throws IOException {
+        Set<String> defined = new HashSet<>();
+        Set<String> referenced = new HashSet<>();
+        if (file.getPath().endsWith(".jar")) {
+            JarEntryReader.readEntries(file, name -> name.endsWith(".class") && name.indexOf('-') == -1,
+                    (name, content) -> visitClass(name.substring(0, name.length() - 6).replace('/', '.'), content,
+                            defined, referenced));
+        } else if (file.isDirectory()) {
+            Path root = file.toPath();
+            List<Path> classes;
+            try (Stream<Path> files = Files.walk(root)) {
+                classes = files.filter(path -> path.getFileName().toString().endsWith(".class"))
+                        .collect(Collectors.toList());
+            }
+            for (Path path : classes) {
+                String name = root.relativize(path).toString();
+                visitClass(name.substring(0, name.length() - 6).replace(File.separatorChar, '.'),
+                        Files.readAllBytes(path), defined, referenced);
+            }
+        } else if (file.exists()) {
+            throw new IllegalArgumentException("Cannot accept visitor on URL: " + file.toURI().toURL());
+        }
+        return new JarClasses(defined, referenced);
+    }
+
+    private static void visitClass(String className, byte[] content, Set<String> defined, Set<String> referenced)
+            throws IOException {
+        if (className.indexOf('$') < 0) {
+            defined.add(className);
+        }
+        ClassReferenceReader.read(className, content, referenced);
+    }
+
+    /**
+     * @param className class name with dots as package separators
+     * @return the package, empty for the default package
+     */
+    static String packageOf(String className) {
+        int dot = className.lastIndexOf('.');
+        return dot < 0 ? "" : className.substring(0, dot);
+    }
+
+    /**
+     * @return the entry or null when missing or unreadable
+     */
+    private static JarClasses read(File entry) {
+        if (!entry.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            readNames(buffer, null, null);
+            Set<String> defined = new HashSet<>();
+            Set<String> referenced = new HashSet<>();
+            readNames(buffer, defined, referenced);
+            return new JarClasses(defined, referenced);
+        } catch (IOException | BufferUnderflowException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the packages of the entry or null when missing or unreadable
+     */
+    private static JarPackages readPackages(File entry) {
+        if (!entry.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            Set<String> defined = new HashSet<>();
+            Set<String> referenced = new HashSet<>();
+            readNames(buffer, defined, referenced);
+            // the classes must be there for the entry to be complete
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 3) {
+                return null;
+            }
+            return new JarPackages(defined, referenced);
+        } catch (IOException | BufferUnderflowException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads a count and as many records, skipping them when the sets are null.
+     */
+    private static void readNames(ByteBuffer buffer, Set<String> defined, Set<String> referenced) {
+        int count = buffer.getInt();
+        byte[] name = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int flags = buffer.get();
+            int length = buffer.getShort() & 0xFFFF;
+            if (defined == null) {
+                if (length > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                buffer.position(buffer.position() + length);
+                continue;
+            }
+            if (name.length < length) {
+                name = new byte[length];
+            }
+            buffer.get(name, 0, length);
+            String value = new String(name, 0, length, StandardCharsets.UTF_8);
+            if ((flags & DEFINED) != 0) {
+                defined.add(value);
+            }
+            if ((flags & REFERENCED) != 0) {
+                referenced.add(value);
+            }
+        }
+    }
+
+    private static void write(File entry, JarClasses classes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                (classes.getDefinedClasses().size() + classes.getReferencedClasses().size()) * 40);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeNames(out, classes.getDefinedPackages(), classes.getReferencedPackages());
+        writeNames(out, classes.getDefinedClasses(), classes.getReferencedClasses());
+        out.flush();
+
+        File parent = entry.getParentFile();
+        parent.mkdirs();
+        File temp = File.createTempFile(entry.getName(), ".tmp", parent);
+        try {
+            Files.write(temp.toPath(), bytes.toByteArray());
+            Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, Set<String> defined, Set<String> referenced)
+            throws IOException {
+        Map<String, Integer> flags = new TreeMap<>();
+        for (String name : defined) {
+            flags.merge(name, DEFINED, (a, b) -> a | b);
+        }
+        for (String name : referenced) {
+            flags.merge(name, REFERENCED, (a, b) -> a | b);
+        }
+        out.writeInt(flags.size());
+        for (Map.Entry<String, Integer> e : flags.entrySet()) {
+            byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IOException("Class name too long: " + e.getKey());
+            }
+            out.writeByte(e.getValue());
+            out.writeShort(name.length);
+            out.write(name);
+        }
+    }
+
+    /**
+     * Packages defined in and referenced from a jar or class folder, with
+     * dots as separators and the empty string for the default package.
+     */
+    static final class JarPackages {
+
+        private final Set<String> defined;
+        private final Set<String> referenced;
+
+        JarPackages(Set<String> defined, Set<String> referenced) {
+            this.defined = Collections.unmodifiableSet(defined);
+            this.referenced = Collections.unmodifiableSet(referenced);
+        }
+
+        Set<String> getDefinedPackages() {
+            return defined;
+        }
+
+        Set<String> getReferencedPackages() {
+            return referenced;
+        }
+    }
+
+    /**
+     * Classes defined in and referenced from a jar or class folder, with
+     * dots as package separators.
+     */
+    static final class JarClasses {
+
+        private final Set<String> defined;
+        private final Set<String> referenced;
+        // collapsed on first use, usually a small fraction of the classes
+        private volatile JarPackages packages;
+
+        JarClasses(Set<String> defined, Set<String> referenced) {
+            this.defined = Collections.unmodifiableSet(defined);
+            this.referenced = Collections.unmodifiableSet(referenced);
+        }
+
+        Set<String> getDefinedClasses() {
+            return defined;
+        }
+
+        Set<String> getReferencedClasses() {
+            return referenced;
+        }
+
+        JarPackages getPackages() {
+            JarPackages toRet = packages;
+            if (toRet == null) {
+                toRet = new JarPackages(packages(defined), packages(referenced));
+                packages = toRet;
+            }
+            return toRet;
+        }
+
+        Set<String> getDefinedPackages() {
+            return getPackages().getDefinedPackages();
+        }
+
+        Set<String> getReferencedPackages() {
+            return getPackages().getReferencedPackages();
+        }
+
+        private static Set<String> packages(Set<String> classes) {
+            Set<String> packages = new HashSet<>();
+            for (String name : classes) {
+                packages.add(packageOf(name));
+            }
+            return packages;
+        }
+    }
+}
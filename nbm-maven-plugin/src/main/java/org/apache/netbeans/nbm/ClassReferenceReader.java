@@ -0,0 +1,534 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Collects the classes referenced by a class file straight from its bytes,
+ * without building any ASM visitors. The constant pool provides the class
+ * entries and the descriptors of invoked methods, the remaining references
+ * come from descriptors, signatures and annotations of the class, its fields
+ * and methods and from the local variable tables. Method bodies are skipped
+ * entirely.
+ * <p>
+ * The result is the same set <code>ASMDependencyAnalyzer</code> collects:
+ * dotted class names, inner classes (anything with <code>$</code>) left out,
+ * field types of accessed fields, type annotations outside of methods and
+ * annotation defaults not included. The only difference is in the default
+ * package, where every class constant other than the class itself is
+ * reported.
+ */
+final class ClassReferenceReader {
+
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELDREF = 9;
+    private static final int METHODREF = 10;
+    private static final int INTERFACE_METHODREF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    private final byte[] b;
+    private final Set<String> referenced;
+    // offset of the content of each constant, just behind its tag
+    private int[] offsets;
+    private String[] strings;
+
+    private ClassReferenceReader(byte[] classFile, Set<String> referenced) {
+        this.b = classFile;
+        this.referenced = referenced;
+    }
+
+    /**
+     * Adds the classes referenced by a class file.
+     *
+     * @param className class name, for error reporting
+     * @param classFile content of the class file
+     * @param referenced receives dotted class names
+     * @throws IOException when the class file is corrupt
+     */
+    static void read(String className, byte[] classFile, Set<String> referenced) throws IOException {
+        try {
+            new ClassReferenceReader(classFile, referenced).read();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new IOException("Byte code of '" + className + "' is corrupt", ex);
+        }
+    }
+
+    private void read() throws IOException {
+        if (readInt(0) != 0xCAFEBABE) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+        int count = u2(8);
+        offsets = new int[count];
+        strings = new String[count];
+        int pos = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = b[pos] & 0xFF;
+            offsets[i] = pos + 1;
+            switch (tag) {
+                case UTF8:
+                    pos += 3 + u2(pos + 1);
+                    break;
+                case INTEGER:
+                case FLOAT:
+                    pos += 5;
+                    break;
+                case LONG:
+                case DOUBLE:
+                    pos += 9;
+                    i++;
+                    break;
+                case CLASS:
+                case STRING:
+                case METHOD_TYPE:
+                case MODULE:
+                case PACKAGE:
+                    pos += 3;
+                    break;
+                case FIELDREF:
+                case METHODREF:
+                case INTERFACE_METHODREF:
+                case NAME_AND_TYPE:
+                case DYNAMIC:
+                case INVOKE_DYNAMIC:
+                    pos += 5;
+                    break;
+                case METHOD_HANDLE:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool type '" + tag + "'");
+            }
+        }
+        int thisClass = u2(pos + 2);
+        for (int i = 1; i < count; i++) {
+            int offset = offsets[i];
+            if (offset == 0) {
+                // second slot of a long or double
+                continue;
+            }
+            switch (b[offset - 1]) {
+                case CLASS:
+                    String name = utf8(u2(offset));
+                    // module-info or a class of the default package itself
+                    if (i != thisClass || name.indexOf('/') >= 0) {
+                        addClass(name);
+                    }
+                    break;
+                case NAME_AND_TYPE:
+                    // invoked methods, field types of accessed fields are not references
+                    String descriptor = utf8(u2(offset + 2));
+                    if (descriptor.charAt(0) == '(') {
+                        addDescriptor(descriptor, true);
+                    }
+                    break;
+                case METHOD_TYPE:
+                    addDescriptor(utf8(u2(offset)), false);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // access flags, this, super, interfaces are all class constants
+        pos += 6;
+        pos += 2 + 2 * u2(pos);
+        int fields = u2(pos);
+        pos += 2;
+        for (int i = 0; i < fields; i++) {
+            addDescriptor(utf8(u2(pos + 4)), false);
+            pos = memberAttributes(pos + 6, false);
+        }
+        int methods = u2(pos);
+        pos += 2;
+        for (int i = 0; i < methods; i++) {
+            addDescriptor(utf8(u2(pos + 4)), false);
+            pos = memberAttributes(pos + 6, true);
+        }
+        int attributes = u2(pos);
+        pos += 2;
+        for (int i = 0; i < attributes; i++) {
+            String name = utf8(u2(pos));
+            int start = pos + 6;
+            switch (name) {
+                case "Signature":
+                    signature(utf8(u2(start)));
+                    break;
+                case "RuntimeVisibleAnnotations":
+                case "RuntimeInvisibleAnnotations":
+                    annotations(start, true);
+                    break;
+                default:
+                    break;
+            }
+            pos = start + readInt(pos + 2);
+        }
+    }
+
+    /**
+     * @return position behind the attributes
+     */
+    private int memberAttributes(int position, boolean method) {
+        int pos = position;
+        int attributes = u2(pos);
+        pos += 2;
+        for (int i = 0; i < attributes; i++) {
+            String name = utf8(u2(pos));
+            int start = pos + 6;
+            switch (name) {
+                case "Signature":
+                    if (method) {
+                        signature(utf8(u2(start)));
+                    } else {
+                        typeSignature(utf8(u2(start)), 0);
+                    }
+                    break;
+                case "RuntimeVisibleAnnotations":
+                case "RuntimeInvisibleAnnotations":
+                    annotations(start, true);
+                    break;
+                case "RuntimeVisibleParameterAnnotations":
+                case "RuntimeInvisibleParameterAnnotations":
+                    if (method) {
+                        int parameters = b[start] & 0xFF;
+                        int p = start + 1;
+                        for (int j = 0; j < parameters; j++) {
+                            p = annotations(p, true);
+                        }
+                    }
+                    break;
+                case "RuntimeVisibleTypeAnnotations":
+                case "RuntimeInvisibleTypeAnnotations":
+                    if (method) {
+                        typeAnnotations(start, false);
+                    }
+                    break;
+                case "Code":
+                    if (method) {
+                        code(start);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pos = start + readInt(pos + 2);
+        }
+        return pos;
+    }
+
+    private void code(int start) {
+        int pos = start + 4;
+        pos += 4 + readInt(pos);
+        pos += 2 + 8 * u2(pos);
+        int attributes = u2(pos);
+        pos += 2;
+        for (int i = 0; i < attributes; i++) {
+            String name = utf8(u2(pos));
+            int attr = pos + 6;
+            switch (name) {
+                case "LocalVariableTable": {
+                    int entries = u2(attr);
+                    for (int j = 0; j < entries; j++) {
+                        addDescriptor(utf8(u2(attr + 2 + j * 10 + 6)), false);
+                    }
+                    break;
+                }
+                case "LocalVariableTypeTable": {
+                    int entries = u2(attr);
+                    for (int j = 0; j < entries; j++) {
+                        typeSignature(utf8(u2(attr + 2 + j * 10 + 6)), 0);
+                    }
+                    break;
+                }
+                case "RuntimeVisibleTypeAnnotations":
+                case "RuntimeInvisibleTypeAnnotations":
+                    typeAnnotations(attr, true);
+                    break;
+                default:
+                    break;
+            }
+            pos = attr + readInt(pos + 2);
+        }
+    }
+
+    /**
+     * @return position behind the annotations
+     */
+    private int annotations(int position, boolean collect) {
+        int count = u2(position);
+        int pos = position + 2;
+        for (int i = 0; i < count; i++) {
+            pos = annotation(pos, collect);
+        }
+        return pos;
+    }
+
+    private int annotation(int position, boolean collect) {
+        if (collect) {
+            addDescriptor(utf8(u2(position)), false);
+        }
+        int pairs = u2(position + 2);
+        int pos = position + 4;
+        for (int i = 0; i < pairs; i++) {
+            pos = elementValue(pos + 2, collect);
+        }
+        return pos;
+    }
+
+    private int elementValue(int position, boolean collect) {
+        int pos = position + 1;
+        switch (b[position]) {
+            case 'e':
+            case 'c':
+                // enum type or class literal
+                if (collect) {
+                    addDescriptor(utf8(u2(pos)), false);
+                }
+                return pos + (b[position] == 'e' ? 4 : 2);
+            case '@':
+                return annotation(pos, collect);
+            case '[':
+                int values = u2(pos);
+                pos += 2;
+                for (int i = 0; i < values; i++) {
+                    pos = elementValue(pos, collect);
+                }
+                return pos;
+            default:
+                return pos + 2;
+        }
+    }
+
+    /**
+     * @param localVariablesOnly only annotations of local variables are
+     * references, the rest is skipped
+     */
+    private void typeAnnotations(int position, boolean localVariablesOnly) {
+        int count = u2(position);
+        int pos = position + 2;
+        for (int i = 0; i < count; i++) {
+            int target = b[pos] & 0xFF;
+            pos++;
+            switch (target) {
+                case 0x00:
+                case 0x01:
+                case 0x16:
+                    pos += 1;
+                    break;
+                case 0x10:
+                case 0x11:
+                case 0x12:
+                case 0x17:
+                case 0x42:
+                case 0x43:
+                case 0x44:
+                case 0x45:
+                case 0x46:
+                    pos += 2;
+                    break;
+                case 0x13:
+                case 0x14:
+                case 0x15:
+                    break;
+                case 0x40:
+                case 0x41:
+                    pos += 2 + 6 * u2(pos);
+                    break;
+                case 0x47:
+                case 0x48:
+                case 0x49:
+                case 0x4A:
+                case 0x4B:
+                    pos += 3;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown type annotation target " + target);
+            }
+            // type path
+            pos += 1 + 2 * (b[pos] & 0xFF);
+            pos = annotation(pos, !localVariablesOnly || target == 0x40 || target == 0x41);
+        }
+    }
+
+    /**
+     * Class or method signature: optional formal type parameters followed by
+     * either super types or parameters, return type and exceptions.
+     */
+    private void signature(String signature) {
+        int pos = 0;
+        int length = signature.length();
+        if (signature.charAt(0) == '<') {
+            pos++;
+            while (signature.charAt(pos) != '>') {
+                pos = signature.indexOf(':', pos);
+                // empty class bound for interface bounds only
+                if (signature.charAt(pos + 1) != ':') {
+                    pos = typeSignature(signature, pos + 1);
+                } else {
+                    pos++;
+                }
+                while (signature.charAt(pos) == ':') {
+                    pos = typeSignature(signature, pos + 1);
+                }
+            }
+            pos++;
+        }
+        while (pos < length) {
+            char c = signature.charAt(pos);
+            if (c == '(' || c == ')' || c == '^') {
+                pos++;
+            } else {
+                pos = typeSignature(signature, pos);
+            }
+        }
+    }
+
+    /**
+     * @return position behind the type
+     */
+    private int typeSignature(String signature, int position) {
+        int pos = position;
+        switch (signature.charAt(pos)) {
+            case '[':
+                return typeSignature(signature, pos + 1);
+            case 'T':
+                return signature.indexOf(';', pos) + 1;
+            case 'L':
+                pos++;
+                boolean inner = false;
+                while (true) {
+                    int start = pos;
+                    char c = signature.charAt(pos);
+                    while (c != '<' && c != '.' && c != ';') {
+                        c = signature.charAt(++pos);
+                    }
+                    // inner class types are reported by their simple name
+                    addName(inner ? signature.substring(start, pos) : signature.substring(start, pos).replace('/', '.'));
+                    if (c == '<') {
+                        pos++;
+                        while (signature.charAt(pos) != '>') {
+                            char arg = signature.charAt(pos);
+                            if (arg == '*') {
+                                pos++;
+                            } else {
+                                pos = typeSignature(signature, arg == '+' || arg == '-' ? pos + 1 : pos);
+                            }
+                        }
+                        c = signature.charAt(++pos);
+                    }
+                    pos++;
+                    if (c == ';') {
+                        return pos;
+                    }
+                    inner = true;
+                }
+            default:
+                // primitive or void
+                return pos + 1;
+        }
+    }
+
+    /**
+     * Every class in a field or method descriptor.
+     *
+     * @param packagedOnly skip classes in the default package
+     */
+    private void addDescriptor(String descriptor, boolean packagedOnly) {
+        int pos = descriptor.indexOf('L');
+        while (pos >= 0) {
+            int end = descriptor.indexOf(';', pos);
+            String name = descriptor.substring(pos + 1, end);
+            if (!packagedOnly || name.indexOf('/') >= 0) {
+                addName(name.replace('/', '.'));
+            }
+            pos = descriptor.indexOf('L', end);
+        }
+    }
+
+    /**
+     * Internal name of a class constant, also array descriptors.
+     */
+    private void addClass(String name) {
+        if (name.charAt(0) == '[') {
+            addDescriptor(name, false);
+        } else {
+            addName(name.replace('/', '.'));
+        }
+    }
+
+    private void addName(String name) {
+        if (name.indexOf('$') < 0) {
+            referenced.add(name);
+        }
+    }
+
+    private String utf8(int index) {
+        String value = strings[index];
+        if (value == null) {
+            int offset = offsets[index];
+            if (b[offset - 1] != UTF8) {
+                throw new IllegalArgumentException("Not a UTF8 constant: " + index);
+            }
+            int length = u2(offset);
+            boolean ascii = true;
+            for (int i = offset + 2; i < offset + 2 + length; i++) {
+                if (b[i] < 0 || b[i] == 0) {
+                    ascii = false;
+                    break;
+                }
+            }
+            if (ascii) {
+                value = new String(b, offset + 2, length, StandardCharsets.ISO_8859_1);
+            } else {
+                // modified UTF-8
+                try {
+                    value = new DataInputStream(new ByteArrayInputStream(b, offset, length + 2)).readUTF();
+                } catch (IOException ex) {
+                    throw new IllegalArgumentException(ex);
+                }
+            }
+            strings[index] = value;
+        }
+        return value;
+    }
+
+    private int u2(int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private int readInt(int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+}
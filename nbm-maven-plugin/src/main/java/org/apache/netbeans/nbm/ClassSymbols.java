@@ -0,0 +1,122 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense integer ids for the class names of one runtime verification, so that
+ * the sets of classes used by the project and provided by its dependencies
+ * can be kept and combined as bit sets. The same class names show up in the
+ * project and in many modules, every name is stored once.
+ * <p>
+ * Not thread safe.
+ */
+final class ClassSymbols {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<ClassReferenceIndex.JarClasses, BitSet> defined = new IdentityHashMap<>();
+    private final Map<ClassReferenceIndex.JarClasses, BitSet> referenced = new IdentityHashMap<>();
+
+    /**
+     * @param name class name
+     * @return id of the name, assigned on first use
+     */
+    int id(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            ids.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    /**
+     * @param id id assigned by {@link #id(String)}
+     * @return the class name
+     */
+    String name(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * @param classes class names
+     * @return new bit set of the names' ids
+     */
+    BitSet of(Collection<String> classes) {
+        BitSet bits = new BitSet(names.size() + classes.size());
+        for (String name : classes) {
+            bits.set(id(name));
+        }
+        return bits;
+    }
+
+    /**
+     * @param bits ids
+     * @return the class names in the order of their ids
+     */
+    List<String> names(BitSet bits) {
+        List<String> result = new ArrayList<>(bits.cardinality());
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            result.add(names.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @param classes scanned jar or folder
+     * @return ids of the classes defined by it, not to be modified
+     */
+    BitSet defined(ClassReferenceIndex.JarClasses classes) {
+        BitSet bits = defined.get(classes);
+        if (bits == null) {
+            bits = of(classes.getDefinedClasses());
+            defined.put(classes, bits);
+        }
+        return bits;
+    }
+
+    /**
+     * @param classes scanned jar or folder
+     * @return ids of the classes referenced by it, not to be modified
+     */
+    BitSet referenced(ClassReferenceIndex.JarClasses classes) {
+        BitSet bits = referenced.get(classes);
+        if (bits == null) {
+            bits = of(classes.getReferencedClasses());
+            referenced.put(classes, bits);
+        }
+        return bits;
+    }
+
+    /**
+     * @return number of distinct class names seen
+     */
+    int size() {
+        return names.size();
+    }
+}
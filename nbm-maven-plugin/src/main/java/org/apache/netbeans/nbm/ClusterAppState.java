@@ -0,0 +1,374 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Files written into the clusters by <code>nbm:cluster-app</code>, per
+ * artifact, along with the checksum of the content they were written from.
+ * The next build rewrites only files whose checksum changed or which were
+ * modified since, judged by their size and time stamp, and removes the files
+ * no artifact provides anymore.
+ * <p>
+ * Files extracted from NBM files use the CRC-32 the NBM archive records for
+ * the entry, which is also what the NetBeans update tracking relies on, so
+ * checking the entries of a changed NBM reads only its central directory.
+ * <p>
+ * The artifact file itself is recorded by path, size and time stamp, along
+ * with the module jars examined in it. An artifact whose file and outputs
+ * are unchanged is not read at all, what it provides is taken from the
+ * outputs.
+ */
+final class ClusterAppState {
+
+    /**
+     * Checksum of files generated from other outputs, e.g. update tracking.
+     */
+    static final String GENERATED = "-";
+    // never matches, forces the files to be written again
+    private static final String INVALID = "?";
+    private static final String HEADER = "nbm-cluster-app 3";
+    private static final String SETTINGS = "settings ";
+    private static final String ARTIFACT = "artifact ";
+    private static final String SOURCE = "source ";
+    private static final String MODULE = "module ";
+
+    private final String settings;
+    private final Map<String, Map<String, Output>> artifacts = new LinkedHashMap<>();
+    private final Map<String, Source> sources = new HashMap<>();
+    private final Map<String, List<String>> modules = new HashMap<>();
+
+    /**
+     * @param settings configuration the outputs depend on besides the
+     * artifacts, such as the default cluster
+     */
+    ClusterAppState(String settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * @param file state written by {@link #store}
+     * @param settings configuration of this build, when it differs from the
+     * stored one no artifact is up to date
+     * @return the state, empty if the file is missing or unreadable
+     */
+    static ClusterAppState load(File file, String settings) {
+        ClusterAppState state = new ClusterAppState(settings);
+        if (!file.isFile()) {
+            return state;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return state;
+            }
+            boolean sameSettings = (SETTINGS + settings).equals(reader.readLine());
+            String id = null;
+            Map<String, Output> outputs = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(ARTIFACT)) {
+                    id = line.substring(ARTIFACT.length());
+                    outputs = new LinkedHashMap<>();
+                    state.artifacts.put(id, outputs);
+                    continue;
+                }
+                if (id == null) {
+                    return new ClusterAppState(settings);
+                }
+                if (line.startsWith(MODULE)) {
+                    if (sameSettings) {
+                        state.modules.computeIfAbsent(id, k -> new ArrayList<>())
+                                .add(line.substring(MODULE.length()));
+                    }
+                    continue;
+                }
+                if (line.startsWith(SOURCE)) {
+                    String[] fields = line.substring(SOURCE.length()).split(" ", 3);
+                    if (fields.length < 3) {
+                        return new ClusterAppState(settings);
+                    }
+                    if (sameSettings) {
+                        state.sources.put(id, new Source(fields[2], Long.parseLong(fields[0]),
+                                Long.parseLong(fields[1])));
+                    }
+                    continue;
+                }
+                int first = line.indexOf(' ');
+                int second = line.indexOf(' ', first + 1);
+                int third = second < 0 ? -1 : line.indexOf(' ', second + 1);
+                if (first < 0 || third < 0) {
+                    return new ClusterAppState(settings);
+                }
+                outputs.put(line.substring(third + 1), new Output(line.substring(0, first),
+                        Long.parseLong(line.substring(first + 1, second)),
+                        Long.parseLong(line.substring(second + 1, third))));
+            }
+        } catch (IOException | NumberFormatException ex) {
+            return new ClusterAppState(settings);
+        }
+        return state;
+    }
+
+    /**
+     * @param file state file
+     * @throws IOException when the file cannot be written
+     */
+    void store(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER + '\n');
+            writer.write(SETTINGS + settings + '\n');
+            for (Map.Entry<String, Map<String, Output>> artifact : artifacts.entrySet()) {
+                writer.write(ARTIFACT + artifact.getKey() + '\n');
+                Source source = sources.get(artifact.getKey());
+                if (source != null) {
+                    writer.write(SOURCE + source.length + ' ' + source.lastModified + ' ' + source.path + '\n');
+                }
+                for (String module : modules.getOrDefault(artifact.getKey(), Collections.emptyList())) {
+                    writer.write(MODULE + module + '\n');
+                }
+                for (Map.Entry<String, Output> output : artifact.getValue().entrySet()) {
+                    writer.write(output.getValue().checksum + ' ' + output.getValue().length + ' '
+                            + output.getValue().lastModified + ' ' + output.getKey() + '\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id versionless artifact id
+     * @return files written for the artifact by path relative to the
+     * application folder, empty if none
+     */
+    Map<String, Output> get(String id) {
+        Map<String, Output> outputs = artifacts.get(id);
+        return outputs != null ? Collections.unmodifiableMap(outputs) : Collections.emptyMap();
+    }
+
+    /**
+     * @param id versionless artifact id
+     * @return paths of the module jars examined in the artifact, relative to
+     * the application folder
+     */
+    List<String> getModules(String id) {
+        return modules.getOrDefault(id, Collections.emptyList());
+    }
+
+    /**
+     * Records the files of an artifact, which is read again next time.
+     *
+     * @param id versionless artifact id
+     * @param outputs files written for the artifact
+     */
+    void put(String id, Map<String, Output> outputs) {
+        artifacts.put(id, new LinkedHashMap<>(outputs));
+        sources.remove(id);
+        modules.remove(id);
+    }
+
+    /**
+     * Records the files of an artifact along with the artifact file they were
+     * written from, so they are used as they are while it does not change.
+     *
+     * @param id versionless artifact id
+     * @param source the artifact file, as it was before it was read
+     * @param outputs files written for the artifact
+     * @param moduleJars paths of the module jars examined in the artifact
+     */
+    void put(String id, Source source, Map<String, Output> outputs, List<String> moduleJars) {
+        put(id, outputs);
+        sources.put(id, source);
+        if (!moduleJars.isEmpty()) {
+            modules.put(id, new ArrayList<>(moduleJars));
+        }
+    }
+
+    /**
+     * @param id versionless artifact id
+     * @param source the artifact file of this build
+     * @return true if the same artifact file, by path, size and time stamp,
+     * was used the last time
+     */
+    boolean isSameSource(String id, Source source) {
+        return source.equals(sources.get(id));
+    }
+
+    /**
+     * @param id versionless artifact id
+     * @param source the artifact file of this build
+     * @param folder application folder
+     * @return true if the artifact file is the one the files of the artifact
+     * were written from, and none of these files changed since
+     */
+    boolean isUpToDate(String id, Source source, File folder) {
+        Map<String, Output> outputs = get(id);
+        if (outputs.isEmpty() || !isSameSource(id, source)) {
+            return false;
+        }
+        for (Map.Entry<String, Output> output : outputs.entrySet()) {
+            File file = new File(folder, output.getKey().replace("/", File.separator));
+            if (!isCurrent(outputs, output.getKey(), output.getValue().checksum, file)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps the files of an artifact that failed to be written, so that they
+     * are written again next time rather than removed.
+     *
+     * @param id versionless artifact id
+     * @param outputs files previously written for the artifact
+     */
+    void putInvalid(String id, Map<String, Output> outputs) {
+        Map<String, Output> invalid = new LinkedHashMap<>();
+        for (Map.Entry<String, Output> output : outputs.entrySet()) {
+            invalid.put(output.getKey(), new Output(INVALID, output.getValue().length,
+                    output.getValue().lastModified));
+        }
+        put(id, invalid);
+    }
+
+    /**
+     * @param current state of this build
+     * @return paths in this state that no artifact of the current one
+     * writes, compared ignoring case to be safe on case insensitive file
+     * systems
+     */
+    Set<String> stalePaths(ClusterAppState current) {
+        Set<String> live = new HashSet<>();
+        for (Map<String, Output> outputs : current.artifacts.values()) {
+            for (String path : outputs.keySet()) {
+                live.add(path.toLowerCase(Locale.ROOT));
+            }
+        }
+        Set<String> stale = new LinkedHashSet<>();
+        for (Map<String, Output> outputs : artifacts.values()) {
+            for (String path : outputs.keySet()) {
+                if (!live.contains(path.toLowerCase(Locale.ROOT))) {
+                    stale.add(path);
+                }
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * @param previous files previously written for the artifact
+     * @param path path relative to the application folder
+     * @param checksum checksum of the content to write
+     * @param file the file at the path
+     * @return true if the file was written from the same content and has
+     * neither changed size nor time stamp since
+     */
+    static boolean isCurrent(Map<String, Output> previous, String path, String checksum, File file) {
+        Output output = previous.get(path);
+        return output != null && output.checksum.equals(checksum) && file.isFile()
+                && file.length() == output.length && file.lastModified() == output.lastModified;
+    }
+
+    /**
+     * @param crc CRC-32 value
+     * @return checksum as stored
+     */
+    static String checksum(long crc) {
+        return Long.toHexString(crc);
+    }
+
+    /**
+     * A file written into a cluster.
+     */
+    static final class Output {
+
+        final String checksum;
+        final long length;
+        final long lastModified;
+
+        Output(String checksum, long length, long lastModified) {
+            this.checksum = checksum;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @param checksum checksum of the content the file was written from
+         * @param file the written file
+         * @return output with the current size and time stamp of the file
+         */
+        static Output of(String checksum, File file) {
+            return new Output(checksum, file.length(), file.lastModified());
+        }
+    }
+
+    /**
+     * An artifact file the outputs were written from.
+     */
+    static final class Source {
+
+        final String path;
+        final long length;
+        final long lastModified;
+
+        Source(String path, long length, long lastModified) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @param file artifact file
+         * @return source with the current size and time stamp of the file
+         */
+        static Source of(File file) {
+            return new Source(file.getAbsolutePath(), file.length(), file.lastModified());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Source)) {
+                return false;
+            }
+            Source other = (Source) obj;
+            return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, length, lastModified);
+        }
+    }
+}
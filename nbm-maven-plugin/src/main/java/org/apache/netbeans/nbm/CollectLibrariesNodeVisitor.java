@@ -27,6 +27,7 @@ import java.util.Set;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.ManifestCache;
 import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.graph.DependencyNode;
 import org.eclipse.aether.util.artifact.ArtifactIdUtils;
@@ -48,6 +49,9 @@ public class CollectLibrariesNodeVisitor extends DependencyVisitorSupport {
 
     private final Map<Artifact, ExamineManifest> examinerCache;
 
+    private final ManifestExaminer examiner;
+    private final ManifestCache manifestCache;
+
     private final List<String> explicitLibs;
 
     private final DependencyNode root;
@@ -70,12 +74,15 @@ public class CollectLibrariesNodeVisitor extends DependencyVisitorSupport {
      * @param explicitLibraries list of explicit libraries
      * @param runtimeArtifacts list of runtime artifacts
      * @param examinerCache cache of netbeans manifest for artifacts
+     * @param examiner build wide examiner, may be null
+     * @param manifestCache persistent manifest cache, may be null
      * @param log mojo logger
      * @param root dependency to start collect with
      * @param useOsgiDependencies whether to allow osgi dependencies or not
      */
     public CollectLibrariesNodeVisitor(Artifacts helper, List<String> explicitLibraries,
                                        List<Artifact> runtimeArtifacts, Map<Artifact, ExamineManifest> examinerCache,
+                                       ManifestExaminer examiner, ManifestCache manifestCache,
                                        Log log, DependencyNode root, boolean useOsgiDependencies) {
         super(log, helper);
         this.nodes = new ArrayList<>();
@@ -84,6 +91,8 @@ public class CollectLibrariesNodeVisitor extends DependencyVisitorSupport {
             artifacts.put(ArtifactIdUtils.toVersionlessId(a), a);
         }
         this.examinerCache = examinerCache;
+        this.examiner = examiner;
+        this.manifestCache = manifestCache;
         this.explicitLibs = explicitLibraries;
         this.root = root;
         this.useOsgiDependencies = useOsgiDependencies;
@@ -112,13 +121,8 @@ public class CollectLibrariesNodeVisitor extends DependencyVisitorSupport {
             // somehow the transitive artifacts in the  tree are not always resolved?
             artifact = artifacts.get(ArtifactIdUtils.toVersionlessId(artifact));
 
-            ExamineManifest depExaminator = examinerCache.get(artifact);
-            if (depExaminator == null) {
-                depExaminator = new ExamineManifest(log);
-                depExaminator.setArtifactFile(artifact.getFile());
-                depExaminator.checkFile();
-                examinerCache.put(artifact, depExaminator);
-            }
+            ExamineManifest depExaminator = AbstractNbmMojo.examineArtifact(artifact, examinerCache, examiner, manifestCache,
+                    log);
             if (matchesLibrary(artifact, node.getDependency().getScope(), explicitLibs, depExaminator, useOsgiDependencies)) {
                 if (depExaminator.isNetBeansModule()) {
                     log.warn("You are using a NetBeans Module as a Library (classpath extension): " + ArtifactIdUtils.toId(artifact));
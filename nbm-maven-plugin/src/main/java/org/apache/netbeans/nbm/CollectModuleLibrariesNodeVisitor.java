@@ -28,6 +28,7 @@ import java.util.Stack;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.ManifestCache;
 import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.graph.DependencyNode;
 import org.eclipse.aether.util.artifact.ArtifactIdUtils;
@@ -51,6 +52,9 @@ public class CollectModuleLibrariesNodeVisitor extends DependencyVisitorSupport
 
     private final Map<Artifact, ExamineManifest> examinerCache;
 
+    private final ManifestExaminer examiner;
+    private final ManifestCache manifestCache;
+
     private final DependencyNode root;
 
     private final Stack<String> currentModule = new Stack<String>();
@@ -67,12 +71,15 @@ public class CollectModuleLibrariesNodeVisitor extends DependencyVisitorSupport
      *
      * @param runtimeArtifacts list of runtime artifacts
      * @param examinerCache cache of netbeans manifest for artifacts
+     * @param examiner build wide examiner, may be null
+     * @param manifestCache persistent manifest cache, may be null
      * @param log mojo logger
      * @param root dependency to start collect with
      * @param useOSGiDependencies whether to allow osgi dependencies or not
      */
     public CollectModuleLibrariesNodeVisitor(Artifacts helper,
             Collection<Artifact> runtimeArtifacts, Map<Artifact, ExamineManifest> examinerCache,
+            ManifestExaminer examiner, ManifestCache manifestCache,
             Log log, DependencyNode root, boolean useOSGiDependencies) {
         super(log, helper);
         directNodes = new HashMap<>();
@@ -82,6 +89,8 @@ public class CollectModuleLibrariesNodeVisitor extends DependencyVisitorSupport
             artifacts.put(ArtifactIdUtils.toVersionlessId(a), a);
         }
         this.examinerCache = examinerCache;
+        this.examiner = examiner;
+        this.manifestCache = manifestCache;
         this.root = root;
         this.useOSGiDependencies = useOSGiDependencies;
     }
@@ -106,13 +115,8 @@ public class CollectModuleLibrariesNodeVisitor extends DependencyVisitorSupport
             // somehow the transitive artifacts in the  tree are not always resolved?
             artifact = artifacts.get(ArtifactIdUtils.toVersionlessId(artifact));
 
-            ExamineManifest depExaminator = examinerCache.get(artifact);
-            if (depExaminator == null) {
-                depExaminator = new ExamineManifest(log);
-                depExaminator.setArtifactFile(artifact.getFile());
-                depExaminator.checkFile();
-                examinerCache.put(artifact, depExaminator);
-            }
+            ExamineManifest depExaminator = AbstractNbmMojo.examineArtifact(artifact, examinerCache, examiner, manifestCache,
+                    log);
             if (depExaminator.isNetBeansModule() || (useOSGiDependencies && depExaminator.isOsgiBundle())) {
                 currentModule.push(ArtifactIdUtils.toVersionlessId(artifact));
                 ArrayList<Artifact> arts = new ArrayList<Artifact>();
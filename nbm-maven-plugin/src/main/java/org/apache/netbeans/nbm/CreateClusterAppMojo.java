@@ -19,39 +19,42 @@ package org.apache.netbeans.nbm;
  * under the License.
  */
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 
-import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -70,6 +73,9 @@ import org.apache.maven.project.MavenProjectHelper;
 import org.apache.maven.project.ProjectDependenciesResolver;
 import org.apache.netbeans.nbm.handlers.NbmFileArtifactHandler;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.JarEntryReader;
+import org.apache.netbeans.nbm.utils.ManifestCache;
+import org.apache.netbeans.nbm.utils.ManifestSummary;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.filters.StringInputStream;
@@ -85,7 +91,6 @@ import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.resolution.ArtifactRequest;
 import org.eclipse.aether.resolution.ArtifactResolutionException;
 import org.eclipse.aether.util.artifact.ArtifactIdUtils;
-import org.netbeans.nbbuild.MakeListOfNBM;
 
 /**
  * Create the NetBeans module clusters/application for the 'nbm-application'
@@ -159,22 +164,44 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
     @Parameter(defaultValue = "org.netbeans", property = "groupIdPrefix")
     private String groupIdPrefix;
 
-    private final Collection<String> defaultPlatformTokens = Arrays.asList(new String[]{
-        "org.openide.modules.os.Windows",
-        "org.openide.modules.os.Unix",
-        "org.openide.modules.os.MacOSX",
-        "org.openide.modules.os.OS2",
-        "org.openide.modules.os.PlainUnix",
-        "org.openide.modules.os.Linux",
-        "org.openide.modules.os.Solaris",
-        "org.openide.modules.ModuleFormat1",
-        "org.openide.modules.ModuleFormat2",
-        "org.openide.modules.jre.JavaFX" //MNBMODULE-234
-    });
+    /**
+     * Number of threads extracting NBM files into the clusters, 0 to pick one
+     * from the number of processors, 1 to extract them one after another. The
+     * clusters and the reported problems are the same either way.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "0", property = "netbeans.extract.threads")
+    private int extractThreads;
+
+    /**
+     * Folder of a store of unpacked NBM files shared by all builds on the
+     * machine, e.g. <code>${user.home}/.m2/nbm-extracted</code>. When set,
+     * each NBM file is unpacked into the store once and the clusters get hard
+     * links to its files, or copies where the store is on another file
+     * system. Not used by default.
+     *
+     * @since 15.0
+     */
+    @Parameter(property = "netbeans.extracted.store")
+    private File extractedStore;
+
+    /**
+     * Megabytes of unpacked NBM files kept in the
+     * <code>extractedStore</code>, the least recently used ones are removed
+     * first.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "4096", property = "netbeans.extracted.store.maxSize")
+    private long extractedStoreMaxSize;
+
+    private ExtractedNbmStore nbmStore;
+    private ExternalResolver externalResolver;
 
     @Inject
-    public CreateClusterAppMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts) {
-        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts);
+    public CreateClusterAppMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer) {
+        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts, manifestExaminer);
     }
 
     @Override
@@ -185,312 +212,102 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
             nbmBuildDirFile.mkdirs();
         }
 
+        Set<String> changedClusters = new HashSet<>();
         if ("nbm-application".equals(project.getPackaging())) {
-            Project antProject = registerNbmAntTasks();
-
+            File stateFile = new File(outputDirectory, "nbm-maven-plugin/cluster-app/" + brandingToken + ".files");
+            // extracted files depend on the cluster given to NBM files not naming one
+            ClusterAppState previousState = ClusterAppState.load(stateFile, defaultCluster);
+            ClusterAppState state = new ClusterAppState(defaultCluster);
+            nbmStore = extractedStore != null
+                    ? new ExtractedNbmStore(extractedStore, extractedStoreMaxSize * 1024 * 1024) : null;
+            externalResolver = new ExternalResolver(repositorySystem, session.getRepositorySession(),
+                    project.getRemoteProjectRepositories(), super.artifacts, externalCacheDirectory());
             Set<String> wrappedBundleCNBs = new HashSet<>(100);
             Map<String, Set<String>> clusterDependencies = new HashMap<>();
             Map<String, Set<String>> clusterModules = new HashMap<>();
 
-            //verify integrity
-            Set<String> modulesCNBs = new HashSet<>(SET_INITIAL_SIZE);
-            Set<String> dependencyCNBs = new HashSet<>(SET_INITIAL_SIZE);
-            Map<String, Set<String>> dependencyCNBBacktraces = new HashMap<>(MAP_INITIALSIZE);
-            Set<String> requireTokens = new HashSet<>(MAP_INITIALSIZE);
-            Map<String, Set<String>> requireTokensBacktraces = new HashMap<>(MAP_INITIALSIZE);
-            Set<String> provideTokens = new HashSet<>(MAP_INITIALSIZE);
-            Set<String> osgiImports = new HashSet<>(MAP_INITIALSIZE);
-            Map<String, Set<String>> osgiImportsBacktraces = new HashMap<>(MAP_INITIALSIZE);
-            Set<String> osgiExports = new HashSet<>(MAP_INITIALSIZE);
-            //a way to deal with nb module declaring xxx.** (subpackages) declaration that is consumed by osgi imports
-            Set<String> osgiExportsSubs = new HashSet<>(MAP_INITIALSIZE);
+            IntegrityVerifier integrity = new IntegrityVerifier();
 
             List<BundleTuple> bundles = new ArrayList<>();
-
-            Collection<Artifact> artifacts = RepositoryUtils.toArtifacts(project.getArtifacts());
-            for (Artifact art : artifacts) {
-                ArtifactResult res = turnJarToNbmFile(art, project);
-                if (res.hasConvertedArtifact()) {
-                    art = res.getConvertedArtifact();
-                }
-
+            ManifestCache manifestCache = getManifestCache();
+
+            List<Artifact> resolved = new ArrayList<>(RepositoryUtils.toArtifacts(project.getArtifacts()));
+            List<ArtifactResult> results = turnJarsToNbmFiles(resolved, project);
+            List<NbmExtraction> extractions = new ArrayList<>();
+            for (int i = 0; i < resolved.size(); i++) {
+                ArtifactResult res = results.get(i);
+                Artifact art = res.hasConvertedArtifact() ? res.getConvertedArtifact() : resolved.get(i);
+                resolved.set(i, art);
+                NbmExtraction extraction = null;
                 if (super.artifacts.getArtifactType(art).getId().equals("nbm-file")) {
-                    try {
-                        JarFile jf = new JarFile(art.getFile());
-                        try {
-                            String clusterName = findCluster(jf);
-                            ClusterTuple cluster = processCluster(clusterName, nbmBuildDirFile, art);
-
-                            getLog().debug("Copying " + ArtifactIdUtils.toId(art) + " to cluster " + clusterName);
-                            Enumeration<JarEntry> enu = jf.entries();
-
-                            // we need to trigger this ant task to generate the update_tracking file.
-                            MakeListOfNBM makeTask = (MakeListOfNBM) antProject.createTask("genlist");
-                            antProject.setNewProperty("module.name", art.getFile().getName()); // TODO
-                            antProject.setProperty("cluster.dir", clusterName);
-                            FileSet set = makeTask.createFileSet();
-                            set.setDir(cluster.location);
-                            makeTask.setOutputfiledir(cluster.location);
-                            String[] executables = null;
-                            File classpathRoot = null;
-                            String classPath = null;
-                            while (enu.hasMoreElements()) {
-                                JarEntry ent = enu.nextElement();
-                                String name = ent.getName();
-                                //MNBMODULE-176
-                                if (name.equals("Info/executables.list")) {
-                                    if (cluster.newer) {
-                                        InputStream is = jf.getInputStream(ent);
-                                        executables = StringUtils.split(IOUtil.toString(is, "UTF-8"), "\n");
-                                    }
-                                } else if (name.startsWith("netbeans/")) { // ignore everything else.
-                                    String path = clusterName + name.substring("netbeans".length());
-                                    boolean ispack200 = path.endsWith(".jar.pack.gz");
-                                    if (ispack200) {
-                                        path = path.replace(".jar.pack.gz", ".jar");
-                                    }
-                                    File fl = new File(nbmBuildDirFile, path.replace("/", File.separator));
-                                    String part = name.substring("netbeans/".length());
-                                    if (ispack200) {
-                                        part = part.replace(".jar.pack.gz", ".jar");
-                                    }
-                                    if (cluster.newer) {
-                                        if (ent.isDirectory()) {
-                                            fl.mkdirs();
-                                        } else if (path.endsWith(".external")) // MNBMODULE-138
-                                        {
-                                            InputStream is = jf.getInputStream(ent);
-                                            try {
-                                                externalDownload(new File(fl.getParentFile(),
-                                                        fl.getName().replaceFirst("[.]external$", "")), is);
-                                            } finally {
-                                                is.close();
-                                            }
-                                            //MNBMODULE-192
-                                            set.appendIncludes(new String[]{
-                                                name.substring("netbeans/".length(), name.length() - ".external".length())
-                                            });
-                                        } else {
-                                            set.appendIncludes(new String[]{
-                                                part
-                                            });
-
-                                            fl.getParentFile().mkdirs();
-                                            fl.createNewFile();
-                                            try (BufferedOutputStream outstream = new BufferedOutputStream(new FileOutputStream(fl))) {
-                                                InputStream instream = jf.getInputStream(ent);
-                                                if (ispack200) {
-                                                    throw new BuildException("nbm-maven-plugin use jdk 21 built harness and cannot  "
-                                                            + "read of NBM created with pack200");
-                                                } else {
-                                                    IOUtil.copy(instream, outstream);
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                    // TODO examine netbeans/config/Modules to see if the module is autoload/eager
-                                    // in verifyIntegrity these could be handled more gracefully than regular modules.
-                                    // eager is simpler, does not need to have module dependencies satisfied.
-                                    // autoload needs checking if any of the other modules declares a dependency on it.
-                                    // if not, also safe to ignore?
-                                    // now figure which one of the jars is the module jar..
-                                    if (part.matches("(modules|core|lib)/[^/]+[.]jar")) {
-                                        ExamineManifest ex = new ExamineManifest(getLog());
-                                        ex.setJarFile(fl);
-                                        ex.setPopulateDependencies(true);
-                                        ex.checkFile();
-                                        if (ex.isNetBeansModule()) {
-                                            makeTask.setModule(part);
-                                            addToMap(clusterDependencies, clusterName, ex.getDependencyTokens());
-                                            addToMap(clusterModules, clusterName, Collections.singletonList(ex.
-                                                    getModule()));
-                                            if (ex.getClasspath().length() > 0) { //MNBMODULE-220
-                                                try {
-                                                    classPath = URLDecoder.decode(ex.getClasspath(), "UTF-8");
-                                                } catch (UnsupportedEncodingException exception) {
-                                                    throw new IllegalStateException(exception);
-                                                }
-                                                classpathRoot = fl.getParentFile();
-                                            }
-                                        }
-                                        if (verifyIntegrity) {
-                                            dependencyCNBs.addAll(ex.getDependencyTokens());
-                                            modulesCNBs.add(ex.getModule());
-                                            for (String d : ex.getDependencyTokens()) {
-                                                addToMap(dependencyCNBBacktraces, d, Collections.singletonList(ex.
-                                                        getModule()));
-                                            }
-                                            if (ex.isNetBeansModule()) {
-                                                requireTokens.addAll(ex.getNetBeansRequiresTokens());
-                                                for (String r : ex.getNetBeansRequiresTokens()) {
-                                                    addToMap(requireTokensBacktraces, r, Collections.singletonList(ex.
-                                                            getModule()));
-                                                }
-                                                provideTokens.addAll(ex.getNetBeansProvidesTokens());
-                                                for (String pack : ex.getPackages()) {
-                                                    if (pack.endsWith(".**")) {
-                                                        //what to do with subpackages?
-                                                        pack = pack.substring(0, pack.length() - ".**".length());
-                                                        osgiExportsSubs.add(pack);
-                                                    } else if (pack.endsWith(".*")) {
-                                                        pack = pack.substring(0, pack.length() - ".*".length());
-                                                        osgiExports.add(pack);
-                                                    }
-                                                }
-
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            if (classPath != null) { // MNBMODULE-220 collect wrappedbundleCNBs, later useful in assignClustersToBundles(),
-                                // these get removed from list of bundles.
-                                String[] paths = StringUtils.split(classPath, " ");
-                                for (String path : paths) {
-                                    path = path.trim();
-                                    File classpathFile = new File(classpathRoot, path);
-                                    if (path.equals("${java.home}/lib/ext/jfxrt.jar")) { //MNBMODULE-228
-                                        String jhm = System.getProperty("java.home");
-                                        classpathFile = new File(new File(new File(new File(jhm), "lib"), "ext"),
-                                                "jfxrt.jar");
-                                        if (!classpathFile.exists()) {
-                                            File jdk7 = new File(new File(new File(jhm), "lib"), "jfxrt.jar");
-                                            if (jdk7.exists()) {
-                                                classpathFile = jdk7;
-                                            }
-                                        }
-                                    }
-                                    if (!classpathFile.isFile()) {
-                                        getLog().warn("Could not resolve Class-Path item in " + ArtifactIdUtils.toId(art)
-                                                + ", path is:" + path + ", skipping");
-                                        continue; //try to guard against future failures
-                                    }
-                                    ExamineManifest ex = new ExamineManifest(getLog());
-                                    ex.setJarFile(classpathFile);
-                                    //ex.setPopulateDependencies( true );
-                                    ex.checkFile();
-                                    if (ex.isOsgiBundle()) {
-                                        if (ArtifactIdUtils.toId(art).contains(groupIdPrefix
-                                                + ".modules:org-netbeans-modules-maven-embedder")) {
-                                            // in this case we dont want module-maven-embedder to be considered as
-                                            // wrapper for his libs guava is provided but ide have it also
-                                        } else {
-                                            getLog().debug(ex.getModule() + " added by " + ArtifactIdUtils.toId(art) + " located in: " + classpathFile);
-                                            wrappedBundleCNBs.add(ex.getModule());
-                                        }
-                                    }
-                                }
-                            }
-                            if (cluster.newer) {
-                                try {
-                                    makeTask.execute();
-                                } catch (BuildException e) {
-                                    getLog().error("Cannot Generate update_tracking XML file from " + art.getFile());
-                                    throw new MojoExecutionException(e.getMessage(), e);
-                                }
-
-                                if (executables != null) {
-                                    //MNBMODULE-176
-                                    for (String exec : executables) {
-                                        exec = exec.replace("/", File.separator);
-                                        File execFile = new File(cluster.location, exec);
-                                        if (execFile.exists()) {
-                                            execFile.setExecutable(true, false);
-                                        }
-                                    }
-                                }
-                            }
-
-                        } finally {
-                            jf.close();
+                    String id = ArtifactIdUtils.toVersionlessId(art);
+                    ClusterAppState.Source source = ClusterAppState.Source.of(art.getFile());
+                    extraction = new NbmExtraction(art, new BufferedLog(getLog()), source, previousState.get(id),
+                            previousState.getModules(id));
+                    extraction.upToDate = previousState.isUpToDate(id, source, nbmBuildDirFile);
+                }
+                extractions.add(extraction);
+            }
+            extractAll(extractions, nbmBuildDirFile, manifestCache);
+
+            // merged in artifact order, as if extracted one after another
+            for (int i = 0; i < resolved.size(); i++) {
+                Artifact art = resolved.get(i);
+                ArtifactResult res = results.get(i);
+                NbmExtraction extraction = extractions.get(i);
+                if (extraction != null) {
+                    extraction.log.replay();
+                    String clusterName = extraction.clusterName;
+                    for (ExamineManifest ex : extraction.modules) {
+                        if (ex.isNetBeansModule()) {
+                            addToMap(clusterDependencies, clusterName, ex.getDependencyTokens());
+                            addToMap(clusterModules, clusterName, Collections.singletonList(ex.getModule()));
                         }
-                    } catch (IOException ex) {
-                        getLog().error(art.getFile().getAbsolutePath(), ex);
+                        if (verifyIntegrity) {
+                            integrity.addModule(ex);
+                        }
+                    }
+                    wrappedBundleCNBs.addAll(extraction.wrappedBundles);
+                    Throwable failure = extraction.failure;
+                    String id = ArtifactIdUtils.toVersionlessId(art);
+                    if (failure == null) {
+                        state.put(id, extraction.source, extraction.outputs, extraction.modulePaths);
+                    } else {
+                        Map<String, ClusterAppState.Output> written = new LinkedHashMap<>(extraction.previous);
+                        written.putAll(extraction.outputs);
+                        state.putInvalid(id, written);
+                    }
+                    if (extraction.changed) {
+                        changedClusters.add(extraction.clusterName);
+                    }
+                    if (failure instanceof IOException) {
+                        getLog().error(art.getFile().getAbsolutePath(), failure);
+                    } else if (failure != null) {
+                        rethrow(failure);
                     }
                 }
                 if (res.isOSGiBundle()) {
                     ExamineManifest ex = res.getExaminedManifest();
                     bundles.add(new BundleTuple(art, ex));
                     if (verifyIntegrity) {
-                        dependencyCNBs.addAll(ex.getDependencyTokens());
-                        for (String d : ex.getDependencyTokens()) {
-                            addToMap(dependencyCNBBacktraces, d, Collections.singletonList(ex.getModule()));
-                        }
-                        modulesCNBs.add(ex.getModule());
-                        osgiImports.addAll(ex.getOsgiImports());
-                        for (String d : ex.getOsgiImports()) {
-                            addToMap(osgiImportsBacktraces, d, Collections.singletonList(ex.getModule()));
-                        }
-
-                        osgiExports.addAll(ex.getOsgiExports());
+                        integrity.addBundle(ex);
                     }
                 }
             }
 
             if (verifyIntegrity) {
-                if (getLog().isDebugEnabled()) {
-                    getLog().debug("All found codenamebases:" + Arrays.toString(modulesCNBs.toArray()));
-                    getLog().debug("All found OSGI exports:" + Arrays.toString(osgiExports.toArray()));
-                    getLog().debug("All found provided tokens:" + Arrays.toString(provideTokens.toArray()));
-                }
-                dependencyCNBs.removeAll(modulesCNBs);
-                if (modulesCNBs.contains("org.netbeans.modules.netbinox")) {
-                    dependencyCNBs.remove("org.eclipse.osgi"); //this is special.
-                }
-                osgiImports.removeAll(osgiExports);
-                Iterator<String> it = osgiImports.iterator();
-                while (it.hasNext()) {
-                    String s = it.next();
-                    if (s.startsWith("java.")
-                            || s.startsWith("javax.")
-                            || s.startsWith("sun.")
-                            || s.startsWith("org.xml.sax")
-                            || s.startsWith("org.w3c.dom")
-                            || s.startsWith("org.ietf.jgss")) {
-                        it.remove();
-                        continue;
-                    }
-                    for (String sub : osgiExportsSubs) {
-                        if (s.startsWith(sub)) {
-                            it.remove();
-                            break;
-                        }
-                    }
-                }
-                requireTokens.removeAll(provideTokens);
-                requireTokens.removeAll(defaultPlatformTokens);
-                if (!dependencyCNBs.isEmpty() || !osgiImports.isEmpty() || !requireTokens.isEmpty()) {
-                    if (!dependencyCNBs.isEmpty()) {
-                        getLog().error(
-                                "Some included modules/bundles depend on these codenamebases but they are not included."
-                                + " The application will fail starting up. The missing codenamebases are:");
-                        for (String s : dependencyCNBs) {
-                            Set<String> back = dependencyCNBBacktraces.get(s);
-                            getLog().error("   " + s + (back != null ? "          ref: " + Arrays.toString(back.
-                                    toArray()) : ""));
-                        }
-                    }
-                    if (!osgiImports.isEmpty()) {
-                        getLog().error(
-                                "Some OSGi imports are not satisfied by included bundles' exports. "
-                                + "The application will fail starting up. The missing imports are:");
-                        for (String s : osgiImports) {
-                            Set<String> back = osgiImportsBacktraces.get(s);
-                            getLog().error("   " + s + (back != null ? "          ref: " + Arrays.toString(back.
-                                    toArray()) : ""));
-                        }
-                    }
-                    if (!requireTokens.isEmpty()) {
-                        getLog().error(
-                                "Some tokens required by included modules are not provided by included modules. "
-                                + "The application will fail starting up. The missing tokens are:");
-                        for (String s : requireTokens) {
-                            Set<String> back = requireTokensBacktraces.get(s);
-                            getLog().error("   " + s + (back != null ? "          ref: " + Arrays.toString(back.
-                                    toArray()) : ""));
-                        }
-                    }
+                integrity.logProvided(getLog());
+                IntegrityVerifier.Result missing = integrity.verify();
+                if (!missing.isEmpty()) {
+                    logMissing(missing.getMissingModules(),
+                            "Some included modules/bundles depend on these codenamebases but they are not included."
+                            + " The application will fail starting up. The missing codenamebases are:");
+                    logMissing(missing.getMissingImports(),
+                            "Some OSGi imports are not satisfied by included bundles' exports. "
+                            + "The application will fail starting up. The missing imports are:");
+                    logMissing(missing.getMissingTokens(),
+                            "Some tokens required by included modules are not provided by included modules. "
+                            + "The application will fail starting up. The missing tokens are:");
                     throw new MojoFailureException(
                             "See above for consistency validation check failures. "
                             + " Either fix those by adding the relevant dependencies to the application or "
@@ -512,44 +329,89 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
 
             for (BundleTuple ent : bundles) {
                 Artifact art = ent.artifact;
-                final ExamineManifest ex = ent.manifest;
+                final ManifestSummary ex = ent.manifest;
 
                 String clstr = ent.cluster;
                 if (clstr == null) {
                     clstr = defaultCluster;
                 }
 
-                ClusterTuple cluster = processCluster(clstr, nbmBuildDirFile, art);
-                if (cluster.newer) {
-                    getLog().info("Copying " + ArtifactIdUtils.toId(art) + " to cluster " + clstr);
-                    File modules = new File(cluster.location, "modules");
-                    modules.mkdirs();
-                    File config = new File(cluster.location, "config");
-                    File confModules = new File(config, "Modules");
-                    confModules.mkdirs();
-                    File updateTracking = new File(cluster.location, "update_tracking");
-                    updateTracking.mkdirs();
-                    final String cnb = ex.getModule();
-                    final String cnbDashed = cnb.replace(".", "-");
-                    //do we need the file in some canotical name pattern in moduleArt?
-                    final File moduleArt = new File(modules, cnbDashed + ".jar");
-                    final String specVer = ex.getSpecVersion();
-                    try {
+                File clusterDir = clusterDirectory(clstr, nbmBuildDirFile);
+                final String cnb = ex.getModule();
+                final String cnbDashed = cnb.replace(".", "-");
+                String id = ArtifactIdUtils.toVersionlessId(art);
+                ClusterAppState.Source source = ClusterAppState.Source.of(art.getFile());
+                Map<String, ClusterAppState.Output> previous = previousState.get(id);
+                Map<String, ClusterAppState.Output> outputs = new LinkedHashMap<>();
+                String jarPath = clstr + "/modules/" + cnbDashed + ".jar";
+                String confPath = clstr + "/config/Modules/" + cnbDashed + ".xml";
+                String trackingPath = clstr + "/update_tracking/" + cnbDashed + ".xml";
+                //do we need the file in some canotical name pattern in moduleArt?
+                final File moduleArt = new File(nbmBuildDirFile, jarPath);
+                final File moduleConf = new File(nbmBuildDirFile, confPath);
+                final File moduleTracking = new File(nbmBuildDirFile, trackingPath);
+                try {
+                    // the bundle is only read when it is not the file copied last time
+                    ClusterAppState.Output copied = previous.get(jarPath);
+                    String checksum = copied != null && previousState.isSameSource(id, source) ? copied.checksum
+                            : ClusterAppState.checksum(Checksums.crc32(art.getFile()));
+                    if (ClusterAppState.isCurrent(previous, jarPath, checksum, moduleArt)
+                            && ClusterAppState.isCurrent(previous, confPath, ClusterAppState.GENERATED, moduleConf)
+                            && ClusterAppState.isCurrent(previous, trackingPath, ClusterAppState.GENERATED,
+                                    moduleTracking)) {
+                        getLog().debug(ArtifactIdUtils.toId(art) + " is up to date in cluster " + clstr);
+                    } else {
+                        getLog().info("Copying " + ArtifactIdUtils.toId(art) + " to cluster " + clstr);
+                        moduleArt.getParentFile().mkdirs();
+                        moduleConf.getParentFile().mkdirs();
+                        moduleTracking.getParentFile().mkdirs();
+                        final String specVer = ex.getSpecVersion();
                         FileUtils.copyFile(art.getFile(), moduleArt);
-                        final File moduleConf = new File(confModules, cnbDashed + ".xml");
                         FileUtils.copyStreamToFile(() -> new StringInputStream(createBundleConfigFile(cnb, ex.isBundleAutoload()), "UTF-8"), moduleConf);
-                        FileUtils.copyStreamToFile(() -> new StringInputStream(createBundleUpdateTracking(cnb, moduleArt, moduleConf, specVer), "UTF-8"), new File(updateTracking, cnbDashed + ".xml"));
-                    } catch (IOException exc) {
-                        getLog().error(exc);
+                        FileUtils.copyStreamToFile(() -> new StringInputStream(createBundleUpdateTracking(cnb, moduleArt, moduleConf, specVer), "UTF-8"), moduleTracking);
+                        changedClusters.add(clstr);
                     }
+                    outputs.put(jarPath, ClusterAppState.Output.of(checksum, moduleArt));
+                    outputs.put(confPath, ClusterAppState.Output.of(ClusterAppState.GENERATED, moduleConf));
+                    outputs.put(trackingPath,
+                            ClusterAppState.Output.of(ClusterAppState.GENERATED, moduleTracking));
+                    state.put(id, source, outputs, Collections.emptyList());
+                } catch (IOException exc) {
+                    getLog().error(exc);
+                    state.putInvalid(id, previous);
+                }
+            }
+
+            // files of artifacts no longer included, or no longer in them
+            for (String path : previousState.stalePaths(state)) {
+                File stale = new File(nbmBuildDirFile, path);
+                if (stale.delete()) {
+                    getLog().debug("Removed " + stale);
+                    int slash = path.indexOf('/');
+                    changedClusters.add(slash < 0 ? path : path.substring(0, slash));
+                    deleteEmptyParents(stale.getParentFile(), nbmBuildDirFile);
+                }
+            }
+            try {
+                state.store(stateFile);
+            } catch (IOException ex) {
+                throw new MojoExecutionException("Cannot write " + stateFile, ex);
+            }
+            if (nbmStore != null) {
+                try {
+                    nbmStore.evict();
+                } catch (IOException ex) {
+                    getLog().warn("Cannot clean up " + extractedStore, ex);
                 }
             }
             getLog().info("Created NetBeans module cluster(s) at " + nbmBuildDirFile.getAbsoluteFile());
+            manifestExaminer.logStatistics(getLog());
 
         } else {
             throw new MojoExecutionException("This goal only makes sense on project with nbm-application packaging");
         }
         //in 6.1 the rebuilt modules will be cached if the timestamp is not touched.
+        // clusters left alone keep their timestamp, and with it the caches of the application
         File[] files = nbmBuildDirFile.listFiles();
         for (File file : files) {
             if (file.isDirectory()) {
@@ -560,6 +422,8 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
                     } catch (IOException ex) {
                         ex.printStackTrace();
                     }
+                } else if (!changedClusters.contains(file.getName())) {
+                    continue;
                 }
                 stamp.setLastModified(getOutputTimestampOrNow(project).getTime());
             }
@@ -570,18 +434,614 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
             throw new MojoExecutionException("Cannot process etc folder content creation.", ex);
         }
     }
-    private static final int SET_INITIAL_SIZE = 200;
-    private static final int MAP_INITIALSIZE = 50;
+    /**
+     * Extracts the NBM files concurrently. NBM files writing to the same
+     * paths are extracted one after another in artifact order, so the result
+     * does not depend on the number of threads. NBM files unchanged since the
+     * previous build are not opened, unless they share paths with one that is
+     * extracted. Failures and log output are recorded in the extractions and
+     * reported by the caller.
+     */
+    private void extractAll(List<NbmExtraction> extractions, File nbmBuildDirFile, ManifestCache manifestCache)
+            throws MojoExecutionException {
+        List<NbmExtraction> all = new ArrayList<>();
+        for (NbmExtraction extraction : extractions) {
+            if (extraction != null) {
+                all.add(extraction);
+            }
+        }
+        int threads = extractThreads > 0 ? extractThreads
+                : Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        threads = Math.min(threads, all.size());
+        ExecutorService executor = threads <= 1 ? null : Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "nbm-extract");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<NbmExtraction> planned = new ArrayList<>();
+            for (NbmExtraction extraction : all) {
+                if (!extraction.upToDate) {
+                    planned.add(extraction);
+                }
+            }
+            Set<String> extractedPaths = new HashSet<>();
+            while (!planned.isEmpty()) {
+                List<Runnable> tasks = new ArrayList<>();
+                for (NbmExtraction extraction : planned) {
+                    tasks.add(() -> plan(extraction, nbmBuildDirFile));
+                }
+                runAll(executor, tasks);
+                for (NbmExtraction extraction : planned) {
+                    extractedPaths.addAll(extraction.paths);
+                }
+                // an unchanged NBM file overwritten by another one is extracted again
+                planned.clear();
+                for (NbmExtraction extraction : all) {
+                    if (extraction.upToDate && sharesPaths(extraction.previous.keySet(), extractedPaths)) {
+                        extraction.upToDate = false;
+                        planned.add(extraction);
+                    }
+                }
+            }
+            List<NbmExtraction> todo = new ArrayList<>();
+            List<Runnable> tasks = new ArrayList<>();
+            for (NbmExtraction extraction : all) {
+                if (extraction.upToDate) {
+                    tasks.add(() -> reuse(extraction, nbmBuildDirFile, manifestCache));
+                } else {
+                    todo.add(extraction);
+                }
+            }
+            runAll(executor, tasks);
+            resolveExternals(todo);
+
+            tasks.clear();
+            if (executor == null) {
+                tasks.add(() -> extractGroup(todo, nbmBuildDirFile, manifestCache));
+            } else {
+                List<Set<String>> paths = new ArrayList<>();
+                for (NbmExtraction extraction : todo) {
+                    paths.add(extraction.paths);
+                }
+                for (List<Integer> group : conflictGroups(paths)) {
+                    List<NbmExtraction> members = new ArrayList<>();
+                    for (Integer index : group) {
+                        members.add(todo.get(index));
+                    }
+                    tasks.add(() -> extractGroup(members, nbmBuildDirFile, manifestCache));
+                }
+            }
+            runAll(executor, tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while extracting NBM files", ex);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks on the executor, or one after another without one.
+     */
+    private static void runAll(ExecutorService executor, List<Runnable> tasks)
+            throws InterruptedException, MojoExecutionException {
+        if (executor == null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return;
+        }
+        List<Callable<Object>> callables = new ArrayList<>();
+        for (Runnable task : tasks) {
+            callables.add(Executors.callable(task));
+        }
+        for (Future<Object> future : executor.invokeAll(callables)) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                throw new MojoExecutionException("Cannot extract NBM files", ex.getCause());
+            }
+        }
+    }
+
+    private static boolean sharesPaths(Set<String> outputs, Set<String> paths) {
+        for (String output : outputs) {
+            if (paths.contains(output.toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Groups items sharing any path, groups and their members in the order of
+     * the items.
+     *
+     * @param paths paths written by each item
+     * @return indexes of the items in each group
+     */
+    static List<List<Integer>> conflictGroups(List<Set<String>> paths) {
+        int[] parent = new int[paths.size()];
+        Map<String, Integer> owners = new HashMap<>();
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+            for (String path : paths.get(i)) {
+                Integer owner = owners.putIfAbsent(path, i);
+                if (owner != null) {
+                    int a = root(parent, owner);
+                    int b = root(parent, i);
+                    parent[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < parent.length; i++) {
+            groups.computeIfAbsent(root(parent, i), k -> new ArrayList<>()).add(i);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static int root(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Finds the cluster of the NBM, the paths it writes to and the
+     * <code>.external</code> files it has to download.
+     */
+    private void plan(NbmExtraction extraction, File nbmBuildDirFile) {
+        File nbm = extraction.artifact.getFile();
+        try {
+            String clusterName = findCluster(nbm, extraction.log);
+            extraction.clusterName = clusterName;
+            try (ZipFile zip = new ZipFile(nbm)) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (entry.isDirectory() || !name.startsWith("netbeans/")) {
+                        continue;
+                    }
+                    String path = clusterName + name.substring("netbeans".length());
+                    if (path.endsWith(".jar.pack.gz")) {
+                        path = path.substring(0, path.length() - ".pack.gz".length());
+                    } else if (path.endsWith(".external")) {
+                        path = path.substring(0, path.length() - ".external".length());
+                        File output = new File(nbmBuildDirFile, path.replace("/", File.separator));
+                        if (!ClusterAppState.isCurrent(extraction.previous, path,
+                                ClusterAppState.checksum(entry.getCrc()), output)) {
+                            try (InputStream is = zip.getInputStream(entry)) {
+                                extraction.externals.put(path, ExternalResolver.External.parse(is, extraction.log));
+                            }
+                        }
+                    }
+                    // case insensitive file systems
+                    extraction.paths.add(path.toLowerCase(Locale.ROOT));
+                }
+            }
+        } catch (IOException | MojoFailureException | RuntimeException ex) {
+            extraction.failure = ex;
+        }
+    }
+
+    /**
+     * Takes what an NBM file unchanged since the previous build provides from
+     * the files extracted then, examining its module jars through the
+     * manifest cache instead of opening the NBM file.
+     */
+    private void reuse(NbmExtraction extraction, File nbmBuildDirFile, ManifestCache manifestCache) {
+        Log log = extraction.log;
+        // all paths are in the cluster folder
+        String first = extraction.previous.keySet().iterator().next();
+        extraction.clusterName = first.substring(0, first.indexOf('/'));
+        extraction.outputs.putAll(extraction.previous);
+        try {
+            String classPath = null;
+            File classpathRoot = null;
+            for (String path : extraction.previousModules) {
+                File fl = new File(nbmBuildDirFile, path.replace("/", File.separator));
+                ExamineManifest ex = manifestExaminer.examine(fl, true, manifestCache, log);
+                extraction.modules.add(ex);
+                extraction.modulePaths.add(path);
+                if (ex.isNetBeansModule() && ex.getClasspath().length() > 0) {
+                    classPath = URLDecoder.decode(ex.getClasspath(), StandardCharsets.UTF_8);
+                    classpathRoot = fl.getParentFile();
+                }
+            }
+            if (classPath != null) {
+                collectWrappedBundles(extraction, classPath, classpathRoot, manifestCache);
+            }
+            log.debug(ArtifactIdUtils.toId(extraction.artifact) + " is up to date in cluster "
+                    + extraction.clusterName);
+        } catch (MojoExecutionException | RuntimeException ex) {
+            extraction.failure = ex;
+        }
+    }
+
+    /**
+     * Resolves the <code>.external</code> files of all NBM files at once.
+     */
+    private void resolveExternals(List<NbmExtraction> extractions) throws MojoExecutionException {
+        List<ExternalResolver.External> externals = new ArrayList<>();
+        for (NbmExtraction extraction : extractions) {
+            if (extraction.failure == null) {
+                externals.addAll(extraction.externals.values());
+            }
+        }
+        try {
+            externalResolver.resolveAll(externals);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while downloading external files", ex);
+        }
+    }
+
+    /**
+     * Download cache of <code>.external</code> files, next to the persistent
+     * manifest cache when there is a local repository.
+     */
+    private File externalCacheDirectory() {
+        File basedir = session.getRepositorySession().getLocalRepository().getBasedir();
+        if (basedir != null && basedir.isDirectory()) {
+            return new File(basedir, ".cache/nbm-maven-plugin/externals");
+        }
+        return new File(outputDirectory, "nbm-maven-plugin/externals");
+    }
+
+    private void extractGroup(List<NbmExtraction> group, File nbmBuildDirFile, ManifestCache manifestCache) {
+        boolean failed = false;
+        Set<String> written = new HashSet<>();
+        for (NbmExtraction extraction : group) {
+            if (failed || extraction.failure != null) {
+                // the build fails at an earlier NBM writing the same files
+                continue;
+            }
+            try {
+                extract(extraction, nbmBuildDirFile, manifestCache, written);
+            } catch (IOException ex) {
+                extraction.failure = ex;
+            } catch (MojoExecutionException | RuntimeException | Error ex) {
+                extraction.failure = ex;
+                failed = true;
+            }
+        }
+    }
+
+    /**
+     * Copies the content of one NBM file into its cluster, examines its module
+     * jars and generates its update tracking file. Everything shared with the
+     * other NBM files is only recorded in the extraction.
+     */
+    private void extract(NbmExtraction extraction, File nbmBuildDirFile, ManifestCache manifestCache,
+            Set<String> written) throws IOException, MojoExecutionException {
+        Artifact art = extraction.artifact;
+        Log log = extraction.log;
+        String clusterName = extraction.clusterName;
+        try (JarFile jf = new JarFile(art.getFile())) {
+            File clusterDir = clusterDirectory(clusterName, nbmBuildDirFile);
+
+            log.debug("Copying " + ArtifactIdUtils.toId(art) + " to cluster " + clusterName);
+            Enumeration<JarEntry> enu = jf.entries();
+
+            // files of the module and their CRC-32 for the update_tracking file, -1 for downloaded ones
+            Map<String, Long> crcs = new LinkedHashMap<>();
+            String module = null;
+            String moduleCnb = null;
+            ExamineManifest moduleManifest = null;
+            String[] executables = null;
+            File classpathRoot = null;
+            String classPath = null;
+            while (enu.hasMoreElements()) {
+                JarEntry ent = enu.nextElement();
+                String name = ent.getName();
+                //MNBMODULE-176
+                if (name.equals("Info/executables.list")) {
+                    InputStream is = jf.getInputStream(ent);
+                    executables = StringUtils.split(IOUtil.toString(is, "UTF-8"), "\n");
+                } else if (name.startsWith("netbeans/")) { // ignore everything else.
+                    String path = clusterName + name.substring("netbeans".length());
+                    boolean ispack200 = path.endsWith(".jar.pack.gz");
+                    if (ispack200) {
+                        path = path.replace(".jar.pack.gz", ".jar");
+                    }
+                    File fl = new File(nbmBuildDirFile, path.replace("/", File.separator));
+                    String part = name.substring("netbeans/".length());
+                    if (ispack200) {
+                        part = part.replace(".jar.pack.gz", ".jar");
+                    }
+                    // manifest read while copying a jar, so the jar is not opened again to examine it
+                    Manifest copiedManifest = null;
+                    if (ent.isDirectory()) {
+                        fl.mkdirs();
+                    } else {
+                        boolean external = path.endsWith(".external");
+                        String outputPath = external ? path.substring(0, path.length() - ".external".length()) : path;
+                        File output = external ? new File(fl.getParentFile(),
+                                fl.getName().replaceFirst("[.]external$", "")) : fl;
+                        String checksum = ClusterAppState.checksum(ent.getCrc());
+                        // a file shared with an earlier NBM of this build was overwritten by it
+                        boolean shared = !written.add(outputPath.toLowerCase(Locale.ROOT));
+                        boolean write = shared
+                                || !ClusterAppState.isCurrent(extraction.previous, outputPath, checksum, output);
+                        if (external) // MNBMODULE-138
+                        {
+                            if (write) {
+                                ExternalResolver.External resolved = extraction.externals.get(outputPath);
+                                if (resolved == null) {
+                                    // current when planned, but overwritten by an earlier NBM of this build since
+                                    try (InputStream is = jf.getInputStream(ent)) {
+                                        resolved = ExternalResolver.External.parse(is, log);
+                                    }
+                                    try {
+                                        externalResolver.resolveAll(Collections.singletonList(resolved));
+                                    } catch (InterruptedException ex) {
+                                        Thread.currentThread().interrupt();
+                                        throw new IOException("Interrupted while downloading " + output, ex);
+                                    }
+                                }
+                                if (resolved.getSource() == null) {
+                                    throw new IOException("Could not download " + output);
+                                }
+                                ExternalResolver.copy(resolved, output);
+                            }
+                            //MNBMODULE-192
+                            crcs.put(name.substring("netbeans/".length(), name.length() - ".external".length()), -1L);
+                        } else {
+                            crcs.put(part, ent.getCrc());
+
+                            File stored = write && !ispack200 ? storedPayload(extraction) : null;
+                            if (stored != null && nbmStore.link(stored, part, ent, fl)) {
+                                log.debug("Linked " + fl + " from the extracted NBM store");
+                            } else if (write) {
+                                // replaces a hard link to the store rather than writing through it
+                                Files.deleteIfExists(fl.toPath());
+                                fl.getParentFile().mkdirs();
+                                fl.createNewFile();
+                                try (BufferedOutputStream outstream = new BufferedOutputStream(new FileOutputStream(fl))) {
+                                    InputStream instream = jf.getInputStream(ent);
+                                    if (ispack200) {
+                                        throw new BuildException("nbm-maven-plugin use jdk 21 built harness and cannot  "
+                                                + "read of NBM created with pack200");
+                                    } else if (part.endsWith(".jar")) {
+                                        copiedManifest = JarEntryReader.copyJar(instream, outstream);
+                                    } else {
+                                        IOUtil.copy(instream, outstream);
+                                    }
+                                }
+                            }
+                        }
+                        extraction.outputs.put(outputPath, ClusterAppState.Output.of(checksum, output));
+                        extraction.changed |= write;
+                    }
+
+                    // TODO examine netbeans/config/Modules to see if the module is autoload/eager
+                    // in verifyIntegrity these could be handled more gracefully than regular modules.
+                    // eager is simpler, does not need to have module dependencies satisfied.
+                    // autoload needs checking if any of the other modules declares a dependency on it.
+                    // if not, also safe to ignore?
+                    // now figure which one of the jars is the module jar..
+                    if (part.matches("(modules|core|lib)/[^/]+[.]jar")) {
+                        ExamineManifest ex = copiedManifest != null
+                                ? manifestExaminer.examine(fl, copiedManifest.getMainAttributes(), true,
+                                        manifestCache, log)
+                                : manifestExaminer.examine(fl, true, manifestCache, log);
+                        extraction.modules.add(ex);
+                        extraction.modulePaths.add(path);
+                        if (ex.isNetBeansModule()) {
+                            module = part;
+                            moduleCnb = ex.getModule();
+                            moduleManifest = ex;
+                            if (ex.getClasspath().length() > 0) { //MNBMODULE-220
+                                try {
+                                    classPath = URLDecoder.decode(ex.getClasspath(), "UTF-8");
+                                } catch (UnsupportedEncodingException exception) {
+                                    throw new IllegalStateException(exception);
+                                }
+                                classpathRoot = fl.getParentFile();
+                            }
+                        }
+                    } else if (copiedManifest != null) {
+                        // e.g. modules/ext/*.jar, examined below if on the Class-Path of the module
+                        manifestExaminer.examine(fl, copiedManifest.getMainAttributes(), false, manifestCache, log);
+                    }
+                }
+            }
+            if (classPath != null) {
+                collectWrappedBundles(extraction, classPath, classpathRoot, manifestCache);
+            }
+            String trackingPath = moduleCnb != null
+                    ? clusterName + "/update_tracking/" + moduleCnb.replace('.', '-') + ".xml" : null;
+            File trackingFile = trackingPath != null ? new File(nbmBuildDirFile, trackingPath) : null;
+            if (extraction.changed || (trackingPath != null && !ClusterAppState.isCurrent(extraction.previous,
+                    trackingPath, ClusterAppState.GENERATED, trackingFile))) {
+                extraction.changed = true;
+                writeUpdateTracking(art, log, clusterDir, moduleManifest, crcs);
+
+                if (executables != null) {
+                    //MNBMODULE-176
+                    for (String exec : executables) {
+                        exec = exec.replace("/", File.separator);
+                        File execFile = new File(clusterDir, exec);
+                        if (execFile.exists()) {
+                            execFile.setExecutable(true, false);
+                        }
+                    }
+                }
+            } else {
+                log.debug(ArtifactIdUtils.toId(art) + " is up to date in cluster " + clusterName);
+            }
+            if (trackingFile != null && trackingFile.isFile()) {
+                extraction.outputs.put(trackingPath,
+                        ClusterAppState.Output.of(ClusterAppState.GENERATED, trackingFile));
+            }
+        }
+    }
+
+    /**
+     * MNBMODULE-220 collect wrappedbundleCNBs, later useful in
+     * assignClustersToBundles(), these get removed from list of bundles.
+     *
+     * @param classPath decoded Class-Path of the module jar
+     * @param classpathRoot folder of the module jar
+     */
+    private void collectWrappedBundles(NbmExtraction extraction, String classPath, File classpathRoot,
+            ManifestCache manifestCache) throws MojoExecutionException {
+        Artifact art = extraction.artifact;
+        Log log = extraction.log;
+        String[] paths = StringUtils.split(classPath, " ");
+        for (String path : paths) {
+            path = path.trim();
+            File classpathFile = new File(classpathRoot, path);
+            if (path.equals("${java.home}/lib/ext/jfxrt.jar")) { //MNBMODULE-228
+                String jhm = System.getProperty("java.home");
+                classpathFile = new File(new File(new File(new File(jhm), "lib"), "ext"),
+                        "jfxrt.jar");
+                if (!classpathFile.exists()) {
+                    File jdk7 = new File(new File(new File(jhm), "lib"), "jfxrt.jar");
+                    if (jdk7.exists()) {
+                        classpathFile = jdk7;
+                    }
+                }
+            }
+            if (!classpathFile.isFile()) {
+                log.warn("Could not resolve Class-Path item in " + ArtifactIdUtils.toId(art)
+                        + ", path is:" + path + ", skipping");
+                continue; //try to guard against future failures
+            }
+            ExamineManifest ex = manifestExaminer.examine(classpathFile, false, manifestCache, log);
+            if (ex.isOsgiBundle()) {
+                if (ArtifactIdUtils.toId(art).contains(groupIdPrefix
+                        + ".modules:org-netbeans-modules-maven-embedder")) {
+                    // in this case we dont want module-maven-embedder to be considered as
+                    // wrapper for his libs guava is provided but ide have it also
+                } else {
+                    log.debug(ex.getModule() + " added by " + ArtifactIdUtils.toId(art) + " located in: " + classpathFile);
+                    extraction.wrappedBundles.add(ex.getModule());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the update_tracking file of the module, as the genlist task of
+     * the harness would, from the CRC values of the NBM entries and the
+     * manifest examined while extracting, rather than by reading the extracted
+     * files again.
+     *
+     * @param moduleManifest the examined module jar, null if none was found
+     */
+    private static void writeUpdateTracking(Artifact art, Log log, File clusterDir, ExamineManifest moduleManifest,
+            Map<String, Long> crcs) throws IOException, MojoExecutionException {
+        UpdateTrackingFile tracking = moduleManifest != null ? UpdateTrackingFile.of(moduleManifest) : null;
+        if (tracking == null) {
+            log.error("Cannot Generate update_tracking XML file from " + art.getFile());
+            throw new MojoExecutionException("No NetBeans module found in " + art.getFile());
+        }
+        log.info("Generating Auto Update information for " + tracking.getCodeNameBase());
+        for (Map.Entry<String, Long> file : crcs.entrySet()) {
+            long crc = file.getValue();
+            if (crc < 0) {
+                File downloaded = new File(clusterDir, file.getKey());
+                if (!downloaded.isFile()) {
+                    continue;
+                }
+                crc = Checksums.crc32(downloaded);
+            }
+            tracking.add(file.getKey(), crc);
+        }
+        // genlist always lists the module configuration
+        String config = "config/Modules/" + tracking.getFileName();
+        File configFile = new File(clusterDir, config);
+        if (!tracking.contains(config) && configFile.isFile()) {
+            tracking.add(config, Checksums.crc32(configFile));
+        }
+        tracking.write(clusterDir, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the NBM unpacked in the shared store, or null to extract it
+     * directly
+     */
+    private File storedPayload(NbmExtraction extraction) {
+        if (nbmStore == null || extraction.storeUnavailable) {
+            return null;
+        }
+        if (extraction.stored == null) {
+            try {
+                extraction.stored = nbmStore.get(extraction.artifact.getFile());
+            } catch (IOException ex) {
+                extraction.storeUnavailable = true;
+                extraction.log.warn("Cannot use the extracted NBM store for " + extraction.artifact.getFile(), ex);
+            }
+        }
+        return extraction.stored;
+    }
+
+    private static void rethrow(Throwable failure) throws MojoExecutionException, MojoFailureException {
+        if (failure instanceof MojoExecutionException) {
+            throw (MojoExecutionException) failure;
+        } else if (failure instanceof MojoFailureException) {
+            throw (MojoFailureException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new MojoExecutionException(failure.getMessage(), failure);
+    }
+
+    private static final class NbmExtraction {
+
+        final Artifact artifact;
+        final BufferedLog log;
+        // the NBM file before it is read
+        final ClusterAppState.Source source;
+        // lower case paths of the files written, relative to the build directory
+        final Set<String> paths = new HashSet<>();
+        final List<ExamineManifest> modules = new ArrayList<>();
+        final List<String> wrappedBundles = new ArrayList<>();
+        // files written by the previous build, and the module jars examined then
+        final Map<String, ClusterAppState.Output> previous;
+        final List<String> previousModules;
+        // unchanged since the previous build, its files are taken as they are
+        boolean upToDate;
+        final Map<String, ClusterAppState.Output> outputs = new LinkedHashMap<>();
+        final List<String> modulePaths = new ArrayList<>();
+        boolean changed;
+        // .external files to download, by path relative to the build directory
+        final Map<String, ExternalResolver.External> externals = new HashMap<>();
+        // content in the extracted NBM store
+        File stored;
+        boolean storeUnavailable;
+        String clusterName;
+        Throwable failure;
+
+        NbmExtraction(Artifact artifact, BufferedLog log, ClusterAppState.Source source,
+                Map<String, ClusterAppState.Output> previous, List<String> previousModules) {
+            this.artifact = artifact;
+            this.log = log;
+            this.source = source;
+            this.previous = previous;
+            this.previousModules = previousModules;
+        }
+    }
+
     private static final Pattern PATT = Pattern.compile(
             ".*targetcluster=\"([a-zA-Z0-9_\\.\\-]+)\".*", Pattern.DOTALL);
 
-    private String findCluster(JarFile jf) throws MojoFailureException, IOException {
-        ZipEntry entry = jf.getEntry("Info/info.xml");
-        InputStream ins = jf.getInputStream(entry);
-        String str = IOUtil.toString(ins, "UTF8");
+    private String findCluster(File nbm, Log log) throws MojoFailureException, IOException {
+        byte[] info = JarEntryReader.readEntry(nbm, "Info/info.xml");
+        String str = info != null ? new String(info, StandardCharsets.UTF_8) : "";
         Matcher m = PATT.matcher(str);
         if (!m.matches()) {
-            getLog().info("Cannot find cluster for " + jf.getName() + " Falling back to default value - '"
+            log.info("Cannot find cluster for " + nbm + " Falling back to default value - '"
                     + defaultCluster + "'.");
             return defaultCluster;
         } else {
@@ -734,79 +1194,24 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
         }
     }
      */
-    private ClusterTuple processCluster(String cluster, File nbmBuildDirFile, Artifact art) {
-        File clusterFile = new File(nbmBuildDirFile, cluster);
-        boolean newer = false;
-        if (!clusterFile.exists()) {
-            clusterFile.mkdir();
-            newer = true;
-        } else {
-            File stamp = new File(clusterFile, ".lastModified");
-            if (stamp.lastModified() < art.getFile().lastModified()) {
-                newer = true;
+    private static void deleteEmptyParents(File dir, File root) {
+        File rootFile = root.getAbsoluteFile();
+        File current = dir.getAbsoluteFile();
+        while (current != null && !current.equals(rootFile) && !current.getParentFile().equals(rootFile)) {
+            String[] children = current.list();
+            if (children == null || children.length > 0 || !current.delete()) {
+                return;
             }
+            current = current.getParentFile();
         }
-        return new ClusterTuple(clusterFile, newer);
     }
 
-    private void externalDownload(File f, InputStream is) throws IOException {
-        // Cf. org.netbeans.nbbuild.AutoUpdate
-        BufferedReader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-        long crc = -1;
-        long size = -1;
-        boolean found = false;
-        String line;
-        while ((line = r.readLine()) != null) {
-            if (line.startsWith("CRC:")) {
-                crc = Long.parseLong(line.substring(4).trim());
-            } else if (line.startsWith("URL:")) {
-                String rest = line.substring(4).trim();
-                if (rest.startsWith("m2:/")) {
-                    if (!found) {
-                        String[] coords = rest.substring(4).trim().split(":");
-                        Artifact artifact;
-                        String type = coords[3];
-                        ArtifactType artifactType = artifacts.getArtifactType(type);
-                        if (coords.length == 4) {
-                            artifact = new DefaultArtifact(coords[0], coords[1],  null, artifactType.getExtension(), coords[2], artifactType);
-                        } else {
-                            artifact = new DefaultArtifact(coords[0], coords[1], coords[4], artifactType.getExtension(), coords[2], artifactType);
-                        }
-                        try {
-                            ArtifactRequest request = new ArtifactRequest(artifact, project.getRemoteProjectRepositories(), "nbm");
-                            org.eclipse.aether.resolution.ArtifactResult result = repositorySystem.resolveArtifact(session.getRepositorySession(), request);
-                            artifact = result.getArtifact();
-                            FileUtils.copyFile(artifact.getFile(), f);
-                            found = true;
-                        } catch (ArtifactResolutionException x) {
-                            getLog().warn("Cannot find " + line.substring(8), x);
-                        }
-                    }
-                } else if (!found) {
-                    String url = line.substring(4).trim();
-                    try {
-                        // XXX use Wagon API instead
-                        FileUtils.copyURLToFile(new URL(url), f);
-                        found = true;
-                    } catch (IOException x) {
-                        getLog().warn("Cannot download " + url, x);
-                    }
-                }
-            } else if (line.startsWith("SIZE:")) {
-                size = Long.parseLong(line.substring(5).trim());
-            } else {
-                getLog().warn("Unrecognized line: " + line);
-            }
-        }
-        if (!found) {
-            throw new IOException("Could not download " + f);
-        }
-        if (crc != -1 && crc != crcForFile(f).getValue()) {
-            throw new IOException("CRC-32 of " + f + " does not match declared " + crc);
-        }
-        if (size != -1 && size != f.length()) {
-            throw new IOException("Size of " + f + " does not match declared " + size);
+    private static File clusterDirectory(String cluster, File nbmBuildDirFile) {
+        File clusterFile = new File(nbmBuildDirFile, cluster);
+        if (!clusterFile.exists()) {
+            clusterFile.mkdir();
         }
+        return clusterFile;
     }
 
     private File getHarnessNbm() throws MojoExecutionException {
@@ -854,6 +1259,16 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
         FileUtils.copyStreamToFile(() -> zip.getInputStream(path), destFile);
     }
 
+    private void logMissing(Map<String, Set<String>> missing, String header) {
+        if (missing.isEmpty()) {
+            return;
+        }
+        getLog().error(header);
+        for (Map.Entry<String, Set<String>> entry : missing.entrySet()) {
+            getLog().error("   " + entry.getKey() + "          ref: " + entry.getValue());
+        }
+    }
+
     private static void addToMap(Map<String, Set<String>> map, String clusterName, List<String> newValues) {
         Set<String> lst = map.get(clusterName);
         if (lst == null) {
@@ -865,16 +1280,6 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
         }
     }
 
-    private static List<String> findByDependencies(Map<String, Set<String>> clusterDependencies, String spec) {
-        List<String> toRet = new ArrayList<>();
-        for (Map.Entry<String, Set<String>> entry : clusterDependencies.entrySet()) {
-            if (entry.getValue().contains(spec)) {
-                toRet.add(entry.getKey());
-            }
-        }
-        return toRet;
-    }
-
     //the basic idea is that bundle's cluster can be determined by who depends on it.
     //simplest case is when a module depends on it. If there are more, we need to pick one that is "lower in the stack,
     //that's what cluster2depClusters is for.
@@ -882,7 +1287,7 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
     //start from bundles with known cluster and see what other bundles they depend on.
     //stamp all these with the same cluster. do it recursively.
     //At the end process the remaining bundles in reverse order.
-    //Check if *they* depend on a bundle with known cluster and so on..
+    //Check if *they* depend on a bundle with known cluster and so on.. (see BundleGraph)
     //A few unsolved cases:
     // - we never update the cluster information once a match was found,
     //   but there is a possibility that later in the processing the cluster could be "lowered".
@@ -894,12 +1299,19 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
                                         Map<String, Set<String>> cluster2depClusters, Log log) {
         Collection<Artifact> directDeps = mavenProject != null ? RepositoryUtils.toArtifacts(mavenProject.getDependencyArtifacts()) : bundles.stream().map(b -> b.artifact).filter(Objects::nonNull).collect(Collectors.toSet());
         Predicate<Artifact> isTransitive = a -> !directDeps.contains(a);
+        // module -> clusters depending on it, in the order of clusterDependencies
+        Map<String, List<String>> dependingClusters = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : clusterDependencies.entrySet()) {
+            for (String dep : entry.getValue()) {
+                dependingClusters.computeIfAbsent(dep, k -> new ArrayList<>(2)).add(entry.getKey());
+            }
+        }
         List<BundleTuple> toProcess = new ArrayList<>();
         List<BundleTuple> known = new ArrayList<>();
         for (Iterator<BundleTuple> it = bundles.iterator(); it.hasNext();) {
             BundleTuple ent = it.next();
             Artifact art = ent.artifact;
-            ExamineManifest ex = ent.manifest;
+            ManifestSummary ex = ent.manifest;
             String spec = ex.getModule();
             //null check for tests
             //have a way to force inclusion of osgi items. Direct dependency is never wrapped by modules.
@@ -910,7 +1322,7 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
                 it.remove();
                 continue;
             }
-            List<String> depclusters = findByDependencies(clusterDependencies, spec);
+            List<String> depclusters = new ArrayList<>(dependingClusters.getOrDefault(spec, Collections.emptyList()));
             if (depclusters.size() == 1) {
                 ent.cluster = depclusters.get(0);
                 known.add(ent);
@@ -941,127 +1353,49 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
             }
         }
         if (!toProcess.isEmpty()) {
-            walkKnownBundleDependenciesDown(known, toProcess);
-        }
-        if (!toProcess.isEmpty()) {
-            walkKnownBundleDependenciesUp(known, toProcess);
-        }
-    }
-
-    private static void walkKnownBundleDependenciesDown(List<BundleTuple> known, List<BundleTuple> toProcess) {
-        boolean atLeastOneWasFound = false;
-        for (Iterator<BundleTuple> it = toProcess.iterator(); it.hasNext();) {
-            BundleTuple bundleTuple = it.next();
-            boolean found = false;
-            for (BundleTuple knownBT : known) {
-                if (!intersection(bundleTuple.manifest.getOsgiExports(), knownBT.manifest.getOsgiImports()).isEmpty()) {
-                    found = true;
-                    bundleTuple.cluster = knownBT.cluster;
-                    break;
-                }
-                //dependencyTokens are requireBundle - matches the module property
-                if (knownBT.manifest.getDependencyTokens().contains(bundleTuple.manifest.getModule())) {
-                    found = true;
-                    bundleTuple.cluster = knownBT.cluster;
-                    break;
-                }
-
-            }
-            if (found) {
-                atLeastOneWasFound = true;
-                it.remove();
-                known.add(bundleTuple);
-            }
-
-        }
-        if (!toProcess.isEmpty() && atLeastOneWasFound) {
-            walkKnownBundleDependenciesDown(known, toProcess);
-        }
-    }
-
-    private static void walkKnownBundleDependenciesUp(List<BundleTuple> known, List<BundleTuple> toProcess) {
-        boolean atLeastOneWasFound = false;
-        for (Iterator<BundleTuple> it = toProcess.iterator(); it.hasNext();) {
-            BundleTuple bundleTuple = it.next();
-            boolean found = false;
-            for (BundleTuple knownBT : known) {
-                if (!intersection(bundleTuple.manifest.getOsgiImports(), knownBT.manifest.getOsgiExports()).isEmpty()) {
-                    found = true;
-                    bundleTuple.cluster = knownBT.cluster;
-                    break;
-                }
-                //dependencyTokens are requireBundle - matches the module property
-                if (bundleTuple.manifest.getDependencyTokens().contains(knownBT.manifest.getModule())) {
-                    found = true;
-                    bundleTuple.cluster = knownBT.cluster;
-                    break;
-                }
-
-            }
-            if (found) {
-                atLeastOneWasFound = true;
-                it.remove();
-                known.add(bundleTuple);
-            }
-
-        }
-        if (!toProcess.isEmpty() && atLeastOneWasFound) {
-            walkKnownBundleDependenciesDown(known, toProcess);
-        }
-        if (!toProcess.isEmpty() && atLeastOneWasFound) {
-            walkKnownBundleDependenciesUp(known, toProcess);
+            List<BundleTuple> all = new ArrayList<>(known);
+            all.addAll(toProcess);
+            new BundleGraph(all).assign(known.size());
         }
     }
 
     //static and default for tests..
     static Map<String, Set<String>> computeClusterOrdering(Map<String, Set<String>> clusterDependencies,
             Map<String, Set<String>> clusterModules) {
+        // module -> clusters containing it
+        Map<String, List<String>> moduleClusters = new HashMap<>();
+        for (Map.Entry<String, Set<String>> subEnt : clusterModules.entrySet()) {
+            for (String module : subEnt.getValue()) {
+                moduleClusters.computeIfAbsent(module, k -> new ArrayList<>(1)).add(subEnt.getKey());
+            }
+        }
         Map<String, Set<String>> cluster2depClusters = new HashMap<>();
         for (Map.Entry<String, Set<String>> entry : clusterDependencies.entrySet()) {
             String cluster = entry.getKey();
-            Set<String> deps = entry.getValue();
-            for (Map.Entry<String, Set<String>> subEnt : clusterModules.entrySet()) {
-                if (subEnt.getKey().equals(cluster)) {
-                    continue;
-                }
-                if (!intersection(subEnt.getValue(), deps).isEmpty()) {
-                    addToMap(cluster2depClusters, cluster, Collections.singletonList(subEnt.getKey()));
+            for (String dep : entry.getValue()) {
+                for (String depCluster : moduleClusters.getOrDefault(dep, Collections.emptyList())) {
+                    if (!depCluster.equals(cluster)) {
+                        addToMap(cluster2depClusters, cluster, Collections.singletonList(depCluster));
+                    }
                 }
             }
         }
         return cluster2depClusters;
     }
 
-    private static Set<String> intersection(Set<String> first, Collection<String> second) {
-        Set<String> intersection = new HashSet<>(first);
-        intersection.retainAll(second);
-        return intersection;
-    }
-
     static class BundleTuple {
 
         final Artifact artifact;
-        final ExamineManifest manifest;
+        final ManifestSummary manifest;
         String cluster;
 
         BundleTuple(Artifact artifact, ExamineManifest manifest) {
             this.artifact = artifact;
-            this.manifest = manifest;
+            this.manifest = manifest.getSummary();
         }
 
     }
 
-    private static class ClusterTuple {
-
-        final File location;
-        final boolean newer;
-
-        private ClusterTuple(File clusterFile, boolean newer) {
-            location = clusterFile;
-            this.newer = newer;
-        }
-    }
-
     static String createBundleConfigFile(String cnb, boolean autoload) {
         return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
                 + "<!DOCTYPE module PUBLIC \"-//NetBeans//DTD Module Status 1.0//EN\"\n"
@@ -1081,25 +1415,12 @@ public final class CreateClusterAppMojo extends AbstractNbmMojo {
                 + "<module codename=\"" + cnb + "\">\n"
                 + "    <module_version install_time=\"" + System.currentTimeMillis()
                 + "\" last=\"true\" origin=\"installer\" specification_version=\"" + specVersion + "\">\n"
-                + "        <file crc=\"" + crcForFile(moduleConf).getValue() + "\" name=\"config/Modules/" + cnb.replace(".", "-") + ".xml\"/>\n"
-                + "        <file crc=\"" + crcForFile(moduleArt).getValue() + "\" name=\"modules/" + cnb.replace(".", "-")
+                + "        <file crc=\"" + Checksums.crc32(moduleConf) + "\" name=\"config/Modules/" + cnb.replace(".", "-") + ".xml\"/>\n"
+                + "        <file crc=\"" + Checksums.crc32(moduleArt) + "\" name=\"modules/" + cnb.replace(".", "-")
                 + ".jar\"/>\n"
                 + "    </module_version>\n"
                 + "</module>";
 
     }
 
-    static CRC32 crcForFile(File inFile) throws IOException {
-        CRC32 crc = new CRC32();
-        try (InputStream inFileStream = new FileInputStream(inFile)) {
-            byte[] array = new byte[(int) inFile.length()];
-            int len = inFileStream.read(array);
-            if (len != array.length) {
-                throw new IOException("Cannot fully read " + inFile);
-            }
-            crc.update(array);
-        }
-        return crc;
-    }
-
 }
@@ -74,8 +74,8 @@ public final class CreateClusterMojo extends AbstractNbmMojo {
     private File clusterBuildDir;
 
     @Inject
-    public CreateClusterMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts) {
-        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts);
+    public CreateClusterMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer) {
+        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts, manifestExaminer);
     }
 
     @Override
@@ -228,8 +228,8 @@ public abstract class CreateNetBeansFileStructure extends AbstractNbmMojo {
     protected final MavenResourcesFiltering mavenResourcesFiltering;
 
     @Inject
-    public CreateNetBeansFileStructure(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, MavenResourcesFiltering mavenResourcesFiltering) {
-        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts);
+    public CreateNetBeansFileStructure(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer, MavenResourcesFiltering mavenResourcesFiltering) {
+        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts, manifestExaminer);
         this.mavenResourcesFiltering = mavenResourcesFiltering;
     }
 
@@ -550,7 +550,7 @@ public abstract class CreateNetBeansFileStructure extends AbstractNbmMojo {
     static void writeExternal(Artifacts artifacts, PrintWriter w, Artifact artifact) throws IOException {
         w.write("CRC:");
         File file = artifact.getFile();
-        w.write(Long.toString(CreateClusterAppMojo.crcForFile(file).getValue()));
+        w.write(Long.toString(Checksums.crc32(file)));
         w.write("\nSIZE:");
         w.write(Long.toString(file.length()));
         w.write("\nURL:m2:/");
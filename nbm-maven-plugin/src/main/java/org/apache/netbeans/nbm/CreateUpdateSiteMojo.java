@@ -19,7 +19,7 @@ package org.apache.netbeans.nbm;
  * under the License.
  */
 import java.io.File;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -111,8 +111,8 @@ public final class CreateUpdateSiteMojo extends AbstractNbmMojo {
     private List<String> updateSiteIncludes;
 
     @Inject
-    public CreateUpdateSiteMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts) {
-        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts);
+    public CreateUpdateSiteMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer) {
+        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts, manifestExaminer);
     }
 
     @Override
@@ -138,12 +138,16 @@ public final class CreateUpdateSiteMojo extends AbstractNbmMojo {
         }
 
         if ("nbm-application".equals(project.getPackaging())) {
-            Collection<Artifact> artifacts = RepositoryUtils.toArtifacts(project.getArtifacts());
-            for (Artifact art : artifacts) {
-                if (!matchesIncludes(art)) {
-                    continue;
+            List<Artifact> artifacts = new ArrayList<>();
+            for (Artifact art : RepositoryUtils.toArtifacts(project.getArtifacts())) {
+                if (matchesIncludes(art)) {
+                    artifacts.add(art);
                 }
-                ArtifactResult res = turnJarToNbmFile(art, project);
+            }
+            List<ArtifactResult> results = turnJarsToNbmFiles(artifacts, project);
+            for (int i = 0; i < artifacts.size(); i++) {
+                Artifact art = artifacts.get(i);
+                ArtifactResult res = results.get(i);
                 if (res.hasConvertedArtifact()) {
                     art = res.getConvertedArtifact();
                 }
@@ -0,0 +1,341 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import org.apache.maven.plugin.logging.Log;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactType;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
+
+/**
+ * Resolves the files referenced by <code>.external</code> entries of NBM
+ * files. The URLs of an entry are tried in their order, like
+ * <code>org.netbeans.nbbuild.AutoUpdate</code> does. Leading
+ * <code>m2:/</code> coordinates of all entries are resolved in one request,
+ * later ones only when the URLs before them failed. URLs are downloaded
+ * concurrently into a cache shared by all builds on the machine, where a
+ * file is named by its declared CRC-32 and size, so any URL serving the same
+ * content hits the same entry. Without a declared size the URL is part of
+ * the name, as the CRC-32 alone does not identify the content.
+ */
+final class ExternalResolver {
+
+    private static final String M2 = "m2:/";
+    private static final String TEMP = ".tmp-";
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+    private static final int READ_TIMEOUT = 120 * 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RepositorySystem repositorySystem;
+    private final RepositorySystemSession session;
+    private final List<RemoteRepository> repositories;
+    private final Artifacts artifacts;
+    private final File cacheDir;
+
+    /**
+     * @param cacheDir folder of the download cache
+     */
+    ExternalResolver(RepositorySystem repositorySystem, RepositorySystemSession session,
+            List<RemoteRepository> repositories, Artifacts artifacts, File cacheDir) {
+        this.repositorySystem = repositorySystem;
+        this.session = session;
+        this.repositories = repositories;
+        this.artifacts = artifacts;
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Resolves the files, setting {@link External#getSource()} of the ones
+     * found. Failures are logged as warnings to the log of the external.
+     *
+     * @param externals externals to resolve
+     * @throws InterruptedException if interrupted while downloading
+     */
+    void resolveAll(List<External> externals) throws InterruptedException {
+        if (externals.isEmpty()) {
+            return;
+        }
+        List<ArtifactRequest> requests = new ArrayList<>();
+        for (External external : externals) {
+            if (leadingM2(external)) {
+                requests.add(new ArtifactRequest(artifact(external.urls.get(0)), repositories, "nbm"));
+            }
+        }
+        List<ArtifactResult> results = Collections.emptyList();
+        if (!requests.isEmpty()) {
+            try {
+                results = repositorySystem.resolveArtifacts(session, requests);
+            } catch (ArtifactResolutionException ex) {
+                // has a result for every request, the failed ones are logged when their turn comes
+                results = ex.getResults();
+            }
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int m2 = 0;
+        for (External external : externals) {
+            ArtifactResult resolved = leadingM2(external) ? results.get(m2++) : null;
+            if (externals.size() == 1) {
+                try {
+                    resolve(external, resolved);
+                } catch (RuntimeException ex) {
+                    failed(external, ex);
+                }
+                return;
+            }
+            tasks.add(() -> {
+                resolve(external, resolved);
+                return null;
+            });
+        }
+        int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), r -> {
+            Thread t = new Thread(r, "nbm-external");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<Void>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException ex) {
+                failed(externals.get(i), ex.getCause());
+            }
+        }
+    }
+
+    private static void failed(External external, Throwable cause) {
+        external.log.warn("Cannot resolve " + String.join(", ", external.urls), cause);
+    }
+
+    private static boolean leadingM2(External external) {
+        return !external.urls.isEmpty() && external.urls.get(0).startsWith(M2);
+    }
+
+    /**
+     * Tries the URLs of the external in their order until one gives the
+     * declared content.
+     *
+     * @param leading result of the leading <code>m2:/</code> URL, null if
+     * there is none
+     */
+    private void resolve(External external, ArtifactResult leading) {
+        for (int i = 0; i < external.urls.size(); i++) {
+            String url = external.urls.get(i);
+            if (url.startsWith(M2)) {
+                ArtifactResult result = i == 0 ? leading : resolve(url);
+                if (result.isResolved()) {
+                    external.source = result.getArtifact().getFile();
+                    return;
+                }
+                external.log.warn("Cannot find " + url.substring(M2.length()),
+                        new ArtifactResolutionException(Collections.singletonList(result)));
+            } else {
+                try {
+                    external.source = download(external, new URL(url));
+                    return;
+                } catch (IOException x) {
+                    external.log.warn("Cannot download " + url, x);
+                }
+            }
+        }
+    }
+
+    private ArtifactResult resolve(String url) {
+        ArtifactRequest request = new ArtifactRequest(artifact(url), repositories, "nbm");
+        try {
+            return repositorySystem.resolveArtifact(session, request);
+        } catch (ArtifactResolutionException ex) {
+            return ex.getResult();
+        }
+    }
+
+    private Artifact artifact(String url) {
+        String[] coords = url.substring(M2.length()).trim().split(":");
+        ArtifactType artifactType = artifacts.getArtifactType(coords[3]);
+        String classifier = coords.length == 4 ? null : coords[4];
+        return new DefaultArtifact(coords[0], coords[1], classifier, artifactType.getExtension(), coords[2],
+                artifactType);
+    }
+
+    /**
+     * Downloads into the cache unless the declared content is there already.
+     * The content is checked while it is downloaded, a file not matching the
+     * declared CRC-32 and size never gets into the cache.
+     */
+    private File download(External external, URL url) throws IOException {
+        String key = null;
+        if (external.crc != -1) {
+            key = ClusterAppState.checksum(external.crc) + "-"
+                    + (external.size != -1 ? Long.toString(external.size) : Checksums.sha256(url.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        File cached = key != null ? new File(cacheDir, key) : null;
+        if (cached != null && cached.isFile()) {
+            external.cached = true;
+            return cached;
+        }
+        cacheDir.mkdirs();
+        File temp = File.createTempFile(TEMP, null, cacheDir);
+        try {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            try (InputStream in = connection.getInputStream()) {
+                copy(in, temp, external, url.toString());
+            }
+            if (cached == null) {
+                // nothing declared to address it by, used once
+                external.temporary = true;
+                return temp;
+            }
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            external.cached = true;
+            return cached;
+        } finally {
+            if (!external.temporary) {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+    }
+
+    /**
+     * Copies the resolved file of the external to the target, checking the
+     * declared CRC-32 and size while copying.
+     *
+     * @param external resolved external
+     * @param target file to write
+     * @throws IOException if the file cannot be copied or does not match
+     */
+    static void copy(External external, File target) throws IOException {
+        boolean copied = false;
+        try (InputStream in = Files.newInputStream(external.source.toPath())) {
+            copy(in, target, external, target.toString());
+            copied = true;
+        } finally {
+            // a damaged cache entry is downloaded again by the next build
+            if (external.temporary || (!copied && external.cached)) {
+                Files.deleteIfExists(external.source.toPath());
+            }
+        }
+    }
+
+    private static void copy(InputStream in, File target, External external, String name) throws IOException {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try (OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                size += read;
+            }
+        }
+        if (external.crc != -1 && external.crc != crc.getValue()) {
+            Files.delete(target.toPath());
+            throw new IOException("CRC-32 of " + name + " does not match declared " + external.crc);
+        }
+        if (external.size != -1 && external.size != size) {
+            Files.delete(target.toPath());
+            throw new IOException("Size of " + name + " does not match declared " + external.size);
+        }
+    }
+
+    /**
+     * Content of a <code>.external</code> entry.
+     */
+    static final class External {
+
+        private final List<String> urls = new ArrayList<>();
+        private final Log log;
+        private long crc = -1;
+        private long size = -1;
+        private File source;
+        // downloaded outside of the cache, deleted once copied
+        private boolean temporary;
+        private boolean cached;
+
+        private External(Log log) {
+            this.log = log;
+        }
+
+        /**
+         * @param is content of the <code>.external</code> entry
+         * @param log receives warnings about the entry and its resolution
+         * @return parsed external
+         * @throws IOException if the content cannot be read
+         */
+        static External parse(InputStream is, Log log) throws IOException {
+            External external = new External(log);
+            BufferedReader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("CRC:")) {
+                    external.crc = Long.parseLong(line.substring(4).trim());
+                } else if (line.startsWith("URL:")) {
+                    external.urls.add(line.substring(4).trim());
+                } else if (line.startsWith("SIZE:")) {
+                    external.size = Long.parseLong(line.substring(5).trim());
+                } else {
+                    log.warn("Unrecognized line: " + line);
+                }
+            }
+            return external;
+        }
+
+        /**
+         * @return the resolved file or null if none of the URLs worked
+         */
+        File getSource() {
+            return source;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Store of NBM payloads shared by all builds on a machine, so that the files
+ * of an NBM are inflated once and the clusters of every application get hard
+ * links to them. Each NBM is kept in a folder named by the SHA-256 of the NBM
+ * file, holding the content of its <code>netbeans/</code> folder, except
+ * <code>.external</code> entries, which are downloaded into the cluster.
+ * <p>
+ * Concurrent builds are safe: an entry is unpacked into a temporary folder
+ * and renamed into place in one step, and evicted entries are renamed away
+ * before they are deleted. Files already linked into clusters are not
+ * affected by eviction, a build losing an entry it was about to link from
+ * falls back to extracting the NBM itself.
+ * <p>
+ * A cluster file shares its content with the store, so writing it in place
+ * (rather than replacing it) changes the store too. Unpacked files get the
+ * time stamp of their NBM entry, and a file is checked against the size and
+ * time stamp of the entry before it is linked. An entry with a changed file
+ * is discarded and unpacked again by the next build.
+ */
+final class ExtractedNbmStore {
+
+    private static final String PAYLOAD = "netbeans";
+    private static final String SIZE = "size";
+    private static final String TEMP = ".tmp-";
+    // leftovers of a crashed build
+    private static final long STALE_TEMP = TimeUnit.DAYS.toMillis(1);
+    // file systems with coarse time stamps
+    private static final long TIME_PRECISION = 2000;
+
+    private final File root;
+    private final long maxSize;
+
+    /**
+     * @param root folder of the store
+     * @param maxSize bytes of unpacked content kept by {@link #evict}
+     */
+    ExtractedNbmStore(File root, long maxSize) {
+        this.root = root;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param nbm NBM file
+     * @return folder with the content of the <code>netbeans/</code> folder of
+     * the NBM, unpacked now if not stored yet
+     * @throws IOException when the NBM cannot be unpacked
+     */
+    File get(File nbm) throws IOException {
+        String key = Checksums.sha256(nbm);
+        File entry = new File(root, key);
+        if (!entry.isDirectory()) {
+            root.mkdirs();
+            Path temp = Files.createTempDirectory(root.toPath(), TEMP + key);
+            try {
+                long size = unpack(nbm, temp.resolve(PAYLOAD));
+                Files.write(temp.resolve(SIZE), Long.toString(size).getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.move(temp, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException | DirectoryNotEmptyException ex) {
+                    // unpacked by a concurrent build meanwhile
+                }
+            } finally {
+                if (Files.exists(temp)) {
+                    FileUtils.deleteDirectory(temp.toFile());
+                }
+            }
+        }
+        // least recently used entries are evicted first
+        entry.setLastModified(System.currentTimeMillis());
+        return new File(entry, PAYLOAD);
+    }
+
+    /**
+     * Hard links a stored file into a cluster, or copies it where the store
+     * is on another file system. Whatever was at the target is replaced, not
+     * written through, so a linked file never changes the store.
+     *
+     * @param payload folder returned by {@link #get}
+     * @param path path of the file in the payload
+     * @param expected entry of the NBM the file was unpacked from
+     * @param target file in the cluster
+     * @return false if the file could be neither linked nor copied, e.g.
+     * because the entry was evicted meanwhile, or if the stored file changed
+     * since it was unpacked
+     */
+    boolean link(File payload, String path, ZipEntry expected, File target) {
+        File source = new File(payload, path);
+        if (!source.isFile()) {
+            return false;
+        }
+        if (!intact(source, expected)) {
+            remove(payload.getParentFile());
+            return false;
+        }
+        try {
+            Files.deleteIfExists(target.toPath());
+            target.getParentFile().mkdirs();
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+            } catch (IOException | UnsupportedOperationException ex) {
+                Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static boolean intact(File file, ZipEntry expected) {
+        long time = expected.getTime();
+        return (expected.getSize() == -1 || file.length() == expected.getSize())
+                && (time == -1 || Math.abs(file.lastModified() - time) < TIME_PRECISION);
+    }
+
+    /**
+     * Removes the least recently used entries beyond the size limit, and
+     * temporary folders left behind by crashed builds.
+     *
+     * @throws IOException when the store cannot be cleaned
+     */
+    void evict() throws IOException {
+        File[] children = root.listFiles(File::isDirectory);
+        if (children == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<File> entries = new ArrayList<>();
+        for (File child : children) {
+            if (!child.getName().startsWith(TEMP)) {
+                entries.add(child);
+            } else if (now - child.lastModified() > STALE_TEMP) {
+                FileUtils.deleteDirectory(child);
+            }
+        }
+        entries.sort(Comparator.comparingLong(File::lastModified).reversed());
+        long total = 0;
+        for (File entry : entries) {
+            long size = size(entry);
+            total += Math.max(size, 0);
+            // damaged entries go as well
+            if (size < 0 || total > maxSize) {
+                remove(entry);
+            }
+        }
+    }
+
+    // renamed away first, so no build sees a partially deleted entry
+    private void remove(File entry) {
+        File removed = new File(root, TEMP + "evicted-" + entry.getName() + "-" + System.nanoTime());
+        if (entry.renameTo(removed)) {
+            try {
+                FileUtils.deleteDirectory(removed);
+            } catch (IOException ex) {
+                // deleted as a stale temporary folder later
+            }
+        }
+    }
+
+    private static long size(File entry) {
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(new File(entry, SIZE).toPath()),
+                    StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static long unpack(File nbm, Path payload) throws IOException {
+        long size = 0;
+        try (ZipFile zip = new ZipFile(nbm)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.startsWith("netbeans/") || name.endsWith(".external")
+                        || name.endsWith(".jar.pack.gz")) {
+                    continue;
+                }
+                Path file = payload.resolve(name.substring("netbeans/".length())).normalize();
+                if (!file.startsWith(payload)) {
+                    throw new IOException("Bad entry " + name + " in " + nbm);
+                }
+                Files.createDirectories(file.getParent());
+                try (InputStream in = zip.getInputStream(entry)) {
+                    size += Files.copy(in, file);
+                }
+                if (entry.getTime() != -1) {
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(entry.getTime()));
+                }
+            }
+        }
+        return size;
+    }
+}
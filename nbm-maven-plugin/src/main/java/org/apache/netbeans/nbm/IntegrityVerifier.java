@@ -0,0 +1,219 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.PackageTrie;
+
+/**
+ * Checks that the modules and bundles of an application satisfy each other:
+ * every module dependency is included, every required OSGi import is
+ * exported and every required token is provided. Modules and bundles are
+ * added one by one into indexes of what is provided and what is needed, by
+ * whom; {@link #verify()} then looks up each needed item once, so the check
+ * takes time linear in the size of the manifests, however many modules
+ * there are.
+ * <p>
+ * Not thread safe.
+ */
+final class IntegrityVerifier {
+
+    private static final Set<String> PLATFORM_TOKENS = new HashSet<>(Arrays.asList(
+            "org.openide.modules.os.Windows",
+            "org.openide.modules.os.Unix",
+            "org.openide.modules.os.MacOSX",
+            "org.openide.modules.os.OS2",
+            "org.openide.modules.os.PlainUnix",
+            "org.openide.modules.os.Linux",
+            "org.openide.modules.os.Solaris",
+            "org.openide.modules.ModuleFormat1",
+            "org.openide.modules.ModuleFormat2",
+            "org.openide.modules.jre.JavaFX" //MNBMODULE-234
+    ));
+
+    // provided, by whom
+    private final Set<String> modules = new HashSet<>();
+    private final Map<String, Set<String>> exporters = new HashMap<>();
+    private final Map<String, Set<String>> providers = new HashMap<>();
+    // packages visible from the JDK and, as a way to deal with nb modules declaring xxx.** (subpackages)
+    // consumed by osgi imports, the package trees of modules
+    private final PackageTrie exportedTrees = new PackageTrie()
+            .addPrefix("java.")
+            .addPrefix("javax.")
+            .addPrefix("sun.")
+            .addPrefix("org.xml.sax")
+            .addPrefix("org.w3c.dom")
+            .addPrefix("org.ietf.jgss");
+    private final Set<String> exportedTreeRoots = new HashSet<>();
+
+    // needed, by whom
+    private final Map<String, Set<String>> dependencies = new HashMap<>();
+    private final Map<String, Set<String>> imports = new HashMap<>();
+    private final Map<String, Set<String>> requires = new HashMap<>();
+
+    /**
+     * Adds a jar of an NBM file, a NetBeans module or a library of one.
+     *
+     * @param ex examined manifest of the jar
+     */
+    void addModule(ExamineManifest ex) {
+        String module = ex.getModule();
+        addModuleName(module);
+        addAll(dependencies, ex.getDependencyTokens(), module);
+        if (ex.isNetBeansModule()) {
+            addAll(requires, ex.getNetBeansRequiresTokens(), module);
+            for (String token : ex.getNetBeansProvidesTokens()) {
+                add(providers, token, module);
+            }
+            for (String pack : ex.getPackages()) {
+                if (pack.endsWith(".**")) {
+                    String root = pack.substring(0, pack.length() - ".**".length());
+                    if (exportedTreeRoots.add(root)) {
+                        exportedTrees.addPrefix(root);
+                    }
+                } else if (pack.endsWith(".*")) {
+                    add(exporters, pack.substring(0, pack.length() - ".*".length()), module);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an OSGi bundle. Optional imports need not be satisfied.
+     *
+     * @param ex examined manifest of the bundle
+     */
+    void addBundle(ExamineManifest ex) {
+        String module = ex.getModule();
+        addModuleName(module);
+        addAll(dependencies, ex.getDependencyTokens(), module);
+        addAll(imports, ex.getOsgiRequiredImports(), module);
+        for (String pack : ex.getOsgiExports()) {
+            add(exporters, pack, module);
+        }
+    }
+
+    /**
+     * Prints the provided items at debug level.
+     *
+     * @param log logger
+     */
+    void logProvided(Log log) {
+        if (log.isDebugEnabled()) {
+            log.debug("All found codenamebases:" + modules);
+            log.debug("All found OSGI exports:" + exporters.keySet());
+            log.debug("All found provided tokens:" + providers.keySet());
+        }
+    }
+
+    /**
+     * @return what is missing, with the modules needing it
+     */
+    Result verify() {
+        Result result = new Result();
+        for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+            String cnb = entry.getKey();
+            //this is special.
+            boolean netbinox = cnb.equals("org.eclipse.osgi") && modules.contains("org.netbeans.modules.netbinox");
+            if (!modules.contains(cnb) && !netbinox) {
+                result.missingModules.put(cnb, entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : imports.entrySet()) {
+            String pack = entry.getKey();
+            if (!exporters.containsKey(pack) && !exportedTrees.matches(pack)) {
+                result.missingImports.put(pack, entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : requires.entrySet()) {
+            String token = entry.getKey();
+            if (!providers.containsKey(token) && !PLATFORM_TOKENS.contains(token)) {
+                result.missingTokens.put(token, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private void addModuleName(String module) {
+        if (module != null) {
+            modules.add(module);
+        }
+    }
+
+    private static void addAll(Map<String, Set<String>> index, Collection<String> keys, String module) {
+        for (String key : keys) {
+            add(index, key, module);
+        }
+    }
+
+    private static void add(Map<String, Set<String>> index, String key, String module) {
+        Set<String> referrers = index.get(key);
+        if (referrers == null) {
+            referrers = new LinkedHashSet<>(2);
+            index.put(key, referrers);
+        }
+        referrers.add(module);
+    }
+
+    /**
+     * Missing items, sorted, each with the modules needing it in the order
+     * they were added.
+     */
+    static final class Result {
+
+        private final SortedMap<String, Set<String>> missingModules = new TreeMap<>();
+        private final SortedMap<String, Set<String>> missingImports = new TreeMap<>();
+        private final SortedMap<String, Set<String>> missingTokens = new TreeMap<>();
+
+        boolean isEmpty() {
+            return missingModules.isEmpty() && missingImports.isEmpty() && missingTokens.isEmpty();
+        }
+
+        /**
+         * @return code name bases depended on but not included
+         */
+        SortedMap<String, Set<String>> getMissingModules() {
+            return missingModules;
+        }
+
+        /**
+         * @return packages imported by bundles but not exported
+         */
+        SortedMap<String, Set<String>> getMissingImports() {
+            return missingImports;
+        }
+
+        /**
+         * @return tokens required by modules but not provided
+         */
+        SortedMap<String, Set<String>> getMissingTokens() {
+            return missingTokens;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Attributes;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.ManifestCache;
+import org.apache.netbeans.nbm.utils.ManifestSummary;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Examined manifests shared by all goals and all modules of a build, so that
+ * e.g. <code>org-openide-util</code> is examined once per build and not once
+ * per goal of every module. Entries are keyed by file, size and last
+ * modification time, files rewritten during the build are examined again.
+ * Thread safe for parallel builds and bounded in size.
+ */
+@Singleton
+@Named
+public final class ManifestExaminer {
+
+    private static final int MAX_ENTRIES = 20000;
+
+    private final Map<Key, ManifestSummary> summaries = new LinkedHashMap<Key, ManifestSummary>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, ManifestSummary> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Examines a jar file or a folder with <code>META-INF/MANIFEST.MF</code>.
+     *
+     * @param file artifact file
+     * @param populateDependencies see
+     * {@link ExamineManifest#setPopulateDependencies}
+     * @param manifestCache persistent cache consulted on a miss, or null
+     * @param log logger
+     * @return new examiner, already examined
+     * @throws MojoExecutionException if the file cannot be read
+     */
+    public ExamineManifest examine(File file, boolean populateDependencies, ManifestCache manifestCache, Log log)
+            throws MojoExecutionException {
+        Key key = Key.of(file, populateDependencies);
+        ManifestSummary summary = key != null ? get(key) : null;
+        if (summary != null) {
+            hits.incrementAndGet();
+            return new ExamineManifest(log, summary);
+        }
+        misses.incrementAndGet();
+        ExamineManifest examiner = new ExamineManifest(log);
+        examiner.setCache(manifestCache);
+        examiner.setPopulateDependencies(populateDependencies);
+        examiner.setArtifactFile(file);
+        examiner.checkFile();
+        if (key != null) {
+            put(key, examiner.getSummary());
+        }
+        return examiner;
+    }
+
+    /**
+     * Examines main attributes read from a jar file while it was being
+     * written, so the jar is not opened again. Later examinations of the
+     * unchanged file are hits, both in this build and, through the persistent
+     * cache, in the next ones.
+     *
+     * @param file the written jar file
+     * @param attrs main attributes of the jar, null if it has no manifest
+     * @param populateDependencies see
+     * {@link ExamineManifest#setPopulateDependencies}
+     * @param manifestCache persistent cache to update, or null
+     * @param log logger
+     * @return new examiner, already examined
+     */
+    public ExamineManifest examine(File file, Attributes attrs, boolean populateDependencies,
+            ManifestCache manifestCache, Log log) {
+        misses.incrementAndGet();
+        ExamineManifest examiner = new ExamineManifest(log);
+        examiner.setCache(manifestCache);
+        examiner.setPopulateDependencies(populateDependencies);
+        examiner.setJarFile(file);
+        examiner.checkAttributes(attrs);
+        Key key = Key.of(file, populateDependencies);
+        if (key != null) {
+            put(key, examiner.getSummary());
+        }
+        return examiner;
+    }
+
+    /**
+     * Bulk variant of {@link #examine}, files not examined yet in this build
+     * are examined concurrently. Files that fail are left out of the result.
+     *
+     * @param <K> key type
+     * @param files files to examine
+     * @param populateDependencies see
+     * {@link ExamineManifest#setPopulateDependencies}
+     * @param manifestCache persistent cache consulted on a miss, or null
+     * @param log logger
+     * @return examiners in the iteration order of <code>files</code>
+     */
+    public <K> Map<K, ExamineManifest> examineAll(Map<K, File> files, boolean populateDependencies,
+            ManifestCache manifestCache, Log log) {
+        Map<K, ExamineManifest> toRet = new LinkedHashMap<>();
+        Map<K, File> missing = new LinkedHashMap<>();
+        for (Map.Entry<K, File> entry : files.entrySet()) {
+            Key key = Key.of(entry.getValue(), populateDependencies);
+            ManifestSummary summary = key != null ? get(key) : null;
+            if (summary != null) {
+                hits.incrementAndGet();
+                toRet.put(entry.getKey(), new ExamineManifest(log, summary));
+            } else {
+                misses.incrementAndGet();
+                toRet.put(entry.getKey(), null);
+                missing.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Map<K, ExamineManifest> examined = ExamineManifest.examineAll(missing, populateDependencies,
+                manifestCache, log);
+        for (Map.Entry<K, File> entry : missing.entrySet()) {
+            ExamineManifest examiner = examined.get(entry.getKey());
+            if (examiner == null) {
+                toRet.remove(entry.getKey());
+                continue;
+            }
+            toRet.put(entry.getKey(), examiner);
+            Key key = Key.of(entry.getValue(), populateDependencies);
+            if (key != null) {
+                put(key, examiner.getSummary());
+            }
+        }
+        return toRet;
+    }
+
+    /**
+     * Prints hit and miss counters at debug level.
+     *
+     * @param log logger
+     */
+    public void logStatistics(Log log) {
+        if (log.isDebugEnabled()) {
+            int size;
+            synchronized (summaries) {
+                size = summaries.size();
+            }
+            log.debug("Shared manifest examinations: " + hits.get() + " hits, " + misses.get() + " misses, "
+                    + size + " entries");
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private ManifestSummary get(Key key) {
+        synchronized (summaries) {
+            return summaries.get(key);
+        }
+    }
+
+    private void put(Key key, ManifestSummary summary) {
+        synchronized (summaries) {
+            summaries.put(key, summary);
+        }
+    }
+
+    private static final class Key {
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final boolean populateDependencies;
+
+        private Key(String path, long size, long lastModified, boolean populateDependencies) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.populateDependencies = populateDependencies;
+        }
+
+        /**
+         * @return key or null when the file should not be cached
+         */
+        static Key of(File file, boolean populateDependencies) {
+            File examined = file;
+            if (file.isDirectory()) {
+                // e.g. target/classes of a reactor module, the manifest changes, not the folder
+                examined = new File(file, "META-INF/MANIFEST.MF");
+            }
+            if (!examined.isFile()) {
+                return null;
+            }
+            return new Key(examined.getAbsolutePath(), examined.length(), examined.lastModified(),
+                    populateDependencies);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return size == other.size && lastModified == other.lastModified
+                    && populateDependencies == other.populateDependencies && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, size, lastModified, populateDependencies);
+        }
+    }
+}
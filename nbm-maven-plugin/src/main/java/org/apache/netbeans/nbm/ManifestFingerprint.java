@@ -0,0 +1,161 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fingerprint of the inputs of <code>nbm:manifest</code>, used to skip the
+ * goal when nothing changed since the manifest was last generated. Small
+ * files such as the source manifest are taken by content, dependency jars and
+ * class files by path, size and timestamp, so that checking a build with
+ * nothing to do reads none of them.
+ * <p>
+ * The stamp file holds the fingerprint and the digest of the manifest
+ * written for it, so a manifest replaced by some other plugin is noticed.
+ */
+final class ManifestFingerprint {
+
+    private final MessageDigest digest = Checksums.sha256();
+
+    /**
+     * @param key name of the input
+     * @param value its value, may be null
+     * @return this
+     */
+    ManifestFingerprint add(String key, Object value) {
+        update(key + '=' + value);
+        return this;
+    }
+
+    /**
+     * Adds the content of a file.
+     *
+     * @param key name of the input
+     * @param file file or null
+     * @return this
+     * @throws IOException when the file cannot be read
+     */
+    ManifestFingerprint addContent(String key, File file) throws IOException {
+        if (file == null || !file.isFile()) {
+            return add(key, "-");
+        }
+        update(key + '=' + file.length());
+        digest.update(Files.readAllBytes(file.toPath()));
+        return this;
+    }
+
+    /**
+     * Adds path, size and timestamp of a file, or of all files in a folder.
+     *
+     * @param key name of the input
+     * @param file file, folder or null
+     * @return this
+     * @throws IOException when the folder cannot be listed
+     */
+    ManifestFingerprint addStamp(String key, File file) throws IOException {
+        if (file != null && file.isDirectory()) {
+            return addTree(key, file, null);
+        }
+        if (file == null || !file.exists()) {
+            return add(key, file + " -");
+        }
+        return add(key, file.getAbsolutePath() + ' ' + file.length() + ' ' + file.lastModified());
+    }
+
+    /**
+     * Adds relative path, size and timestamp of all files in a folder.
+     *
+     * @param key name of the input
+     * @param dir folder
+     * @param exclude file to leave out, may be null
+     * @return this
+     * @throws IOException when the folder cannot be listed
+     */
+    ManifestFingerprint addTree(String key, File dir, File exclude) throws IOException {
+        add(key, dir.getAbsolutePath());
+        if (!dir.isDirectory()) {
+            return this;
+        }
+        Path root = dir.toPath();
+        Path excluded = exclude != null ? exclude.toPath().toAbsolutePath() : null;
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> excluded == null || !p.toAbsolutePath().equals(excluded))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path p : files) {
+            File f = p.toFile();
+            update(root.relativize(p).toString().replace(File.separatorChar, '/') + ' ' + f.length() + ' '
+                    + f.lastModified());
+        }
+        return this;
+    }
+
+    /**
+     * @return hex digest of everything added
+     */
+    String value() {
+        return Checksums.hex(digest.digest());
+    }
+
+    /**
+     * @param stamp stamp file written by {@link #store}
+     * @param fingerprint current fingerprint
+     * @param manifest generated manifest
+     * @return true if the stamp is for the fingerprint and the manifest is the
+     * one written along with it
+     * @throws IOException when the manifest cannot be read
+     */
+    static boolean isUpToDate(File stamp, String fingerprint, File manifest) throws IOException {
+        if (!stamp.isFile() || !manifest.isFile()) {
+            return false;
+        }
+        List<String> lines = Files.readAllLines(stamp.toPath(), StandardCharsets.UTF_8);
+        return lines.size() == 2 && lines.get(0).equals(fingerprint)
+                && lines.get(1).equals(Checksums.sha256(Files.readAllBytes(manifest.toPath())));
+    }
+
+    /**
+     * @param stamp stamp file
+     * @param fingerprint fingerprint of the inputs
+     * @param manifest content of the manifest generated from them
+     * @throws IOException when the stamp cannot be written
+     */
+    static void store(File stamp, String fingerprint, byte[] manifest) throws IOException {
+        stamp.getParentFile().mkdirs();
+        Files.write(stamp.toPath(), (fingerprint + '\n' + Checksums.sha256(manifest) + '\n')
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void update(String entry) {
+        digest.update(entry.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+}
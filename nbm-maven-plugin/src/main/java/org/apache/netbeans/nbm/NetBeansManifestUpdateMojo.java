@@ -24,20 +24,31 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.Reader;
-import java.net.URL;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.BreakIterator;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 import javax.inject.Inject;
 
@@ -51,11 +62,10 @@ import org.apache.maven.plugins.annotations.ResolutionScope;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
 import org.apache.maven.project.ProjectDependenciesResolver;
-import org.apache.maven.shared.dependency.analyzer.DefaultClassAnalyzer;
-import org.apache.maven.shared.dependency.analyzer.asm.ASMDependencyAnalyzer;
 import org.apache.netbeans.nbm.model.Dependency;
 import org.apache.netbeans.nbm.model.NetBeansModule;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.PackageTrie;
 import org.apache.tools.ant.taskdefs.Manifest;
 import org.apache.tools.ant.taskdefs.ManifestException;
 import org.eclipse.aether.RepositorySystem;
@@ -165,9 +175,66 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
     @Parameter(property = "maven.nbm.verify", defaultValue = "fail")
     private String verifyRuntime;
 
+    /**
+     * Keep the classes defined and referenced by dependency jars in a
+     * persistent index, so that runtime verification only has to analyze the
+     * project's own classes on subsequent builds. The index is shared by all
+     * modules and builds using the same index directory.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "true", property = "maven.nbm.verify.index")
+    private boolean useVerifyRuntimeIndex;
+
+    /**
+     * Directory of the persistent class index used by runtime verification.
+     * Defaults to a folder inside the local repository.
+     *
+     * @since 15.0
+     */
+    @Parameter(property = "maven.nbm.verify.indexDirectory")
+    private File verifyRuntimeIndexDirectory;
+
+    /**
+     * Granularity of the runtime verification, <code>class</code> or
+     * <code>package</code>. With <code>package</code> the verification works
+     * on the packages of used and provided classes, read from the class index
+     * without loading the classes of the jars. Only the packages that turn
+     * out not to be accessible, and packages split between several jars, are
+     * checked class by class, reporting problems in the usual detail.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "class", property = "maven.nbm.verify.granularity")
+    private String verifyRuntimeGranularity;
+
+    /**
+     * Number of threads scanning the jars of the project and of its module
+     * dependencies during runtime verification. <code>0</code> picks a
+     * number based on the available processors, <code>1</code> scans one jar
+     * after another. Problems are reported in the same order either way.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "0", property = "maven.nbm.verify.threads")
+    private int verifyRuntimeThreads;
+
+    /**
+     * Skip the goal when none of its inputs changed since the manifest was
+     * last generated: the source manifest and module descriptor, the plugin
+     * configuration, the resolved dependencies and the project's classes. The
+     * manifest is then left untouched, so its timestamp does not trigger
+     * repackaging of the module. Runtime verification is skipped as well.
+     *
+     * @since 15.0
+     */
+    @Parameter(defaultValue = "true", property = "maven.nbm.manifest.upToDateCheck")
+    private boolean useUpToDateCheck;
+
     private static final String FAIL = "fail";
     private static final String WARN = "warn";
     private static final String SKIP = "skip";
+    private static final String PACKAGE = "package";
 
     /**
      * A list of module's public packages. If not defined, no packages are
@@ -277,9 +344,18 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
     @Parameter(defaultValue = "normal")
     private String moduleType;
 
+    // persistent class index of the last verification, null if disabled
+    private ClassReferenceIndex classIndex;
+    // every jar and folder is scanned once per verification, kept until the next one
+    private Map<File, ClassReferenceIndex.JarClasses> scannedClasses;
+    // packages of the jars and folders scanned by package granularity only
+    private Map<File, ClassReferenceIndex.JarPackages> scannedPackages;
+    // class name ids of the last verification
+    private ClassSymbols classSymbols;
+
     @Inject
-    public NetBeansManifestUpdateMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts) {
-        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts);
+    public NetBeansManifestUpdateMojo(RepositorySystem repositorySystem, MavenProjectHelper mavenProjectHelper, ProjectDependenciesResolver projectDependenciesResolver, Artifacts artifacts, ManifestExaminer manifestExaminer) {
+        super(repositorySystem, mavenProjectHelper, projectDependenciesResolver, artifacts, manifestExaminer);
     }
 
     /**
@@ -328,6 +404,20 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
             //deprecated, but if actually defined, will use it.
             specialManifest = nbmManifest;
         }
+        File fingerprintFile = new File(project.getBuild().getDirectory(), "nbm-maven-plugin/manifest.fingerprint");
+        String fingerprint = null;
+        if (useUpToDateCheck) {
+            try {
+                fingerprint = fingerprint(specialManifest);
+                if (ManifestFingerprint.isUpToDate(fingerprintFile, fingerprint, targetManifestFile)) {
+                    getLog().info("NBM Plugin manifest is up to date");
+                    return;
+                }
+            } catch (IOException ex) {
+                getLog().debug("Cannot check whether the manifest is up to date", ex);
+                fingerprint = null;
+            }
+        }
         ExamineManifest examinator = new ExamineManifest(getLog());
         if (specialManifest != null && specialManifest.exists()) {
             examinator.setManifestFile(specialManifest);
@@ -418,9 +508,10 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
         DependencyNode treeroot = createDependencyTree(project, includeRuntimeModuleLibraries);
         Map<Artifact, ExamineManifest> examinerCache = new HashMap<Artifact, ExamineManifest>();
         List<Artifact> libArtifacts = getLibraryArtifacts(artifacts, treeroot, module, RepositoryUtils.toArtifacts(project.getRuntimeArtifacts()),
-                examinerCache, getLog(), useOSGiDependencies);
+                examinerCache, manifestExaminer, getManifestCache(), getLog(), useOSGiDependencies);
         List<ModuleWrapper> moduleArtifacts = getModuleDependencyArtifacts(treeroot, module, moduleDependencies,
                 project, examinerCache, libArtifacts, getLog(), useOSGiDependencies);
+        manifestExaminer.logStatistics(getLog());
         StringBuilder classPath = new StringBuilder();
         StringBuilder mavenClassPath = new StringBuilder();
         String dependencies = "";
@@ -525,12 +616,66 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
         } catch (IOException ex) {
             throw new MojoExecutionException(ex.getMessage(), ex);
         }
-        try (PrintWriter writer = new PrintWriter(targetManifestFile, "UTF-8");) //TODO really UTF-8??
-        {
+        StringWriter content = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(content)) {
             manifest.write(writer);
         } catch (IOException ex) {
             throw new MojoExecutionException(ex.getMessage(), ex);
         }
+        byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8); //TODO really UTF-8??
+        try {
+            // an unchanged manifest keeps its timestamp, jar:jar has nothing to repackage
+            if (targetManifestFile.length() != bytes.length
+                    || !Arrays.equals(bytes, Files.readAllBytes(targetManifestFile.toPath()))) {
+                Files.write(targetManifestFile.toPath(), bytes);
+            }
+            if (fingerprint != null) {
+                ManifestFingerprint.store(fingerprintFile, fingerprint, bytes);
+            }
+        } catch (IOException ex) {
+            throw new MojoExecutionException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Fingerprint of everything the generated manifest and the runtime
+     * verification depend on.
+     */
+    private String fingerprint(File specialManifest) throws IOException {
+        ManifestFingerprint fp = new ManifestFingerprint();
+        File plugin;
+        try {
+            plugin = new File(NetBeansManifestUpdateMojo.class.getProtectionDomain().getCodeSource().getLocation()
+                    .toURI());
+        } catch (URISyntaxException | RuntimeException ex) {
+            plugin = null;
+        }
+        fp.addStamp("plugin", plugin)
+                .addContent("sourceManifest", specialManifest)
+                .addContent("descriptor", descriptor)
+                .add("project", project.getId())
+                .add("name", project.getName())
+                .add("description", project.getDescription())
+                .add("outputTimestamp", project.getProperties().getProperty("project.build.outputTimestamp"))
+                .add("codeNameBase", codeNameBase)
+                .add("moduleType", moduleType)
+                .add("publicPackages", publicPackages)
+                .add("useOSGiDependencies", useOSGiDependencies)
+                .add("includeRuntimeModuleLibraries", includeRuntimeModuleLibraries)
+                .add("verifyRuntime", verifyRuntime)
+                .add("verifyRuntimeGranularity", verifyRuntimeGranularity)
+                .add("javahelp", nbmJavahelpSource.exists());
+        if (moduleDependencies != null) {
+            for (Dependency dep : moduleDependencies) {
+                fp.add("moduleDependency", dep.getId() + ' ' + dep.getType() + ' ' + dep.getExplicitValue());
+            }
+        }
+        for (org.apache.maven.artifact.Artifact a : project.getArtifacts()) {
+            fp.add("artifact", a.getId() + ':' + a.getScope() + ':' + a.isOptional() + ' ' + a.getDependencyTrail())
+                    .addStamp("file", a.getFile());
+        }
+        return fp.addTree("classes", new File(project.getBuild().getOutputDirectory()), targetManifestFile)
+                .value();
     }
 
     //MNBMODULE-137
@@ -598,28 +743,152 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
 //----------------------------------------------------------------------------------
 // classpat checking related.
 //----------------------------------------------------------------------------------
-    private void checkModuleClassPath(DependencyNode treeroot,
+    void checkModuleClassPath(DependencyNode treeroot,
             List<Artifact> libArtifacts,
             Map<Artifact, ExamineManifest> examinerCache, List<ModuleWrapper> moduleArtifacts,
             String projectCodeNameBase)
             throws IOException, MojoExecutionException, MojoFailureException {
-        Set<String> deps = buildProjectDependencyClasses(project, libArtifacts);
-        deps.retainAll(allProjectClasses(project));
-
-        Set<String> own = projectModuleOwnClasses(project, libArtifacts);
-        deps.removeAll(own);
-        CollectModuleLibrariesNodeVisitor visitor = new CollectModuleLibrariesNodeVisitor(artifacts,
-                RepositoryUtils.toArtifacts(project.getRuntimeArtifacts()), examinerCache, getLog(), treeroot, useOSGiDependencies);
-        treeroot.accept(visitor);
+        classIndex = openClassIndex();
+        scannedClasses = new HashMap<>();
+        scannedPackages = new HashMap<>();
+        classSymbols = new ClassSymbols();
+        try {
+            CollectModuleLibrariesNodeVisitor visitor = new CollectModuleLibrariesNodeVisitor(artifacts,
+                    RepositoryUtils.toArtifacts(project.getRuntimeArtifacts()), examinerCache, manifestExaminer, getManifestCache(), getLog(), treeroot,
+                    useOSGiDependencies);
+            treeroot.accept(visitor);
+            List<File> files = new ArrayList<>();
+            files.add(new File(project.getBuild().getOutputDirectory()));
+            for (Artifact lib : libArtifacts) {
+                files.add(lib.getFile());
+            }
+            for (Artifact lib : RepositoryUtils.toArtifacts(project.getRuntimeArtifacts())) {
+                files.add(lib.getFile());
+            }
+            files.addAll(moduleFiles(moduleArtifacts, visitor.getDeclaredArtifacts()));
+            if (PACKAGE.equalsIgnoreCase(verifyRuntimeGranularity)) {
+                scanConcurrently(files, true);
+                Set<String> leftover = verifyModulePackages(libArtifacts, examinerCache, moduleArtifacts, visitor,
+                        projectCodeNameBase);
+                if (leftover.isEmpty()) {
+                    return;
+                }
+                // the package check has already reported friend dependencies
+                scanConcurrently(relevantFiles(files, leftover), false);
+                verifyModuleClassPath(libArtifacts, examinerCache, moduleArtifacts, visitor, projectCodeNameBase,
+                        false, leftover);
+            } else {
+                scanConcurrently(files, false);
+                verifyModuleClassPath(libArtifacts, examinerCache, moduleArtifacts, visitor, projectCodeNameBase,
+                        true, null);
+            }
+        } finally {
+            if (classSymbols.size() > 0) {
+                getLog().debug("Runtime verification used " + classSymbols.size() + " distinct class names.");
+            }
+        }
+    }
+
+    /**
+     * Runtime verification on packages instead of classes. A used package
+     * passes when the project defines it alone, or when a single jar of the
+     * runtime classpath defines it and that jar belongs to a declared module
+     * exporting the package. Visibility of module classes is decided by
+     * package, so such a package is accessible as a whole.
+     *
+     * @return the packages whose classes need to be verified to find and
+     * report the problems, empty if all used packages are accessible
+     */
+    private Set<String> verifyModulePackages(List<Artifact> libArtifacts,
+            Map<Artifact, ExamineManifest> examinerCache, List<ModuleWrapper> moduleArtifacts,
+            CollectModuleLibrariesNodeVisitor visitor, String projectCodeNameBase)
+            throws IOException, MojoExecutionException, MojoFailureException {
+        ClassReferenceIndex.JarPackages output = packagesOf(new File(project.getBuild().getOutputDirectory()));
+        Set<String> deps = new HashSet<>(output.getReferencedPackages());
+        Set<String> own = new HashSet<>(output.getDefinedPackages());
+        Set<File> libFiles = new HashSet<>();
+        for (Artifact lib : libArtifacts) {
+            ClassReferenceIndex.JarPackages packages = packagesOf(lib.getFile());
+            deps.addAll(packages.getReferencedPackages());
+            own.addAll(packages.getDefinedPackages());
+            libFiles.add(lib.getFile());
+        }
+        Set<String> all = new HashSet<>(output.getDefinedPackages());
+        // number of runtime jars other than the project's libraries defining a package
+        Map<String, Integer> definers = new HashMap<>();
+        for (Artifact lib : RepositoryUtils.toArtifacts(project.getRuntimeArtifacts())) {
+            Set<String> defined = packagesOf(lib.getFile()).getDefinedPackages();
+            all.addAll(defined);
+            if (!libFiles.contains(lib.getFile())) {
+                for (String pack : defined) {
+                    definers.merge(pack, 1, Integer::sum);
+                }
+            }
+        }
+        deps.retainAll(all);
+        Set<String> leftover = new HashSet<>();
+        for (Iterator<String> it = deps.iterator(); it.hasNext();) {
+            String pack = it.next();
+            int count = definers.getOrDefault(pack, 0);
+            if (own.contains(pack) ? count > 0 : count > 1) {
+                // split package, its classes tell which jar is used
+                leftover.add(pack);
+                it.remove();
+            } else if (own.contains(pack)) {
+                it.remove();
+            }
+        }
+
+        Map<String, List<Artifact>> modules = visitor.getDeclaredArtifacts();
+        for (ModuleWrapper wr : moduleArtifacts) {
+            List<Artifact> arts = modules.get(ArtifactIdUtils.toVersionlessId(wr.artifact));
+            if (arts != null) {
+                ExamineManifest man = examinerCache.get(wr.artifact);
+                PackageTrie visible = visibleClasses(man, wr.dependency, projectCodeNameBase, true);
+                for (Artifact lib : arts) {
+                    for (String pack : packagesOf(lib.getFile()).getDefinedPackages()) {
+                        if (deps.contains(pack) && visible.matches(pack.isEmpty() ? "C" : pack + ".C")) {
+                            deps.remove(pack);
+                        }
+                    }
+                }
+            }
+        }
+        leftover.addAll(deps);
+        if (!leftover.isEmpty()) {
+            getLog().debug("Packages possibly not accessible at runtime: " + leftover + ", verifying classes.");
+        }
+        return leftover;
+    }
+
+    private void verifyModuleClassPath(List<Artifact> libArtifacts,
+            Map<Artifact, ExamineManifest> examinerCache, List<ModuleWrapper> moduleArtifacts,
+            CollectModuleLibrariesNodeVisitor visitor, String projectCodeNameBase, boolean checkFriends,
+            Set<String> packages)
+            throws IOException, MojoExecutionException, MojoFailureException {
+        BitSet deps = buildProjectDependencyClasses(project, libArtifacts);
+        if (packages != null) {
+            for (int i = deps.nextSetBit(0); i >= 0; i = deps.nextSetBit(i + 1)) {
+                if (!packages.contains(ClassReferenceIndex.packageOf(classSymbols.name(i)))) {
+                    deps.clear(i);
+                }
+            }
+        }
+        deps.and(allProjectClasses(project, packages));
+
+        BitSet own = projectModuleOwnClasses(project, libArtifacts);
+        deps.andNot(own);
         Map<String, List<Artifact>> modules = visitor.getDeclaredArtifacts();
-        Map<Artifact, Set<String>> moduleAllClasses = new HashMap<Artifact, Set<String>>();
+        Map<Artifact, BitSet> moduleAllClasses = new HashMap<Artifact, BitSet>();
 
         for (ModuleWrapper wr : moduleArtifacts) {
             if (modules.containsKey(ArtifactIdUtils.toVersionlessId(wr.artifact))) {
                 ExamineManifest man = examinerCache.get(wr.artifact);
-                List<Artifact> arts = modules.get(ArtifactIdUtils.toVersionlessId(wr.artifact));
-                Set<String>[] classes = visibleModuleClasses(arts, man, wr.dependency, projectCodeNameBase, false);
-                deps.removeAll(classes[0]);
+                List<Artifact> arts = relevantArtifacts(modules.get(ArtifactIdUtils.toVersionlessId(wr.artifact)),
+                        packages);
+                BitSet[] classes = visibleModuleClasses(arts, man, wr.dependency, projectCodeNameBase,
+                        checkFriends);
+                deps.andNot(classes[0]);
                 moduleAllClasses.put(wr.artifact, classes[1]);
             }
         }
@@ -628,13 +897,16 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
         //but are being used
         if (!deps.isEmpty()) {
             Map<String, List<Artifact>> transmodules = visitor.getTransitiveArtifacts();
+            scanConcurrently(relevantFiles(moduleFiles(moduleArtifacts, transmodules), packages), false);
             for (ModuleWrapper wr : moduleArtifacts) {
                 if (transmodules.containsKey(ArtifactIdUtils.toVersionlessId(wr.artifact))) {
                     ExamineManifest man = examinerCache.get(wr.artifact);
-                    List<Artifact> arts = transmodules.get(ArtifactIdUtils.toVersionlessId(wr.artifact));
-                    Set<String>[] classes = visibleModuleClasses(arts, man, wr.dependency, projectCodeNameBase, true);
-                    classes[0].retainAll(deps);
-                    if (classes[0].size() > 0) {
+                    List<Artifact> arts = relevantArtifacts(
+                            transmodules.get(ArtifactIdUtils.toVersionlessId(wr.artifact)), packages);
+                    BitSet[] classes = visibleModuleClasses(arts, man, wr.dependency, projectCodeNameBase,
+                            false);
+                    classes[0].and(deps);
+                    if (!classes[0].isEmpty()) {
                         String module = wr.osgi ? "OSGi bundle" : "module";
                         getLog().error(
                                 "Project uses classes from transitive " + module + " " + ArtifactIdUtils.toId(wr.artifact)
@@ -643,24 +915,26 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
                                 "To fix the problem, add this module as direct dependency. "
                                 + "For OSGi bundles that are supposed to be wrapped in NetBeans modules, "
                                 + "use the useOSGiDependencies=false parameter");
-                        deps.removeAll(classes[0]);
+                        deps.andNot(classes[0]);
                     }
-                    classes[1].retainAll(deps);
-                    if (classes[1].size() > 0) {
+                    classes[1].and(deps);
+                    if (!classes[1].isEmpty()) {
                         getLog().info("Private classes referenced in transitive module: " + Arrays.toString(
-                                classes[1].toArray()));
+                                classSymbols.names(classes[1]).toArray()));
                         getLog().error(
                                 "Project depends on packages not accessible at runtime in transitive module " +
                                 ArtifactIdUtils.toId(wr.artifact) + " which will not be accessible at runtime.");
-                        deps.removeAll(classes[1]);
+                        deps.andNot(classes[1]);
                     }
                 }
             }
-            for (Map.Entry<Artifact, Set<String>> e : moduleAllClasses.entrySet()) {
-                List<String> strs = new ArrayList<String>(deps);
-                if (deps.removeAll(e.getValue())) {
-                    strs.retainAll(e.getValue());
-                    getLog().info("Private classes referenced in module: " + Arrays.toString(strs.toArray()));
+            for (Map.Entry<Artifact, BitSet> e : moduleAllClasses.entrySet()) {
+                if (deps.intersects(e.getValue())) {
+                    BitSet strs = (BitSet) deps.clone();
+                    strs.and(e.getValue());
+                    deps.andNot(e.getValue());
+                    getLog().info("Private classes referenced in module: " + Arrays.toString(
+                            classSymbols.names(strs).toArray()));
                     getLog().error("Project depends on packages not accessible at runtime in module " + ArtifactIdUtils.toId(e.getKey()));
                 }
             }
@@ -671,7 +945,7 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
                             + "(maybe MNBMODULE-102 or wrong maven dependency metadata). "
                             + "Supposedly external classes are used in the project's binaries "
                             + "but the classes are not found on classpath. Class usages: "
-                            + deps);
+                            + classSymbols.names(deps));
                 } else {
                     throw new MojoFailureException(
                             "See above for failures in runtime NetBeans dependencies verification.");
@@ -689,32 +963,28 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
      * @return
      * @throws java.io.IOException
      */
-    private Set<String> buildProjectDependencyClasses(MavenProject project, List<Artifact> libraries)
+    private BitSet buildProjectDependencyClasses(MavenProject project, List<Artifact> libraries)
             throws IOException {
-        Set<String> dependencyClasses = new HashSet<String>();
+        BitSet dependencyClasses = new BitSet();
 
         String outputDirectory = project.getBuild().getOutputDirectory();
-        dependencyClasses.addAll(buildDependencyClasses(outputDirectory));
+        dependencyClasses.or(classSymbols.referenced(classesOf(new File(outputDirectory))));
 
         for (Artifact lib : libraries) {
-            dependencyClasses.addAll(buildDependencyClasses(lib.getFile().getAbsolutePath()));
+            dependencyClasses.or(classSymbols.referenced(classesOf(lib.getFile())));
         }
         return dependencyClasses;
     }
 
-    @SuppressWarnings("unchecked")
-    private Set<String> projectModuleOwnClasses(MavenProject project, List<Artifact> libraries)
+    private BitSet projectModuleOwnClasses(MavenProject project, List<Artifact> libraries)
             throws IOException {
-        Set<String> projectClasses = new HashSet<String>();
-        DefaultClassAnalyzer analyzer = new DefaultClassAnalyzer();
+        BitSet projectClasses = new BitSet();
 
         String outputDirectory = project.getBuild().getOutputDirectory();
-        URL fl = new File(outputDirectory).toURI().toURL();
-        projectClasses.addAll(analyzer.analyze(fl));
+        projectClasses.or(classSymbols.defined(classesOf(new File(outputDirectory))));
 
         for (Artifact lib : libraries) {
-            URL url = lib.getFile().toURI().toURL();
-            projectClasses.addAll(analyzer.analyze(url));
+            projectClasses.or(classSymbols.defined(classesOf(lib.getFile())));
         }
 
         return projectClasses;
@@ -727,33 +997,53 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
      * @return
      * @throws java.io.IOException
      */
-    @SuppressWarnings("unchecked")
-    private Set<String> allProjectClasses(MavenProject project)
+    private BitSet allProjectClasses(MavenProject project, Set<String> packages)
             throws IOException {
-        Set<String> projectClasses = new HashSet<String>();
-        DefaultClassAnalyzer analyzer = new DefaultClassAnalyzer();
+        BitSet projectClasses = new BitSet();
 
         String outputDirectory = project.getBuild().getOutputDirectory();
-        URL fl = new File(outputDirectory).toURI().toURL();
-        projectClasses.addAll(analyzer.analyze(fl));
+        projectClasses.or(classSymbols.defined(classesOf(new File(outputDirectory))));
 
-        Collection<Artifact> libs = RepositoryUtils.toArtifacts(project.getRuntimeArtifacts());
+        Collection<Artifact> libs = relevantArtifacts(RepositoryUtils.toArtifacts(project.getRuntimeArtifacts()),
+                packages);
 
         for (Artifact lib : libs) {
-            URL url = lib.getFile().toURI().toURL();
-            projectClasses.addAll(analyzer.analyze(url));
+            projectClasses.or(classSymbols.defined(classesOf(lib.getFile())));
         }
 
         return projectClasses;
     }
 
-    private Set<String>[] visibleModuleClasses(List<Artifact> moduleLibraries,
+    private BitSet[] visibleModuleClasses(List<Artifact> moduleLibraries,
             ExamineManifest manifest, Dependency dep, String projectCodeNameBase,
-            boolean transitive)
+            boolean checkFriends)
             throws IOException, MojoFailureException {
-        Set<String> moduleClasses = new HashSet<String>();
-        Set<String> visibleModuleClasses = new HashSet<String>();
-        DefaultClassAnalyzer analyzer = new DefaultClassAnalyzer();
+        BitSet moduleClasses = new BitSet();
+        BitSet visibleModuleClasses = new BitSet();
+        for (Artifact lib : moduleLibraries) {
+            moduleClasses.or(classSymbols.defined(classesOf(lib.getFile())));
+        }
+        PackageTrie visible = visibleClasses(manifest, dep, projectCodeNameBase, checkFriends);
+        for (int i = moduleClasses.nextSetBit(0); i >= 0; i = moduleClasses.nextSetBit(i + 1)) {
+            if (visible.matches(classSymbols.name(i))) {
+                visibleModuleClasses.set(i);
+            }
+        }
+        return new BitSet[]{
+            visibleModuleClasses,
+            moduleClasses
+        };
+    }
+
+    /**
+     * @param checkFriends whether to verify the project is a friend of the
+     * module, false for transitive modules
+     * @return trie matching the classes of the module accessible through the
+     * dependency
+     */
+    private PackageTrie visibleClasses(ExamineManifest manifest, Dependency dep, String projectCodeNameBase,
+            boolean checkFriends)
+            throws MojoFailureException {
         String type = dep.getType();
         if (dep.getExplicitValue() != null) {
             if (dep.getExplicitValue().contains("=")) {
@@ -764,14 +1054,9 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
             type = "spec";
         }
 
-        for (Artifact lib : moduleLibraries) {
-            URL url = lib.getFile().toURI().toURL();
-            moduleClasses.addAll(analyzer.analyze(url));
-        }
-
         if ("spec".equals(type)) {
             String cnb = stripVersionFromCodebaseName(projectCodeNameBase);
-            if (!transitive && manifest.hasFriendPackages() && !manifest.getFriends().contains(cnb)) {
+            if (checkFriends && manifest.hasFriendPackages() && !manifest.getFriends().contains(cnb)) {
                 String message = "Module has friend dependency on " + manifest.getModule()
                         + " but is not listed as a friend.";
                 if (verifyRuntime.equalsIgnoreCase(FAIL)) {
@@ -780,31 +1065,17 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
                     getLog().warn(message);
                 }
             }
-            List<Pattern> compiled = createCompiledPatternList(manifest.getPackages());
             if (useOSGiDependencies && manifest.isOsgiBundle()) {
                 // TODO how to extract the public packages in osgi bundles easily..
-                compiled = Collections.singletonList(Pattern.compile("(.+)"));
-            }
-            for (String clazz : moduleClasses) {
-                for (Pattern patt : compiled) {
-                    if (patt.matcher(clazz).matches()) {
-                        visibleModuleClasses.add(clazz);
-                        break;
-                    }
-                }
+                return new PackageTrie().addPrefix("");
             }
-
+            return PackageTrie.ofPublicPackages(manifest.getPackages());
         } else if ("impl".equals(type)) {
-            visibleModuleClasses.addAll(moduleClasses);
+            return new PackageTrie().addPrefix("");
         } else {
             //HUH?
             throw new MojoFailureException("Wrong type of module dependency " + type);
         }
-
-        return new Set[]{
-            visibleModuleClasses,
-            moduleClasses
-        };
     }
 
     static List<Pattern> createCompiledPatternList(List<String> packages) {
@@ -821,11 +1092,151 @@ public final class NetBeansManifestUpdateMojo extends AbstractNbmMojo {
         return toRet;
     }
 
-    @SuppressWarnings("unchecked")
-    private Set<String> buildDependencyClasses(String path)
+    private ClassReferenceIndex openClassIndex() {
+        if (!useVerifyRuntimeIndex) {
+            return null;
+        }
+        File directory = verifyRuntimeIndexDirectory;
+        if (directory == null) {
+            if (session == null || session.getRepositorySession() == null) {
+                return null;
+            }
+            File basedir = session.getRepositorySession().getLocalRepository().getBasedir();
+            if (basedir == null) {
+                return null;
+            }
+            directory = new File(basedir, ".cache/nbm-maven-plugin/classes");
+        }
+        return ClassReferenceIndex.open(directory);
+    }
+
+    private ClassReferenceIndex.JarClasses classesOf(File file) throws IOException {
+        ClassReferenceIndex.JarClasses classes = scannedClasses.get(file);
+        if (classes == null) {
+            classes = scan(classIndex, file);
+            scannedClasses.put(file, classes);
+        }
+        return classes;
+    }
+
+    private static ClassReferenceIndex.JarClasses scan(ClassReferenceIndex index, File file) throws IOException {
+        return index != null ? index.get(file) : ClassReferenceIndex.scan(file);
+    }
+
+    private ClassReferenceIndex.JarPackages packagesOf(File file) throws IOException {
+        ClassReferenceIndex.JarClasses classes = scannedClasses.get(file);
+        if (classes != null) {
+            return classes.getPackages();
+        }
+        ClassReferenceIndex.JarPackages packages = scannedPackages.get(file);
+        if (packages == null) {
+            packages = scanPackages(classIndex, file);
+            scannedPackages.put(file, packages);
+        }
+        return packages;
+    }
+
+    private static ClassReferenceIndex.JarPackages scanPackages(ClassReferenceIndex index, File file)
+            throws IOException {
+        return index != null ? index.getPackages(file) : ClassReferenceIndex.scan(file).getPackages();
+    }
+
+    /**
+     * @param packages packages being verified, null for all
+     * @return the files defining any of the packages
+     */
+    private List<File> relevantFiles(Collection<File> files, Set<String> packages) throws IOException {
+        List<File> toRet = new ArrayList<>();
+        for (File file : files) {
+            if (file != null && (packages == null
+                    || !Collections.disjoint(packagesOf(file).getDefinedPackages(), packages))) {
+                toRet.add(file);
+            }
+        }
+        return toRet;
+    }
+
+    /**
+     * @param packages packages being verified, null for all
+     * @return the artifacts whose files define any of the packages
+     */
+    private List<Artifact> relevantArtifacts(Collection<Artifact> artifacts, Set<String> packages)
             throws IOException {
-        URL url = new File(path).toURI().toURL();
-        ASMDependencyAnalyzer dependencyAnalyzer = new ASMDependencyAnalyzer();
-        return dependencyAnalyzer.analyze(url);
+        List<Artifact> toRet = new ArrayList<>();
+        for (Artifact art : artifacts) {
+            if (packages == null
+                    || !Collections.disjoint(packagesOf(art.getFile()).getDefinedPackages(), packages)) {
+                toRet.add(art);
+            }
+        }
+        return toRet;
+    }
+
+    private static List<File> moduleFiles(List<ModuleWrapper> moduleArtifacts, Map<String, List<Artifact>> modules) {
+        List<File> files = new ArrayList<>();
+        for (ModuleWrapper wr : moduleArtifacts) {
+            List<Artifact> arts = modules.get(ArtifactIdUtils.toVersionlessId(wr.artifact));
+            if (arts != null) {
+                for (Artifact lib : arts) {
+                    files.add(lib.getFile());
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Scans the files not scanned yet on a bounded pool, so that the
+     * verification itself finds them in {@link #scannedClasses} or
+     * {@link #scannedPackages}. Files that cannot be scanned are left out and
+     * fail in {@link #classesOf} or {@link #packagesOf} like without the
+     * concurrent scan.
+     *
+     * @param packagesOnly keep the packages of the files only
+     */
+    private void scanConcurrently(Collection<File> files, boolean packagesOnly) {
+        Set<File> todo = new LinkedHashSet<>();
+        for (File file : files) {
+            if (file != null && !scannedClasses.containsKey(file)
+                    && !(packagesOnly && scannedPackages.containsKey(file))) {
+                todo.add(file);
+            }
+        }
+        int threads = verifyRuntimeThreads > 0 ? verifyRuntimeThreads
+                : Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        threads = Math.min(threads, todo.size());
+        if (threads <= 1) {
+            return;
+        }
+        ClassReferenceIndex index = classIndex;
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "nbm-verify-runtime");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Map<File, Future<?>> futures = new LinkedHashMap<>();
+            for (File file : todo) {
+                futures.put(file, packagesOnly ? executor.submit(() -> scanPackages(index, file))
+                        : executor.submit(() -> scan(index, file)));
+            }
+            for (Map.Entry<File, Future<?>> entry : futures.entrySet()) {
+                try {
+                    Object scanned = entry.getValue().get();
+                    if (packagesOnly) {
+                        scannedPackages.put(entry.getKey(), (ClassReferenceIndex.JarPackages) scanned);
+                    } else {
+                        scannedClasses.put(entry.getKey(), (ClassReferenceIndex.JarClasses) scanned);
+                        scannedPackages.remove(entry.getKey());
+                    }
+                } catch (ExecutionException ex) {
+                    // reported when scanned again by classesOf
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
     }
 }
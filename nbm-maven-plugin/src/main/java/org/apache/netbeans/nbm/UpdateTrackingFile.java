@@ -0,0 +1,189 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import org.apache.netbeans.nbm.utils.ExamineManifest;
+
+/**
+ * The <code>update_tracking</code> file of a NetBeans module in a cluster,
+ * listing the files of the module with their CRC-32. Written byte for byte
+ * the way the <code>genlist</code> task of the NetBeans harness writes it,
+ * but from CRC values known up front instead of reading the files again.
+ */
+final class UpdateTrackingFile {
+
+    private final String codename;
+    private final String specificationVersion;
+    // genlist lists files in the order of their platform specific paths
+    private final Map<String, Long> files = new TreeMap<>();
+
+    /**
+     * @param codename value of <code>OpenIDE-Module</code>
+     * @param specificationVersion value of
+     * <code>OpenIDE-Module-Specification-Version</code>, null if missing
+     */
+    UpdateTrackingFile(String codename, String specificationVersion) {
+        this.codename = codename;
+        this.specificationVersion = specificationVersion != null ? specificationVersion : "0";
+    }
+
+    /**
+     * @param manifest main attributes of the module jar
+     * @return the tracking file, null if the jar is no NetBeans module
+     */
+    static UpdateTrackingFile of(Attributes manifest) {
+        String codename = manifest.getValue("OpenIDE-Module");
+        if (codename == null) {
+            return null;
+        }
+        return new UpdateTrackingFile(codename, manifest.getValue("OpenIDE-Module-Specification-Version"));
+    }
+
+    /**
+     * @param manifest examined module jar
+     * @return the tracking file, null if the jar is no NetBeans module
+     */
+    static UpdateTrackingFile of(ExamineManifest manifest) {
+        if (!manifest.isNetBeansModule()) {
+            return null;
+        }
+        return new UpdateTrackingFile(manifest.getModuleWithRelease(), manifest.getSpecVersion());
+    }
+
+    /**
+     * @param path path of the file in the cluster, with slashes
+     * @param crc CRC-32 of its content
+     */
+    void add(String path, long crc) {
+        files.put(path.replace('/', File.separatorChar), crc);
+    }
+
+    /**
+     * @param path path of the file in the cluster, with slashes
+     * @return true if the file is listed already
+     */
+    boolean contains(String path) {
+        return files.containsKey(path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * @return code name base of the module
+     */
+    String getCodeNameBase() {
+        int slash = codename.indexOf('/');
+        return slash < 0 ? codename : codename.substring(0, slash);
+    }
+
+    /**
+     * @return path of the file in the cluster, also the path of the module
+     * configuration under <code>config/Modules</code>
+     */
+    String getFileName() {
+        return getCodeNameBase().replace('.', '-') + ".xml";
+    }
+
+    /**
+     * @param installTime value of the <code>install_time</code> attribute
+     * @return content of the file
+     */
+    String toXml(long installTime) {
+        StringBuilder sb = new StringBuilder(256 + files.size() * 80);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><module codename=\"").append(escape(codename))
+                .append("\">\n");
+        sb.append("    <module_version install_time=\"").append(installTime)
+                .append("\" last=\"true\" origin=\"installer\" specification_version=\"")
+                .append(escape(specificationVersion)).append('"');
+        if (files.isEmpty()) {
+            sb.append("/>\n");
+        } else {
+            sb.append(">\n");
+            for (Map.Entry<String, Long> file : files.entrySet()) {
+                sb.append("        <file crc=\"").append(file.getValue()).append("\" name=\"")
+                        .append(escape(file.getKey().replace(File.separatorChar, '/'))).append("\"/>\n");
+            }
+            sb.append("    </module_version>\n");
+        }
+        sb.append("</module>\n");
+        return sb.toString();
+    }
+
+    /**
+     * @param cluster cluster folder
+     * @param installTime value of the <code>install_time</code> attribute
+     * @return the written file
+     * @throws IOException when the file cannot be written
+     */
+    File write(File cluster, long installTime) throws IOException {
+        File file = new File(new File(cluster, "update_tracking"), getFileName());
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), toXml(installTime).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String escape(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\n':
+                    replacement = "&#10;";
+                    break;
+                case '\r':
+                    replacement = "&#13;";
+                    break;
+                case '\t':
+                    replacement = "&#9;";
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb != null ? sb.toString() : value;
+    }
+}
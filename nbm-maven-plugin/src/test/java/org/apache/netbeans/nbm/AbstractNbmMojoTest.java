@@ -19,6 +19,8 @@ package org.apache.netbeans.nbm;
  * under the License.
  */
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -26,26 +28,40 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
 import org.apache.netbeans.nbm.model.Dependency;
 import org.apache.netbeans.nbm.model.NetBeansModule;
 import org.apache.netbeans.nbm.stubs.ArtifactHandlerManagerStub;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.eclipse.aether.RepositorySystem;
 import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.artifact.ArtifactType;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.graph.DefaultDependencyNode;
 import org.eclipse.aether.graph.DependencyNode;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.transfer.ArtifactNotFoundException;
 import org.eclipse.aether.util.artifact.ArtifactIdUtils;
 import static org.junit.jupiter.api.Assumptions.assumeFalse;
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
 
 /**
  *
@@ -53,6 +69,8 @@ import org.junit.jupiter.api.Test;
  */
 class AbstractNbmMojoTest {
 
+    @TempDir
+    File dir;
     Log log = null;
     DependencyNode treeRoot = null;
     Artifacts artifacts = new Artifacts(new ArtifactHandlerManagerStub());
@@ -167,7 +185,7 @@ class AbstractNbmMojoTest {
         DependencyNode module = createNode(treeRoot, "gr1", "ar1", "1.0", "jar", "compile", true, runtimes, examinerCache);
         treeRoot.setChildren(Collections.singletonList(module));
         NetBeansModule mdl = new NetBeansModule();
-        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, log, false);
+        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, null, null, log, false);
         assertEquals(0, result.size());
     }
 
@@ -184,7 +202,7 @@ class AbstractNbmMojoTest {
         DependencyNode library = createNode(treeRoot, "gr1", "ar1", "1.0", "jar", "compile", false, runtimes, examinerCache);
         treeRoot.setChildren(Collections.singletonList(library));
         NetBeansModule mdl = new NetBeansModule();
-        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, log, false);
+        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, null, null, log, false);
         assertEquals(1, result.size());
     }
 
@@ -204,7 +222,7 @@ class AbstractNbmMojoTest {
         ((DefaultDependencyNode) library).setChildren(Collections.singletonList(translibrary));
 
         NetBeansModule mdl = new NetBeansModule();
-        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, log, false);
+        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, null, null, log, false);
         assertEquals(2, result.size());
     }
 
@@ -223,7 +241,7 @@ class AbstractNbmMojoTest {
         DependencyNode translibrary = createNode(module, "gr2", "ar2", "1.0", "jar", "runtime", false, runtimes, examinerCache);
         ((DefaultDependencyNode) module).setChildren(Collections.singletonList(translibrary));
         NetBeansModule mdl = new NetBeansModule();
-        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, log, false);
+        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, null, null, log, false);
         assertEquals(0, result.size());
     }
 
@@ -250,7 +268,7 @@ class AbstractNbmMojoTest {
         }));
 
         NetBeansModule mdl = new NetBeansModule();
-        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, log, false);
+        List<Artifact> result = AbstractNbmMojo.getLibraryArtifacts(artifacts, treeRoot, mdl, runtimes, examinerCache, null, null, log, false);
         assertEquals(2, result.size());
         assertEquals(ArtifactIdUtils.toId(result.get(0)), ArtifactIdUtils.toId(library.getArtifact()));
         assertEquals(ArtifactIdUtils.toId(result.get(1)), ArtifactIdUtils.toId(translibrary2.getArtifact()));
@@ -272,6 +290,85 @@ class AbstractNbmMojoTest {
         assumeTrue(AbstractNbmMojo.getOutputTimestampOrNow(project).toInstant().equals(Instant.ofEpochSecond(1570300662)), "valid formatted property");
     }
 
+    /**
+     * The nbm files of all modules are resolved in one batch, here from a
+     * plain folder standing in for a file based repository.
+     */
+    @Test
+    void testTurnJarsToNbmFiles() throws Exception {
+        File repo = new File(dir, "repo");
+        RepositorySystem system = Mockito.mock(RepositorySystem.class);
+        Mockito.when(system.resolveArtifacts(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            List<ArtifactRequest> requests = invocation.getArgument(1);
+            List<org.eclipse.aether.resolution.ArtifactResult> results = new ArrayList<>();
+            boolean failed = false;
+            for (ArtifactRequest request : requests) {
+                org.eclipse.aether.resolution.ArtifactResult result = new org.eclipse.aether.resolution.ArtifactResult(request);
+                File file = new File(repo, artifacts.pathOf(request.getArtifact()));
+                if (file.isFile()) {
+                    result.setArtifact(request.getArtifact().setFile(file));
+                } else {
+                    result.addException(new ArtifactNotFoundException(request.getArtifact(), null));
+                    failed = true;
+                }
+                results.add(result);
+            }
+            if (failed) {
+                throw new ArtifactResolutionException(results);
+            }
+            return results;
+        });
+        AbstractNbmMojo mojo = new AbstractNbmMojo(system, null, null, artifacts, new ManifestExaminer()) {
+            @Override
+            public void execute() {
+            }
+        };
+        mojo.session = Mockito.mock(MavenSession.class);
+        Mockito.when(mojo.session.getRepositorySession()).thenReturn(MavenRepositorySystemUtils.newSession());
+        MavenProject project = new MavenProject();
+
+        Artifact module = jarArtifact("module", "OpenIDE-Module", "org.example.module");
+        File moduleNbm = new File(repo, artifacts.pathOf(module).replaceFirst("jar$", "nbm"));
+        moduleNbm.getParentFile().mkdirs();
+        moduleNbm.createNewFile();
+        Artifact bundle = jarArtifact("bundle", "Bundle-SymbolicName", "org.example.bundle");
+        Artifact plain = jarArtifact("plain", "Implementation-Title", "plain");
+        // built in the reactor, the nbm file is next to the jar
+        Artifact reactor = jarArtifact("reactor", "OpenIDE-Module", "org.example.reactor");
+        File reactorNbm = new File(dir, "reactor-1.0.nbm");
+        reactorNbm.createNewFile();
+
+        List<AbstractNbmMojo.ArtifactResult> results = mojo.turnJarsToNbmFiles(
+                Arrays.asList(module, bundle, plain, reactor), project);
+        assertEquals(moduleNbm, results.get(0).getConvertedArtifact().getFile());
+        assertEquals("org.example.module", results.get(0).getExaminedManifest().getModule());
+        assertNull(results.get(1).getConvertedArtifact());
+        assertTrue(results.get(1).isOSGiBundle());
+        assertNull(results.get(2).getConvertedArtifact());
+        assertNull(results.get(2).getExaminedManifest());
+        assertEquals(reactorNbm, results.get(3).getConvertedArtifact().getFile());
+        Mockito.verify(system, Mockito.times(1)).resolveArtifacts(Mockito.any(), Mockito.any());
+
+        Artifact missing = jarArtifact("missing", "OpenIDE-Module", "org.example.missing");
+        MojoExecutionException ex = assertThrows(MojoExecutionException.class,
+                () -> mojo.turnJarsToNbmFiles(Arrays.asList(module, missing), project));
+        assertEquals("Failed to retrieve the nbm file from repository", ex.getMessage());
+        assertTrue(ex.getCause().getMessage().contains("org.example:missing:nbm:1.0"), ex.getCause().getMessage());
+    }
+
+    private Artifact jarArtifact(String name, String attribute, String value) throws IOException {
+        File jar = new File(dir, name + "-1.0.jar");
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue(attribute, value);
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), mf)) {
+            // manifest only
+        }
+        ArtifactType artifactType = artifacts.getArtifactType("jar");
+        return new DefaultArtifact("org.example", name, "", artifactType.getExtension(), "1.0", artifactType)
+                .setFile(jar);
+    }
+
     private DependencyNode createNode(DependencyNode parent, String gr, String art, String ver, String pack, String scope, boolean isModule, List<Artifact> runtimes, Map<Artifact, ExamineManifest> cache) {
         Artifact a = createArtifact(gr, art, ver, pack);
         org.eclipse.aether.graph.Dependency dependency = new org.eclipse.aether.graph.Dependency(a, scope);
@@ -0,0 +1,67 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChecksumsTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testChecksums() throws Exception {
+        // larger than the buffer, not a multiple of it
+        byte[] content = new byte[200 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        File file = new File(dir, "lib.jar");
+        Files.write(file.toPath(), content);
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        assertEquals(crc.getValue(), Checksums.crc32(file));
+        StringBuilder sha = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+            sha.append(String.format("%02x", b));
+        }
+        assertEquals(sha.toString(), Checksums.sha256(file));
+        assertEquals(sha.toString(), Checksums.sha256(content));
+        assertEquals("00ff7f80", Checksums.hex(new byte[]{0, -1, 127, -128}));
+
+        // remembered, and computed again once the file changes
+        assertEquals(crc.getValue(), Checksums.crc32(file));
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        assertNotEquals(crc.getValue(), Checksums.crc32(file));
+        crc.reset();
+        crc.update(new byte[]{1, 2, 3});
+        assertEquals(crc.getValue(), Checksums.crc32(file));
+
+        File empty = new File(dir, "empty");
+        Files.write(empty.toPath(), new byte[0]);
+        assertEquals(0L, Checksums.crc32(empty));
+    }
+}
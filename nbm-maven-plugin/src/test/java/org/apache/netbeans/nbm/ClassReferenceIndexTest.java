@@ -0,0 +1,158 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.dependency.analyzer.DefaultClassAnalyzer;
+import org.apache.maven.shared.dependency.analyzer.asm.ASMDependencyAnalyzer;
+import org.codehaus.plexus.util.StringUtils;
+import org.objectweb.asm.ClassReader;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ClassReferenceIndexTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testIndexedClasses() throws Exception {
+        File jar = new File(dir, "lib.jar");
+        writeJar(jar, ManifestExaminerTest.class, ClassReferenceIndexTest.class);
+        File indexDir = new File(dir, "index");
+        ClassReferenceIndex index = ClassReferenceIndex.open(indexDir);
+
+        ClassReferenceIndex.JarClasses scanned = ClassReferenceIndex.scan(jar);
+        assertTrue(scanned.getDefinedClasses().contains(ManifestExaminerTest.class.getName()));
+        assertTrue(scanned.getReferencedClasses().contains(ManifestExaminer.class.getName()));
+        assertEquals(Set.of("org.apache.netbeans.nbm"), scanned.getDefinedPackages());
+        assertTrue(scanned.getReferencedPackages().containsAll(Set.of("org.apache.netbeans.nbm", "java.io",
+                "org.junit.jupiter.api")));
+        assertEquals("", ClassReferenceIndex.packageOf("Foo"));
+
+        ClassReferenceIndex.JarClasses indexed = index.get(jar);
+        assertEquals(scanned.getDefinedClasses(), indexed.getDefinedClasses());
+        assertEquals(scanned.getReferencedClasses(), indexed.getReferencedClasses());
+        List<File> entries = entries(indexDir);
+        assertEquals(1, entries.size());
+
+        // read back from the index, a copy of the jar shares the entry
+        File copy = new File(dir, "copy.jar");
+        Files.copy(jar.toPath(), copy.toPath());
+        indexed = index.get(copy);
+        assertEquals(scanned.getDefinedClasses(), indexed.getDefinedClasses());
+        assertEquals(scanned.getReferencedClasses(), indexed.getReferencedClasses());
+        assertEquals(entries, entries(indexDir));
+
+        // a damaged entry is replaced
+        Files.write(entries.get(0).toPath(), new byte[]{1, 2, 3});
+        assertEquals(scanned.getReferencedClasses(), index.get(jar).getReferencedClasses());
+        assertTrue(entries.get(0).length() > 3);
+    }
+
+    @Test
+    void testIndexedPackages() throws Exception {
+        File jar = new File(dir, "lib.jar");
+        writeJar(jar, ManifestExaminerTest.class, ClassReferenceIndexTest.class);
+        File indexDir = new File(dir, "index");
+        ClassReferenceIndex index = ClassReferenceIndex.open(indexDir);
+        ClassReferenceIndex.JarClasses scanned = ClassReferenceIndex.scan(jar);
+
+        // not indexed yet, the jar is analyzed and added
+        ClassReferenceIndex.JarPackages packages = index.getPackages(jar);
+        assertEquals(scanned.getDefinedPackages(), packages.getDefinedPackages());
+        assertEquals(scanned.getReferencedPackages(), packages.getReferencedPackages());
+        assertEquals(1, entries(indexDir).size());
+
+        // read from the entry, the classes of which are still complete
+        packages = index.getPackages(jar);
+        assertEquals(scanned.getDefinedPackages(), packages.getDefinedPackages());
+        assertEquals(scanned.getReferencedPackages(), packages.getReferencedPackages());
+        assertEquals(scanned.getReferencedClasses(), index.get(jar).getReferencedClasses());
+
+        // a truncated entry is replaced
+        File entry = entries(indexDir).get(0);
+        byte[] content = Files.readAllBytes(entry.toPath());
+        Files.write(entry.toPath(), Arrays.copyOf(content, 20));
+        assertEquals(scanned.getDefinedPackages(), index.getPackages(jar).getDefinedPackages());
+        assertEquals(content.length, entry.length());
+    }
+
+    /**
+     * The class folder and jars of this plugin's classpath, including ones
+     * heavy on generics, annotations and lambdas, must give the same classes
+     * as the maven-dependency-analyzer analyzers.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void testScanMatchesAnalyzers() throws Exception {
+        File jar = new File(dir, "lib.jar");
+        writeJar(jar, ManifestExaminerTest.class, ClassReferenceIndexTest.class, NetBeansManifestUpdateMojo.class);
+        List<File> files = new ArrayList<>();
+        files.add(jar);
+        for (Class<?> clazz : List.of(ManifestExaminer.class, ClassReader.class, MavenProject.class,
+                StringUtils.class, DefaultClassAnalyzer.class, Test.class)) {
+            files.add(new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()));
+        }
+        assertTrue(files.get(1).isDirectory());
+        for (File file : files) {
+            URL url = file.toURI().toURL();
+            ClassReferenceIndex.JarClasses scanned = ClassReferenceIndex.scan(file);
+            assertEquals(new DefaultClassAnalyzer().analyze(url), scanned.getDefinedClasses(), file.getName());
+            assertEquals(new ASMDependencyAnalyzer().analyze(url), scanned.getReferencedClasses(), file.getName());
+        }
+    }
+
+    private static List<File> entries(File indexDir) throws IOException {
+        try (Stream<Path> files = Files.walk(indexDir.toPath())) {
+            return files.filter(Files::isRegularFile).map(Path::toFile).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void writeJar(File jar, Class<?>... classes) throws IOException {
+        try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar))) {
+            for (Class<?> clazz : classes) {
+                String name = clazz.getName().replace('.', '/') + ".class";
+                jos.putNextEntry(new JarEntry(name));
+                try (InputStream in = clazz.getClassLoader().getResourceAsStream(name)) {
+                    in.transferTo(jos);
+                }
+                jos.closeEntry();
+            }
+        }
+    }
+}
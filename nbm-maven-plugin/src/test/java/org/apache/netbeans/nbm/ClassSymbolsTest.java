@@ -0,0 +1,55 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.Test;
+
+class ClassSymbolsTest {
+
+    @Test
+    void testSharedIds() {
+        ClassSymbols symbols = new ClassSymbols();
+        ClassReferenceIndex.JarClasses lib = new ClassReferenceIndex.JarClasses(Set.of("org.a.A", "org.a.B"),
+                Set.of("java.lang.Object", "org.b.C"));
+        ClassReferenceIndex.JarClasses module = new ClassReferenceIndex.JarClasses(Set.of("org.b.C", "org.b.D"),
+                Set.of("org.a.A"));
+
+        BitSet used = (BitSet) symbols.referenced(lib).clone();
+        used.or(symbols.referenced(module));
+        BitSet provided = symbols.defined(module);
+        assertSame(provided, symbols.defined(module));
+        assertEquals(4, symbols.size());
+        assertEquals(symbols.id("org.b.C"), symbols.id("org.b.C"));
+
+        BitSet missing = (BitSet) used.clone();
+        missing.andNot(provided);
+        missing.andNot(symbols.defined(lib));
+        assertEquals(List.of("java.lang.Object"), symbols.names(missing));
+
+        used.and(provided);
+        assertEquals(List.of("org.b.C"), symbols.names(used));
+        assertEquals("org.b.C", symbols.name(symbols.id("org.b.C")));
+        assertEquals(5, symbols.size());
+    }
+}
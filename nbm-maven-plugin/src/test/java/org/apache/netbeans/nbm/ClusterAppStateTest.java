@@ -0,0 +1,149 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ClusterAppStateTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testState() throws Exception {
+        File jar = new File(dir, "platform/modules/org-a.jar");
+        jar.getParentFile().mkdirs();
+        Files.write(jar.toPath(), new byte[]{1, 2, 3});
+        String checksum = ClusterAppState.checksum(0xcafebabeL);
+
+        Map<String, ClusterAppState.Output> outputs = new LinkedHashMap<>();
+        outputs.put("platform/modules/org-a.jar", ClusterAppState.Output.of(checksum, jar));
+        outputs.put("platform/update_tracking/org-a.xml", new ClusterAppState.Output(ClusterAppState.GENERATED, 10, 0));
+        ClusterAppState state = new ClusterAppState("extra");
+        state.put("org.a:a:nbm-file", outputs);
+        state.put("org.b:b:nbm-file", Map.of("platform/modules/Org-B.jar", new ClusterAppState.Output("1", 4, 0)));
+        File file = new File(dir, "state/app.files");
+        state.store(file);
+
+        ClusterAppState loaded = ClusterAppState.load(file, "extra");
+        Map<String, ClusterAppState.Output> previous = loaded.get("org.a:a:nbm-file");
+        assertEquals(outputs.keySet(), previous.keySet());
+        assertTrue(ClusterAppState.isCurrent(previous, "platform/modules/org-a.jar", checksum, jar));
+        assertFalse(ClusterAppState.isCurrent(previous, "platform/modules/org-a.jar", "0", jar));
+        assertFalse(ClusterAppState.isCurrent(previous, "platform/modules/org-b.jar", checksum, jar));
+        assertTrue(loaded.get("org.c:c:nbm-file").isEmpty());
+
+        // modified since
+        long stamp = jar.lastModified();
+        Files.write(jar.toPath(), new byte[]{1, 2});
+        assertFalse(ClusterAppState.isCurrent(previous, "platform/modules/org-a.jar", checksum, jar));
+
+        // replaced in place by content of the same size
+        Files.write(jar.toPath(), new byte[]{3, 2, 1});
+        assertTrue(jar.setLastModified(stamp + 2000));
+        assertFalse(ClusterAppState.isCurrent(previous, "platform/modules/org-a.jar", checksum, jar));
+
+        // files nobody writes anymore, ignoring case
+        ClusterAppState current = new ClusterAppState("extra");
+        current.put("org.b:b:nbm-file", Map.of("platform/modules/org-b.jar", new ClusterAppState.Output("1", 4, 0)));
+        assertEquals(Set.of("platform/modules/org-a.jar", "platform/update_tracking/org-a.xml"),
+                loaded.stalePaths(current));
+
+        // kept, but written again
+        Files.write(jar.toPath(), new byte[]{1, 2, 3});
+        assertTrue(jar.setLastModified(stamp));
+        current.putInvalid("org.a:a:nbm-file", previous);
+        assertTrue(loaded.stalePaths(current).isEmpty());
+        assertFalse(ClusterAppState.isCurrent(current.get("org.a:a:nbm-file"), "platform/modules/org-a.jar",
+                checksum, jar));
+
+        // damaged state is ignored
+        Files.write(file.toPath(), "nbm-cluster-app 3\nsettings extra\nx y\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(ClusterAppState.load(file, "extra").get("org.a:a:nbm-file").isEmpty());
+        assertTrue(ClusterAppState.load(new File(dir, "missing"), "extra").get("org.a:a:nbm-file").isEmpty());
+    }
+
+    @Test
+    void testUnchangedSource() throws Exception {
+        File nbm = new File(dir, "repo/a 1.0.nbm");
+        nbm.getParentFile().mkdirs();
+        Files.write(nbm.toPath(), new byte[]{1, 2, 3});
+        File app = new File(dir, "app");
+        File jar = new File(app, "platform/modules/org-a.jar");
+        jar.getParentFile().mkdirs();
+        Files.write(jar.toPath(), new byte[]{4, 5});
+        Map<String, ClusterAppState.Output> outputs = new LinkedHashMap<>();
+        outputs.put("platform/modules/org-a.jar", ClusterAppState.Output.of("1", jar));
+        ClusterAppState state = new ClusterAppState("extra");
+        state.put("org.a:a:nbm-file", ClusterAppState.Source.of(nbm), outputs,
+                List.of("platform/modules/org-a.jar"));
+        state.put("org.b:b:nbm-file", outputs);
+        File file = new File(dir, "state/app.files");
+        state.store(file);
+
+        ClusterAppState loaded = ClusterAppState.load(file, "extra");
+        assertTrue(loaded.isUpToDate("org.a:a:nbm-file", ClusterAppState.Source.of(nbm), app));
+        assertEquals(List.of("platform/modules/org-a.jar"), loaded.getModules("org.a:a:nbm-file"));
+        // recorded without its source, read again
+        assertFalse(loaded.isUpToDate("org.b:b:nbm-file", ClusterAppState.Source.of(nbm), app));
+        assertTrue(loaded.getModules("org.b:b:nbm-file").isEmpty());
+        // another file of the same size and time stamp
+        File copy = new File(dir, "copy.nbm");
+        Files.copy(nbm.toPath(), copy.toPath());
+        assertTrue(copy.setLastModified(nbm.lastModified()));
+        assertFalse(loaded.isUpToDate("org.a:a:nbm-file", ClusterAppState.Source.of(copy), app));
+
+        // an output modified since
+        long stamp = jar.lastModified();
+        assertTrue(jar.setLastModified(stamp + 2000));
+        assertFalse(loaded.isUpToDate("org.a:a:nbm-file", ClusterAppState.Source.of(nbm), app));
+        assertTrue(jar.setLastModified(stamp));
+        assertTrue(loaded.isUpToDate("org.a:a:nbm-file", ClusterAppState.Source.of(nbm), app));
+
+        // the artifact modified since
+        long nbmStamp = nbm.lastModified();
+        assertTrue(nbm.setLastModified(nbmStamp + 2000));
+        assertFalse(loaded.isSameSource("org.a:a:nbm-file", ClusterAppState.Source.of(nbm)));
+        assertFalse(loaded.isUpToDate("org.a:a:nbm-file", ClusterAppState.Source.of(nbm), app));
+        assertTrue(nbm.setLastModified(nbmStamp));
+
+        // other settings, the outputs are kept to be cleaned up but nothing is up to date
+        ClusterAppState other = ClusterAppState.load(file, "platform");
+        assertEquals(outputs.keySet(), other.get("org.a:a:nbm-file").keySet());
+        assertFalse(other.isUpToDate("org.a:a:nbm-file", ClusterAppState.Source.of(nbm), app));
+        assertTrue(other.getModules("org.a:a:nbm-file").isEmpty());
+
+        // written again, the artifact is read next time
+        state.putInvalid("org.a:a:nbm-file", outputs);
+        assertFalse(state.isSameSource("org.a:a:nbm-file", ClusterAppState.Source.of(nbm)));
+        assertEquals(Collections.emptyList(), state.getModules("org.a:a:nbm-file"));
+    }
+}
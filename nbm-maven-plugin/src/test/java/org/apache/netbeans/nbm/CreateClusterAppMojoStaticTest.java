@@ -21,11 +21,17 @@ package org.apache.netbeans.nbm;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.jar.Attributes;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.netbeans.nbm.utils.ExamineManifest;
 import org.apache.netbeans.nbm.CreateClusterAppMojo.BundleTuple;
@@ -111,6 +117,99 @@ class CreateClusterAppMojoStaticTest {
 
     }
 
+    /**
+     * Random bundles must get the clusters the original passes over the
+     * bundles gave them.
+     */
+    @Test
+    void assignClustersToBundlesLikeWalks() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            int count = 1 + random.nextInt(40);
+            List<ExamineManifest> manifests = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                manifests.add(bundle("b" + i, randomNames(random, "p", 12, 2), randomNames(random, "p", 12, 3),
+                        randomNames(random, "b", count, 2)));
+            }
+            Map<String, Set<String>> clusterDeps = new LinkedHashMap<>();
+            for (String cluster : Arrays.asList("platform", "ide", "java")) {
+                clusterDeps.put(cluster, new HashSet<>(randomNames(random, "b", count + 5, 2)));
+            }
+            Map<String, Set<String>> cluster2depClusters = new HashMap<>();
+            cluster2depClusters.put("java", new HashSet<>(Arrays.asList("platform", "ide")));
+            if (random.nextBoolean()) {
+                cluster2depClusters.put("ide", Collections.singleton("platform"));
+            }
+            List<BundleTuple> bundles = new ArrayList<>();
+            List<BundleTuple> expected = new ArrayList<>();
+            for (ExamineManifest em : manifests) {
+                bundles.add(new BundleTuple(null, em));
+                expected.add(new BundleTuple(null, em));
+            }
+            CreateClusterAppMojo.assignClustersToBundles(null, new ArrayList<>(bundles), Collections.emptySet(),
+                    clusterDeps, cluster2depClusters, null);
+            walkClusters(expected, clusterDeps, cluster2depClusters);
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected.get(i).cluster, bundles.get(i).cluster, "round " + round + " bundle b" + i);
+            }
+        }
+    }
+
+    /**
+     * Long chains in the worst order for passes over the bundles: one
+     * bundle found per pass, and down and up passes alternating.
+     */
+    @Test
+    void assignClustersToBundlesScaling() throws Exception {
+        int length = 5000;
+        List<BundleTuple> bundles = new ArrayList<>();
+        bundles.add(new BundleTuple(null, bundle("d0", List.of(), List.of(), List.of("d1"))));
+        // d(i) requires d(i + 1), each found by a down pass of its own
+        for (int i = length; i > 0; i--) {
+            bundles.add(new BundleTuple(null, bundle("d" + i, List.of("pd" + i), List.of(),
+                    i < length ? List.of("d" + (i + 1)) : List.of())));
+        }
+        // u(i) imports from u(i - 1), each found by an up pass of its own, followed by a down pass finding x(i)
+        for (int i = length; i > 0; i--) {
+            List<String> requires = i > 1 ? List.of("x" + i) : List.of("x" + i, "d0");
+            bundles.add(new BundleTuple(null, bundle("u" + i, List.of("pu" + i),
+                    i > 1 ? List.of("pu" + (i - 1)) : List.of(), requires)));
+            bundles.add(new BundleTuple(null, bundle("x" + i, List.of(), List.of(), List.of())));
+        }
+        bundles.add(new BundleTuple(null, bundle("alone", List.of(), List.of(), List.of())));
+        Map<String, Set<String>> clusterDeps = new HashMap<>();
+        clusterDeps.put("extra", Collections.singleton("d0"));
+
+        List<BundleTuple> all = new ArrayList<>(bundles);
+        CreateClusterAppMojo.assignClustersToBundles(null, bundles, Collections.emptySet(), clusterDeps,
+                Collections.emptyMap(), null);
+        for (BundleTuple bundle : all) {
+            if (bundle.manifest.getModule().equals("alone")) {
+                assertEquals(null, bundle.cluster);
+            } else {
+                assertEquals("extra", bundle.cluster, bundle.manifest.getModule());
+            }
+        }
+    }
+
+    @Test
+    void conflictGroupsTest() throws Exception {
+        List<Set<String>> paths = Arrays.asList(
+                Set.of("platform/modules/a.jar", "platform/config/a.xml"),
+                Set.of("ide/modules/b.jar"),
+                Set.of("platform/modules/c.jar", "platform/lib/shared.jar"),
+                Set.of("ide/modules/d.jar", "platform/config/a.xml"),
+                Set.of(),
+                Set.of("platform/lib/shared.jar"));
+        assertEquals(Arrays.asList(Arrays.asList(0, 3), Arrays.asList(1), Arrays.asList(2, 5), Arrays.asList(4)),
+                CreateClusterAppMojo.conflictGroups(paths));
+
+        // a later item joins two earlier groups
+        paths = Arrays.asList(Set.of("a"), Set.of("b"), Set.of("c"), Set.of("c", "a"));
+        assertEquals(Arrays.asList(Arrays.asList(0, 2, 3), Arrays.asList(1)),
+                CreateClusterAppMojo.conflictGroups(paths));
+    }
+
     private BundleTuple createBundleTuple(String cnb, File file) throws MojoExecutionException {
         assumeTrue(file.exists());
 
@@ -123,4 +222,124 @@ class CreateClusterAppMojoStaticTest {
 
         return toRet;
     }
+
+    private static List<String> randomNames(Random random, String prefix, int bound, int max) {
+        List<String> toRet = new ArrayList<>();
+        for (int i = random.nextInt(max + 1); i > 0; i--) {
+            toRet.add(prefix + random.nextInt(bound));
+        }
+        return toRet;
+    }
+
+    private static ExamineManifest bundle(String name, List<String> exports, List<String> imports,
+            List<String> requires) {
+        Attributes attrs = new Attributes();
+        attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attrs.putValue("Bundle-SymbolicName", name);
+        attrs.putValue("Bundle-Version", "1.0");
+        if (!exports.isEmpty()) {
+            attrs.putValue("Export-Package", String.join(",", exports));
+        }
+        if (!imports.isEmpty()) {
+            attrs.putValue("Import-Package", String.join(",", imports));
+        }
+        if (!requires.isEmpty()) {
+            attrs.putValue("Require-Bundle", String.join(",", requires));
+        }
+        ExamineManifest em = new ExamineManifest(null);
+        em.setPopulateDependencies(true);
+        em.checkAttributes(attrs);
+        assertEquals(name, em.getModule());
+        return em;
+    }
+
+    // the cluster assignment as originally written, passing over the bundles left until nothing is found
+
+    private static void walkClusters(List<BundleTuple> bundles, Map<String, Set<String>> clusterDependencies,
+            Map<String, Set<String>> cluster2depClusters) {
+        List<BundleTuple> toProcess = new ArrayList<>();
+        List<BundleTuple> known = new ArrayList<>();
+        for (BundleTuple ent : bundles) {
+            List<String> depclusters = new ArrayList<>();
+            for (Map.Entry<String, Set<String>> entry : clusterDependencies.entrySet()) {
+                if (entry.getValue().contains(ent.manifest.getModule())) {
+                    depclusters.add(entry.getKey());
+                }
+            }
+            if (depclusters.isEmpty()) {
+                toProcess.add(ent);
+                continue;
+            }
+            for (Iterator<String> it2 = depclusters.iterator(); it2.hasNext();) {
+                String s = it2.next();
+                Set<String> depsCs = cluster2depClusters.get(s);
+                boolean removeS = false;
+                for (String sDep : depclusters) {
+                    if (!s.equals(sDep) && depsCs != null && depsCs.contains(sDep)) {
+                        removeS = true;
+                    }
+                }
+                if (removeS) {
+                    it2.remove();
+                }
+            }
+            ent.cluster = depclusters.get(0);
+            known.add(ent);
+        }
+        if (!toProcess.isEmpty()) {
+            walkDown(known, toProcess);
+        }
+        if (!toProcess.isEmpty()) {
+            walkUp(known, toProcess);
+        }
+    }
+
+    private static void walkDown(List<BundleTuple> known, List<BundleTuple> toProcess) {
+        boolean atLeastOneWasFound = false;
+        for (Iterator<BundleTuple> it = toProcess.iterator(); it.hasNext();) {
+            BundleTuple bundleTuple = it.next();
+            for (BundleTuple knownBT : known) {
+                if (!intersection(bundleTuple.manifest.getOsgiExports(), knownBT.manifest.getOsgiImports()).isEmpty()
+                        || knownBT.manifest.getDependencyTokens().contains(bundleTuple.manifest.getModule())) {
+                    bundleTuple.cluster = knownBT.cluster;
+                    atLeastOneWasFound = true;
+                    it.remove();
+                    known.add(bundleTuple);
+                    break;
+                }
+            }
+        }
+        if (!toProcess.isEmpty() && atLeastOneWasFound) {
+            walkDown(known, toProcess);
+        }
+    }
+
+    private static void walkUp(List<BundleTuple> known, List<BundleTuple> toProcess) {
+        boolean atLeastOneWasFound = false;
+        for (Iterator<BundleTuple> it = toProcess.iterator(); it.hasNext();) {
+            BundleTuple bundleTuple = it.next();
+            for (BundleTuple knownBT : known) {
+                if (!intersection(bundleTuple.manifest.getOsgiImports(), knownBT.manifest.getOsgiExports()).isEmpty()
+                        || bundleTuple.manifest.getDependencyTokens().contains(knownBT.manifest.getModule())) {
+                    bundleTuple.cluster = knownBT.cluster;
+                    atLeastOneWasFound = true;
+                    it.remove();
+                    known.add(bundleTuple);
+                    break;
+                }
+            }
+        }
+        if (!toProcess.isEmpty() && atLeastOneWasFound) {
+            walkDown(known, toProcess);
+        }
+        if (!toProcess.isEmpty() && atLeastOneWasFound) {
+            walkUp(known, toProcess);
+        }
+    }
+
+    private static Set<String> intersection(Set<String> first, Collection<String> second) {
+        Set<String> intersection = new HashSet<>(first);
+        intersection.retainAll(second);
+        return intersection;
+    }
 }
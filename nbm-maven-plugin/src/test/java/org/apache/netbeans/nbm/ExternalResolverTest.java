@@ -0,0 +1,231 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.netbeans.nbm.stubs.ArtifactHandlerManagerStub;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.resolution.ArtifactRequest;
+import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
+import org.eclipse.aether.transfer.ArtifactNotFoundException;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+class ExternalResolverTest {
+
+    private static final byte[] CONTENT = "external content".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testDownloadCache() throws Exception {
+        File served = new File(dir, "served.jar");
+        Files.write(served.toPath(), CONTENT);
+        File cacheDir = new File(dir, "cache");
+        RepositorySystem system = Mockito.mock(RepositorySystem.class);
+        ExternalResolver resolver = resolver(system, cacheDir);
+
+        ExternalResolver.External external = parse("CRC: " + crc(CONTENT) + "\nSIZE: " + CONTENT.length
+                + "\nURL: " + served.toURI() + "\n");
+        resolver.resolveAll(Collections.singletonList(external));
+        File cached = new File(cacheDir, ClusterAppState.checksum(crc(CONTENT)) + "-" + CONTENT.length);
+        assertEquals(cached, external.getSource());
+        File target = new File(dir, "target.jar");
+        ExternalResolver.copy(external, target);
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+        Mockito.verifyNoInteractions(system);
+
+        // same content declared elsewhere comes from the cache
+        Files.delete(served.toPath());
+        ExternalResolver.External other = parse("CRC: " + crc(CONTENT) + "\nURL: http://localhost:1/missing.jar\n"
+                + "SIZE: " + CONTENT.length + "\n");
+        resolver.resolveAll(Collections.singletonList(other));
+        assertEquals(cached, other.getSource());
+
+        // a damaged entry is dropped
+        Files.write(cached.toPath(), new byte[]{1, 2, 3});
+        assertThrows(IOException.class, () -> ExternalResolver.copy(other, target));
+        assertFalse(cached.exists());
+        assertFalse(target.exists());
+
+        // without a declared size the entry belongs to the URL
+        Files.write(served.toPath(), CONTENT);
+        ExternalResolver.External unsized = parse("CRC: " + crc(CONTENT) + "\nURL: " + served.toURI() + "\n");
+        resolver.resolveAll(Collections.singletonList(unsized));
+        assertTrue(unsized.getSource().getName().startsWith(ClusterAppState.checksum(crc(CONTENT)) + "-"));
+        assertEquals(cacheDir, unsized.getSource().getParentFile());
+        ExternalResolver.External elsewhere = parse("CRC: " + crc(CONTENT)
+                + "\nURL: http://localhost:1/missing.jar\n");
+        resolver.resolveAll(Collections.singletonList(elsewhere));
+        assertNull(elsewhere.getSource());
+    }
+
+    @Test
+    void testContentCheckedWhileDownloading() throws Exception {
+        File served = new File(dir, "served.jar");
+        Files.write(served.toPath(), CONTENT);
+        File cacheDir = new File(dir, "cache");
+        ExternalResolver resolver = resolver(Mockito.mock(RepositorySystem.class), cacheDir);
+
+        ExternalResolver.External wrong = parse("CRC: 1\nURL: " + served.toURI() + "\n");
+        resolver.resolveAll(Collections.singletonList(wrong));
+        assertNull(wrong.getSource());
+        assertEquals(0, cacheDir.list().length);
+
+        // nothing to address the content by, downloaded for a single use
+        ExternalResolver.External undeclared = parse("URL: " + served.toURI() + "\n");
+        resolver.resolveAll(Collections.singletonList(undeclared));
+        File downloaded = undeclared.getSource();
+        assertTrue(downloaded.isFile());
+        File target = new File(dir, "target.jar");
+        ExternalResolver.copy(undeclared, target);
+        assertArrayEquals(CONTENT, Files.readAllBytes(target.toPath()));
+        assertFalse(downloaded.exists());
+    }
+
+    @Test
+    void testMavenCoordinates() throws Exception {
+        File repo = new File(dir, "repo");
+        Artifacts artifacts = new Artifacts(new ArtifactHandlerManagerStub());
+        RepositorySystem system = Mockito.mock(RepositorySystem.class);
+        List<String> batched = new ArrayList<>();
+        Mockito.when(system.resolveArtifacts(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            List<ArtifactRequest> requests = invocation.getArgument(1);
+            List<ArtifactResult> results = new ArrayList<>();
+            boolean failed = false;
+            for (ArtifactRequest request : requests) {
+                ArtifactResult result = serve(repo, artifacts, request);
+                batched.add(request.getArtifact().getArtifactId());
+                failed |= !result.isResolved();
+                results.add(result);
+            }
+            if (failed) {
+                throw new ArtifactResolutionException(results);
+            }
+            return results;
+        });
+        List<String> single = new ArrayList<>();
+        Mockito.when(system.resolveArtifact(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            ArtifactRequest request = invocation.getArgument(1);
+            ArtifactResult result = serve(repo, artifacts, request);
+            single.add(request.getArtifact().getArtifactId());
+            if (!result.isResolved()) {
+                throw new ArtifactResolutionException(Collections.singletonList(result));
+            }
+            return result;
+        });
+        File lib = new File(repo, "org/example/lib/1.0/lib-1.0.jar");
+        lib.getParentFile().mkdirs();
+        Files.write(lib.toPath(), CONTENT);
+        File served = new File(dir, "served.jar");
+        Files.write(served.toPath(), CONTENT);
+        ExternalResolver resolver = resolver(system, new File(dir, "cache"));
+
+        ExternalResolver.External inRepo = parse("CRC: " + crc(CONTENT) + "\nURL: m2:/org.example:lib:1.0:jar\n");
+        ExternalResolver.External missing = parse("CRC: " + crc(CONTENT) + "\nURL: m2:/org.example:missing:1.0:jar\n"
+                + "URL: " + served.toURI() + "\n");
+        ExternalResolver.External nowhere = parse("CRC: " + crc(CONTENT) + "\nURL: m2:/org.example:gone:1.0:jar\n");
+        ExternalResolver.External fallback = parse("CRC: " + crc(CONTENT) + "\nURL: m2:/org.example:old:1.0:jar\n"
+                + "URL: m2:/org.example:lib:1.0:jar\n");
+        ExternalResolver.External unused = parse("CRC: " + crc(CONTENT) + "\nURL: " + served.toURI() + "\n"
+                + "URL: m2:/org.example:unused:1.0:jar\n");
+        resolver.resolveAll(Arrays.asList(inRepo, missing, nowhere, fallback, unused));
+        assertEquals(lib, inRepo.getSource());
+        assertTrue(missing.getSource().getParentFile().equals(new File(dir, "cache")));
+        assertNull(nowhere.getSource());
+        assertEquals(lib, fallback.getSource());
+        assertTrue(unused.getSource().isFile());
+        // one request for the leading coordinates, the others only once the URLs before them failed
+        Mockito.verify(system, Mockito.times(1)).resolveArtifacts(Mockito.any(), Mockito.any());
+        assertEquals(Arrays.asList("lib", "missing", "gone", "old"), batched);
+        assertEquals(Collections.singletonList("lib"), single);
+
+        // a malformed fallback fails its own external, and is reported there
+        List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+        ExternalResolver.External malformed = ExternalResolver.External.parse(new ByteArrayInputStream(
+                ("CRC: " + crc(CONTENT) + "\nURL: m2:/org.example:gone:1.0:jar\nURL: m2:/org.example:lib\n")
+                        .getBytes(StandardCharsets.UTF_8)), new SystemStreamLog() {
+                            @Override
+                            public void warn(CharSequence content, Throwable error) {
+                                warnings.add(content + ": " + error.getClass().getSimpleName());
+                            }
+                        });
+        ExternalResolver.External other = parse("CRC: " + crc(CONTENT) + "\nURL: m2:/org.example:lib:1.0:jar\n");
+        resolver.resolveAll(Arrays.asList(malformed, other));
+        assertNull(malformed.getSource());
+        assertEquals(lib, other.getSource());
+        assertEquals(Arrays.asList("Cannot find org.example:gone:1.0:jar: ArtifactResolutionException",
+                "Cannot resolve m2:/org.example:gone:1.0:jar, m2:/org.example:lib: "
+                + "ArrayIndexOutOfBoundsException"), warnings);
+
+        ExternalResolver.External mismatch = parse("CRC: 1\nURL: m2:/org.example:lib:1.0:jar\n");
+        resolver.resolveAll(Collections.singletonList(mismatch));
+        File target = new File(dir, "target.jar");
+        IOException ex = assertThrows(IOException.class, () -> ExternalResolver.copy(mismatch, target));
+        assertEquals("CRC-32 of " + target + " does not match declared 1", ex.getMessage());
+        // the repository file is left alone
+        assertTrue(lib.isFile());
+    }
+
+    private static ArtifactResult serve(File repo, Artifacts artifacts, ArtifactRequest request) {
+        ArtifactResult result = new ArtifactResult(request);
+        File file = new File(repo, artifacts.pathOf(request.getArtifact()));
+        if (file.isFile()) {
+            result.setArtifact(request.getArtifact().setFile(file));
+        } else {
+            result.addException(new ArtifactNotFoundException(request.getArtifact(), null));
+        }
+        return result;
+    }
+
+    private ExternalResolver resolver(RepositorySystem system, File cacheDir) {
+        return new ExternalResolver(system, null, Collections.emptyList(),
+                new Artifacts(new ArtifactHandlerManagerStub()), cacheDir);
+    }
+
+    private static ExternalResolver.External parse(String content) throws IOException {
+        return ExternalResolver.External.parse(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+                new SystemStreamLog());
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,123 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExtractedNbmStoreTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testStore() throws Exception {
+        File nbm = new File(dir, "a.nbm");
+        writeNbm(nbm, "content of a");
+        File root = new File(dir, "store");
+        ExtractedNbmStore store = new ExtractedNbmStore(root, 1024);
+
+        File payload = store.get(nbm);
+        File jar = new File(payload, "modules/org-a.jar");
+        assertArrayEquals("content of a".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(jar.toPath()));
+        assertFalse(new File(payload, "modules/ext/lib.jar").exists());
+        assertFalse(new File(payload, "modules/ext/lib.jar.external").exists());
+        assertFalse(new File(root, "Info").exists());
+        assertEquals(payload, store.get(nbm));
+        assertEquals(1, root.list().length);
+
+        // linked, replacing rather than writing through an earlier link
+        ZipEntry entry;
+        try (ZipFile zip = new ZipFile(nbm)) {
+            entry = zip.getEntry("netbeans/modules/org-a.jar");
+        }
+        File target = new File(dir, "app/platform/modules/org-a.jar");
+        assertTrue(store.link(payload, "modules/org-a.jar", entry, target));
+        assertTrue(Files.isSameFile(jar.toPath(), target.toPath()));
+        assertTrue(store.link(payload, "modules/org-a.jar", entry, target));
+        assertFalse(store.link(payload, "missing.jar", entry, target));
+
+        // least recently used go first
+        File other = new File(dir, "b.nbm");
+        writeNbm(other, "content of b");
+        Thread.sleep(1000);
+        File otherPayload = store.get(other);
+        new ExtractedNbmStore(root, 20).evict();
+        assertFalse(payload.exists());
+        assertTrue(otherPayload.exists());
+        // still there for the cluster
+        assertTrue(target.isFile());
+        new ExtractedNbmStore(root, 0).evict();
+        assertEquals(0, root.list().length);
+    }
+
+    @Test
+    void testChangedEntryDiscarded() throws Exception {
+        File nbm = new File(dir, "a.nbm");
+        writeNbm(nbm, "content of a");
+        ExtractedNbmStore store = new ExtractedNbmStore(new File(dir, "store"), 1024);
+        File payload = store.get(nbm);
+        ZipEntry entry;
+        try (ZipFile zip = new ZipFile(nbm)) {
+            entry = zip.getEntry("netbeans/modules/org-a.jar");
+        }
+        File target = new File(dir, "app/platform/modules/org-a.jar");
+        assertTrue(store.link(payload, "modules/org-a.jar", entry, target));
+
+        // the application rewrites its cluster file in place, and with it the store
+        Files.write(target.toPath(), "CONTENT of a".getBytes(StandardCharsets.UTF_8));
+        File other = new File(dir, "app2/platform/modules/org-a.jar");
+        assertFalse(store.link(payload, "modules/org-a.jar", entry, other));
+        assertFalse(payload.exists());
+        assertFalse(other.exists());
+
+        // unpacked again
+        payload = store.get(nbm);
+        assertTrue(store.link(payload, "modules/org-a.jar", entry, other));
+        assertArrayEquals("content of a".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(other.toPath()));
+    }
+
+    private static void writeNbm(File nbm, String content) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(nbm))) {
+            zos.putNextEntry(new ZipEntry("Info/info.xml"));
+            zos.write("<module/>".getBytes(StandardCharsets.UTF_8));
+            zos.putNextEntry(new ZipEntry("netbeans/modules/"));
+            ZipEntry jar = new ZipEntry("netbeans/modules/org-a.jar");
+            // built well before the tests run
+            jar.setTime(1700000000000L);
+            zos.putNextEntry(jar);
+            zos.write(content.getBytes(StandardCharsets.UTF_8));
+            zos.putNextEntry(new ZipEntry("netbeans/modules/ext/lib.jar.external"));
+            zos.write("URL:http://example.org/lib.jar\n".getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.ManifestSummary;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+class IntegrityVerifierTest {
+
+    @Test
+    void testMissingItems() {
+        IntegrityVerifier verifier = new IntegrityVerifier();
+        verifier.addModule(manifest(
+                "OpenIDE-Module", "org.example.a/1",
+                "OpenIDE-Module-Module-Dependencies", "org.example.b > 1.0, org.example.missing/2 > 1.0",
+                "OpenIDE-Module-Requires", "tok.b, org.openide.modules.os.Unix, tok.missing",
+                "OpenIDE-Module-Public-Packages", "org.example.a.*, org.example.tree.**"));
+        verifier.addModule(manifest(
+                "OpenIDE-Module", "org.example.b",
+                "OpenIDE-Module-Module-Dependencies", "org.eclipse.osgi",
+                "OpenIDE-Module-Provides", "tok.b",
+                "OpenIDE-Module-Needs", "tok.missing"));
+        verifier.addModule(manifest(
+                "OpenIDE-Module", "org.netbeans.modules.netbinox"));
+        verifier.addBundle(manifest(
+                "Bundle-SymbolicName", "org.example.c",
+                "Require-Bundle", "org.example.a, org.example.gone",
+                "Import-Package", "org.example.a, org.example.tree.sub, java.util, org.example.d, "
+                + "org.example.optional;resolution:=optional, org.osgi.framework",
+                "Export-Package", "org.example.c"));
+        verifier.addBundle(manifest(
+                "Bundle-SymbolicName", "org.example.d",
+                "Import-Package", "org.example.c, org.osgi.framework"));
+
+        IntegrityVerifier.Result result = verifier.verify();
+        assertEquals(missing("org.example.gone", "org.example.c", "org.example.missing", "org.example.a"),
+                result.getMissingModules());
+        assertEquals(missing("org.example.d", "org.example.c", "org.osgi.framework", "org.example.c,org.example.d"),
+                result.getMissingImports());
+        assertEquals(missing("tok.missing", "org.example.a,org.example.b"), result.getMissingTokens());
+        verifier.logProvided(new SystemStreamLog());
+    }
+
+    /**
+     * Thousands of modules, each depending on, importing and requiring what
+     * the previous one has, the check stays linear.
+     */
+    @Test
+    void testManyModules() {
+        IntegrityVerifier verifier = new IntegrityVerifier();
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            String prev = "org.example.m" + Math.max(0, i - 1);
+            if (i % 2 == 0) {
+                verifier.addModule(manifest(
+                        "OpenIDE-Module", "org.example.m" + i,
+                        "OpenIDE-Module-Module-Dependencies", prev + " > 1.0",
+                        "OpenIDE-Module-Provides", "tok.m" + i,
+                        "OpenIDE-Module-Requires", "tok.m" + Math.max(0, i - 2),
+                        "OpenIDE-Module-Public-Packages", "org.example.m" + i + ".*, org.example.m" + i + ".api.**"));
+            } else {
+                verifier.addBundle(manifest(
+                        "Bundle-SymbolicName", "org.example.m" + i,
+                        "Require-Bundle", prev,
+                        "Import-Package", prev + ", " + prev + ".api.spi",
+                        "Export-Package", "org.example.m" + i));
+            }
+        }
+        assertTrue(verifier.verify().isEmpty());
+        verifier.addBundle(manifest(
+                "Bundle-SymbolicName", "org.example.last",
+                "Import-Package", "org.example.m" + count));
+        assertEquals(Collections.singleton("org.example.m" + count), verifier.verify().getMissingImports().keySet());
+    }
+
+    private static ExamineManifest manifest(String... attributes) {
+        Attributes attrs = new Attributes();
+        for (int i = 0; i < attributes.length; i += 2) {
+            attrs.putValue(attributes[i], attributes[i + 1]);
+        }
+        return new ExamineManifest(new SystemStreamLog(), ManifestSummary.of(attrs, true));
+    }
+
+    private static Map<String, Object> missing(String... entries) {
+        Map<String, Object> toRet = new TreeMap<>();
+        for (int i = 0; i < entries.length; i += 2) {
+            toRet.put(entries[i], new LinkedHashSet<>(Arrays.asList(entries[i + 1].split(","))));
+        }
+        return toRet;
+    }
+}
@@ -0,0 +1,114 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.netbeans.nbm.utils.ManifestCache;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ManifestExaminerTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testSharedExamination() throws Exception {
+        ManifestExaminer examiner = new ManifestExaminer();
+        SystemStreamLog log = new SystemStreamLog();
+        File jar = new File(dir, "a.jar");
+        writeJar(jar, "org.example.a/1", "1.0");
+
+        ExamineManifest first = examiner.examine(jar, true, null, log);
+        ExamineManifest second = examiner.examine(jar, true, null, log);
+        assertEquals(1, examiner.getMisses());
+        assertEquals(1, examiner.getHits());
+        assertEquals("org.example.a", second.getModule());
+        assertSame(first.getSummary(), second.getSummary());
+        assertTrue(second.isNetBeansModule());
+
+        // a different populateDependencies mode is examined separately
+        examiner.examine(jar, false, null, log);
+        assertEquals(2, examiner.getMisses());
+
+        // rewritten during the build
+        writeJar(jar, "org.example.a/1", "1.10");
+        assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+        assertEquals("1.10", examiner.examine(jar, true, null, log).getSpecVersion());
+        assertEquals(3, examiner.getMisses());
+
+        File other = new File(dir, "b.jar");
+        writeJar(other, "org.example.b", "2.0");
+        Map<String, File> files = new LinkedHashMap<>();
+        files.put("b", other);
+        files.put("a", jar);
+        Map<String, ExamineManifest> all = examiner.examineAll(files, true, null, log);
+        assertEquals("[b, a]", all.keySet().toString());
+        assertEquals("org.example.b", all.get("b").getModule());
+        assertEquals(2, examiner.getHits());
+        assertEquals(4, examiner.getMisses());
+    }
+
+    @Test
+    void testCopiedManifest() throws Exception {
+        ManifestExaminer examiner = new ManifestExaminer();
+        SystemStreamLog log = new SystemStreamLog();
+        File jar = new File(dir, "a.jar");
+        writeJar(jar, "org.example.a/1", "1.0");
+        Attributes attrs;
+        try (JarFile jf = new JarFile(jar)) {
+            attrs = jf.getManifest().getMainAttributes();
+        }
+        File cacheFile = new File(dir, "manifests.bin");
+        ManifestCache cache = ManifestCache.open(cacheFile);
+
+        ExamineManifest copied = examiner.examine(jar, attrs, true, cache, log);
+        assertEquals("org.example.a", copied.getModule());
+        assertEquals("1.0", copied.getSpecVersion());
+        assertEquals("org.example.a/1", cache.get(jar).getValue("OpenIDE-Module"));
+
+        ExamineManifest examined = examiner.examine(jar, true, cache, log);
+        assertSame(copied.getSummary(), examined.getSummary());
+        assertEquals(1, examiner.getHits());
+        assertEquals(1, examiner.getMisses());
+    }
+
+    private static void writeJar(File jar, String module, String spec) throws IOException {
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mf.getMainAttributes().putValue("OpenIDE-Module", module);
+        mf.getMainAttributes().putValue("OpenIDE-Module-Specification-Version", spec);
+        try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar), mf)) {
+            jos.flush();
+        }
+    }
+}
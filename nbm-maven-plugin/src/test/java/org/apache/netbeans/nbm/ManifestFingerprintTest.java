@@ -0,0 +1,93 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ManifestFingerprintTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testFingerprint() throws Exception {
+        File source = new File(dir, "manifest.mf");
+        Files.write(source.toPath(), "OpenIDE-Module: org.a\n".getBytes(StandardCharsets.UTF_8));
+        File classes = new File(dir, "classes");
+        File clazz = new File(classes, "org/a/A.class");
+        clazz.getParentFile().mkdirs();
+        Files.write(clazz.toPath(), new byte[]{1, 2, 3});
+        File target = new File(classes, "META-INF/MANIFEST.MF");
+        target.getParentFile().mkdirs();
+        File jar = new File(dir, "lib.jar");
+        Files.write(jar.toPath(), new byte[]{4});
+
+        String first = fingerprint(source, classes, target, jar);
+        assertEquals(first, fingerprint(source, classes, target, jar));
+
+        // the generated manifest itself is not an input
+        Files.write(target.toPath(), new byte[]{5});
+        assertEquals(first, fingerprint(source, classes, target, jar));
+
+        Files.write(source.toPath(), "OpenIDE-Module: org.b\n".getBytes(StandardCharsets.UTF_8));
+        String second = fingerprint(source, classes, target, jar);
+        assertNotEquals(first, second);
+
+        assertTrue(clazz.setLastModified(clazz.lastModified() - 10000));
+        String third = fingerprint(source, classes, target, jar);
+        assertNotEquals(second, third);
+
+        Files.write(jar.toPath(), new byte[]{4, 5});
+        assertNotEquals(third, fingerprint(source, classes, target, jar));
+    }
+
+    @Test
+    void testStamp() throws Exception {
+        File stamp = new File(dir, "stamp/manifest.fingerprint");
+        File manifest = new File(dir, "MANIFEST.MF");
+        byte[] content = "Manifest-Version: 1.0\r\n".getBytes(StandardCharsets.UTF_8);
+        assertFalse(ManifestFingerprint.isUpToDate(stamp, "abc", manifest));
+
+        Files.write(manifest.toPath(), content);
+        ManifestFingerprint.store(stamp, "abc", content);
+        assertTrue(ManifestFingerprint.isUpToDate(stamp, "abc", manifest));
+        assertFalse(ManifestFingerprint.isUpToDate(stamp, "abd", manifest));
+
+        // replaced by someone else
+        Files.write(manifest.toPath(), "Manifest-Version: 2.0\r\n".getBytes(StandardCharsets.UTF_8));
+        assertFalse(ManifestFingerprint.isUpToDate(stamp, "abc", manifest));
+    }
+
+    private static String fingerprint(File source, File classes, File target, File jar) throws Exception {
+        return new ManifestFingerprint()
+                .addContent("source", source)
+                .add("codeNameBase", "org.a")
+                .addStamp("file", jar)
+                .addTree("classes", classes, target)
+                .value();
+    }
+}
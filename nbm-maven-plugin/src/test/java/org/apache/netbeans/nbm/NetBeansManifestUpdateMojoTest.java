@@ -18,15 +18,41 @@ package org.apache.netbeans.nbm;
  * specific language governing permissions and limitations
  * under the License.
  */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 import java.util.regex.Pattern;
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.api.plugin.testing.MojoExtension;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.project.MavenProject;
+import org.apache.netbeans.nbm.stubs.ArtifactHandlerManagerStub;
+import org.apache.netbeans.nbm.utils.PackageTrie;
 import org.apache.tools.ant.taskdefs.Manifest;
+import org.eclipse.aether.graph.DefaultDependencyNode;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  *
@@ -34,6 +60,9 @@ import org.junit.jupiter.api.Test;
  */
 class NetBeansManifestUpdateMojoTest {
 
+    @TempDir
+    File dir;
+
     @Test
     void testCreateCompiledPatternList() {
         List<String> subpackages = Arrays.asList(new String[]{
@@ -61,6 +90,49 @@ class NetBeansManifestUpdateMojoTest {
 
     }
 
+    /**
+     * The trie used by the runtime verification must classify every name
+     * like the regular expressions, for well formed and malformed tokens.
+     */
+    @Test
+    void testPackageTrieMatchesPatterns() {
+        List<String> tokens = new ArrayList<>();
+        words("ab.*", 5, "", tokens);
+        tokens.remove("");
+        List<String> names = new ArrayList<>();
+        words("ab.$", 5, "", names);
+
+        for (String token : tokens) {
+            List<String> single = Collections.singletonList(token);
+            assertSameMatches(single, names);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            List<String> some = new ArrayList<>();
+            for (int j = random.nextInt(6); j >= 0; j--) {
+                some.add(tokens.get(random.nextInt(tokens.size())));
+            }
+            assertSameMatches(some, names);
+        }
+    }
+
+    private void assertSameMatches(List<String> tokens, List<String> names) {
+        List<Pattern> patterns = NetBeansManifestUpdateMojo.createCompiledPatternList(tokens);
+        PackageTrie trie = PackageTrie.ofPublicPackages(tokens);
+        for (String name : names) {
+            assertEquals(matches(name, patterns), trie.matches(name), tokens + " " + name);
+        }
+    }
+
+    private static void words(String alphabet, int maxLength, String prefix, List<String> result) {
+        result.add(prefix);
+        if (prefix.length() < maxLength) {
+            for (char c : alphabet.toCharArray()) {
+                words(alphabet, maxLength, prefix + c, result);
+            }
+        }
+    }
+
     private boolean matches(String className, List<Pattern> matchers) {
         for (Pattern patt : matchers) {
             if (patt.matcher(className).matches()) {
@@ -94,4 +166,121 @@ class NetBeansManifestUpdateMojoTest {
         assertEquals("Something. Else.", s.getAttributeValue("Desc"));
     }
 
+    /**
+     * Scanning the jars on several threads must not change what the runtime
+     * verification sees or reports, also when a jar cannot be scanned.
+     */
+    @Test
+    void testConcurrentVerificationMatchesSequential() throws Exception {
+        File output = new File(dir, "classes");
+        writeClass(output, ClassReferenceIndexTest.class);
+        File library = writeJar(new File(dir, "library.jar"), ManifestExaminerTest.class, ClassReferenceIndex.class);
+        List<File> runtime = new ArrayList<>();
+        runtime.add(library);
+        runtime.add(writeJar(new File(dir, "mojo.jar"), NetBeansManifestUpdateMojo.class));
+        runtime.add(writeJar(new File(dir, "examiner.jar"), ManifestExaminer.class, ClassSymbols.class));
+        runtime.add(writeJar(new File(dir, "trie.jar"), PackageTrie.class));
+
+        Map<File, List<Set<String>>> sequential = new HashMap<>();
+        Exception expected = verify(1, output, library, runtime, sequential);
+        assertTrue(expected.getMessage().contains("Class usages: [")
+                && expected.getMessage().contains(NetBeansManifestUpdateMojo.class.getName()), expected.getMessage());
+        Set<File> all = new HashSet<>(runtime);
+        all.add(output);
+        assertEquals(all, sequential.keySet());
+        Map<File, List<Set<String>>> concurrent = new HashMap<>();
+        Exception actual = verify(4, output, library, runtime, concurrent);
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertEquals(sequential, concurrent);
+
+        // fails on the concurrent scan, then again on the scan by the verification
+        File broken = new File(dir, "broken.jar");
+        Files.write(broken.toPath(), new byte[]{1, 2, 3});
+        runtime.add(broken);
+        sequential.clear();
+        expected = verify(1, output, library, runtime, sequential);
+        assertTrue(expected instanceof IOException, expected.toString());
+        concurrent.clear();
+        actual = verify(4, output, library, runtime, concurrent);
+        assertEquals(expected.getClass(), actual.getClass());
+        assertEquals(expected.getMessage(), actual.getMessage());
+        assertTrue(Arrays.stream(actual.getStackTrace()).anyMatch(e -> e.getMethodName().equals("classesOf")));
+        assertFalse(concurrent.containsKey(broken));
+        assertEquals(sequential, concurrent);
+    }
+
+    /**
+     * @param scanned receives the defined and referenced classes of the files
+     * scanned
+     * @return the failure of the verification
+     */
+    private static Exception verify(int threads, File output, File library, List<File> runtime,
+            Map<File, List<Set<String>>> scanned) throws Exception {
+        MavenProject project = new MavenProject();
+        project.getBuild().setOutputDirectory(output.getPath());
+        DefaultArtifactHandler handler = new DefaultArtifactHandler("jar");
+        handler.setAddedToClasspath(true);
+        Set<Artifact> artifacts = new LinkedHashSet<>();
+        for (File file : runtime) {
+            String name = file.getName();
+            Artifact artifact = new DefaultArtifact("org.example", name.substring(0, name.length() - 4), "1.0",
+                    Artifact.SCOPE_RUNTIME, "jar", null, handler);
+            artifact.setFile(file);
+            artifacts.add(artifact);
+        }
+        project.setArtifacts(artifacts);
+        NetBeansManifestUpdateMojo mojo = new NetBeansManifestUpdateMojo(null, null, null,
+                new Artifacts(new ArtifactHandlerManagerStub()), null);
+        MojoExtension.setVariableValueToObject(mojo, "project", project);
+        MojoExtension.setVariableValueToObject(mojo, "verifyRuntime", "fail");
+        MojoExtension.setVariableValueToObject(mojo, "verifyRuntimeThreads", threads);
+        List<org.eclipse.aether.artifact.Artifact> libraries = new ArrayList<>();
+        for (org.eclipse.aether.artifact.Artifact artifact : RepositoryUtils.toArtifacts(artifacts)) {
+            if (library.equals(artifact.getFile())) {
+                libraries.add(artifact);
+            }
+        }
+        Exception failure = null;
+        try {
+            mojo.checkModuleClassPath(new DefaultDependencyNode(
+                    new org.eclipse.aether.artifact.DefaultArtifact("org.example:project:1.0")), libraries,
+                    new HashMap<>(), Collections.emptyList(), "org.example.project");
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        @SuppressWarnings("unchecked")
+        Map<File, ClassReferenceIndex.JarClasses> classes = (Map<File, ClassReferenceIndex.JarClasses>)
+                MojoExtension.getVariableValueFromObject(mojo, "scannedClasses");
+        for (Map.Entry<File, ClassReferenceIndex.JarClasses> entry : classes.entrySet()) {
+            scanned.put(entry.getKey(), Arrays.asList(entry.getValue().getDefinedClasses(),
+                    entry.getValue().getReferencedClasses()));
+        }
+        assertNotNull(failure);
+        return failure;
+    }
+
+    private static void writeClass(File folder, Class<?> clazz) throws IOException {
+        String name = clazz.getName().replace('.', '/') + ".class";
+        File file = new File(folder, name);
+        file.getParentFile().mkdirs();
+        try (InputStream in = clazz.getClassLoader().getResourceAsStream(name)) {
+            Files.copy(in, file.toPath());
+        }
+    }
+
+    private static File writeJar(File jar, Class<?>... classes) throws IOException {
+        try (JarOutputStream jos = new JarOutputStream(new FileOutputStream(jar))) {
+            for (Class<?> clazz : classes) {
+                String name = clazz.getName().replace('.', '/') + ".class";
+                jos.putNextEntry(new JarEntry(name));
+                try (InputStream in = clazz.getClassLoader().getResourceAsStream(name)) {
+                    in.transferTo(jos);
+                }
+                jos.closeEntry();
+            }
+        }
+        return jar;
+    }
+
 }
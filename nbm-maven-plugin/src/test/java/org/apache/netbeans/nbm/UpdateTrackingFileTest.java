@@ -0,0 +1,136 @@
+package org.apache.netbeans.nbm;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import org.apache.netbeans.nbm.utils.ExamineManifest;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.netbeans.nbbuild.MakeListOfNBM;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class UpdateTrackingFileTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void testGoldenFile() throws Exception {
+        UpdateTrackingFile tracking = new UpdateTrackingFile("org.example.a/2", "1.5");
+        tracking.add("modules/org-example-a.jar", 1914464L);
+        tracking.add("modules/ext/b.jar", 1189742623L);
+        tracking.add("modules/ext/a&b\"c'<>.txt", 2536026966L);
+        tracking.add("modules/ext/Z.txt", 2770260436L);
+        tracking.add("modules/ext-x.txt", 3932112659L);
+        tracking.add("config/Modules/org-example-a.xml", 2658785623L);
+        assertTrue(tracking.contains("modules/ext/b.jar"));
+        assertEquals("org.example.a", tracking.getCodeNameBase());
+        assertEquals("org-example-a.xml", tracking.getFileName());
+
+        byte[] golden = Files.readAllBytes(
+                new File(getClass().getResource("/updatetracking/org-example-a.xml").toURI()).toPath());
+        File written = tracking.write(dir, 1700000000000L);
+        assertEquals(new File(dir, "update_tracking/org-example-a.xml"), written);
+        assertEquals(new String(golden, StandardCharsets.UTF_8),
+                new String(Files.readAllBytes(written.toPath()), StandardCharsets.UTF_8));
+
+        Attributes attributes = new Attributes();
+        assertNull(UpdateTrackingFile.of(attributes));
+        attributes.putValue("OpenIDE-Module", "org.example.b");
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><module codename=\"org.example.b\">\n"
+                + "    <module_version install_time=\"1\" last=\"true\" origin=\"installer\" specification_version=\"0\"/>\n"
+                + "</module>\n", UpdateTrackingFile.of(attributes).toXml(1));
+        ExamineManifest examined = new ExamineManifest(null);
+        examined.checkAttributes(new Attributes());
+        assertNull(UpdateTrackingFile.of(examined));
+    }
+
+    /**
+     * Same bytes as the genlist task of the harness, but for the install
+     * time.
+     */
+    @Test
+    void testSameAsGenlist() throws Exception {
+        File cluster = new File(dir, "platform");
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("config/Modules/org-example-c.xml", "<module/>".getBytes(StandardCharsets.UTF_8));
+        files.put("modules/ext/lib-1.0.jar", new byte[]{1, 2, 3});
+        files.put("modules/ext/lib 2 & more.jar", new byte[]{4});
+        files.put("modules/locale/org-example-c_ja.jar", new byte[]{5, 6});
+        files.put("modules/ext-other/x.txt", new byte[0]);
+        files.put("docs/ReadMe.txt", "read me".getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            File f = new File(cluster, file.getKey());
+            f.getParentFile().mkdirs();
+            Files.write(f.toPath(), file.getValue());
+        }
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        manifest.getMainAttributes().putValue("OpenIDE-Module", "org.example.c/1");
+        manifest.getMainAttributes().putValue("OpenIDE-Module-Specification-Version", "2.3.1");
+        File jar = new File(cluster, "modules/org-example-c.jar");
+        new JarOutputStream(new FileOutputStream(jar), manifest).close();
+        files.put("modules/org-example-c.jar", Files.readAllBytes(jar.toPath()));
+
+        Project project = new Project();
+        project.init();
+        MakeListOfNBM genlist = new MakeListOfNBM();
+        genlist.setProject(project);
+        FileSet set = genlist.createFileSet();
+        set.setDir(cluster);
+        set.appendIncludes(files.keySet().toArray(new String[0]));
+        genlist.setOutputfiledir(cluster);
+        genlist.setModule("modules/org-example-c.jar");
+        genlist.execute();
+        File trackingFile = new File(cluster, "update_tracking/org-example-c.xml");
+        String expected = new String(Files.readAllBytes(trackingFile.toPath()), StandardCharsets.UTF_8);
+
+        // as the mojo does, from the manifest examined while extracting
+        ExamineManifest examined = new ExamineManifest(null);
+        examined.checkAttributes(manifest.getMainAttributes());
+        UpdateTrackingFile tracking = UpdateTrackingFile.of(examined);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            if (!file.getKey().startsWith("config/")) {
+                CRC32 crc = new CRC32();
+                crc.update(file.getValue());
+                tracking.add(file.getKey(), crc.getValue());
+            }
+        }
+        assertFalse(tracking.contains("config/Modules/org-example-c.xml"));
+        CRC32 crc = new CRC32();
+        crc.update(files.get("config/Modules/org-example-c.xml"));
+        tracking.add("config/Modules/org-example-c.xml", crc.getValue());
+        String actual = tracking.toXml(0);
+        assertEquals(expected.replaceFirst("install_time=\"\\d+\"", "install_time=\"0\""), actual);
+    }
+}